@@ -0,0 +1,216 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller;
+
+import autoleveller.probe.BilinearInterpolator;
+import autoleveller.probe.HeightMap;
+import autoleveller.probe.SurfaceInterpolator;
+
+/**
+ * Splits moves only where the levelled height stops being linear along them.
+ * A move is always split where it crosses a grid line. Inside one probe cell
+ * the interpolated height along a straight move is a polynomial z(s) of the
+ * degree the interpolator gives, 2 for bilinear and up to 6 for the bicubic
+ * patches. A piece inside a cell is split further only when its chord could
+ * miss that curve by more than the tolerance. The polynomial is found from
+ * the heights at degree + 1 evenly spaced points of the piece. The largest of
+ * the Bernstein coefficients of z'' bounds |z''|, and a chord over 1 / n of
+ * the piece misses by at most max |z''| / (8 n^2). For bilinear this is the
+ * exact miss of the parabola at the middle of the piece.
+ */
+public class AdaptiveSegmenter implements Segmenter {
+	// fractions closer than this are the same split, e.g. crossing a grid node
+	private static final double SAME_SPLIT = 1e-9;
+
+	private final SurfaceInterpolator interpolator;
+	private final HeightMap heightMap;
+	private final double tolerance;
+	private final int degree;
+	// curvature[i][k] times the height at k / degree of a piece, summed over k,
+	// is the i-th Bernstein coefficient of z'' along the piece
+	private final double[][] curvature;
+
+	public AdaptiveSegmenter(HeightMap heightMap, double tolerance) {
+		this(new BilinearInterpolator(heightMap), tolerance);
+	}
+
+	public AdaptiveSegmenter(SurfaceInterpolator interpolator, double tolerance) {
+		if (!(tolerance > 0)) {
+			throw new IllegalArgumentException("tolerance must be positive");
+		}
+		this.interpolator = interpolator;
+		this.heightMap = interpolator.getHeightMap();
+		this.tolerance = tolerance;
+		this.degree = Math.max(1, interpolator.getDegree());
+		this.curvature = curvature(degree);
+	}
+
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	@Override
+	public void split(double startX, double startY, double endX, double endY, Fractions fractions) {
+		double dx = endX - startX;
+		double dy = endY - startY;
+		int first = fractions.size();
+		if (dx != 0) {
+			int last = Math.min(heightMap.getColumn(Math.max(startX, endX)) + 1, heightMap.getColumns() - 1);
+			for (int column = heightMap.getColumn(Math.min(startX, endX)); column <= last; column++) {
+				addCrossing((heightMap.getX(column) - startX) / dx, fractions);
+			}
+		}
+		if (dy != 0) {
+			int last = Math.min(heightMap.getRow(Math.max(startY, endY)) + 1, heightMap.getRows() - 1);
+			for (int row = heightMap.getRow(Math.min(startY, endY)); row <= last; row++) {
+				addCrossing((heightMap.getY(row) - startY) / dy, fractions);
+			}
+		}
+		fractions.sort(first);
+
+		// the result goes after the raw crossings, already in order, dropping
+		// duplicates and subdividing every piece that is curved too much
+		int crossings = fractions.size();
+		double[] heights = fractions.scratch(degree + 1);
+		double previous = 0;
+		double previousZ = interpolator.getZ(startX, startY);
+		for (int i = first; i <= crossings; i++) {
+			double next = i < crossings ? fractions.get(i) : 1;
+			if (next - previous < SAME_SPLIT) {
+				continue;
+			}
+			double length = next - previous;
+			double nextZ = interpolator.getZ(startX + next * dx, startY + next * dy);
+			heights[0] = previousZ;
+			heights[degree] = nextZ;
+			for (int k = 1; k < degree; k++) {
+				double at = previous + length * k / degree;
+				heights[k] = interpolator.getZ(startX + at * dx, startY + at * dy);
+			}
+			int pieces = (int) Math.ceil(Math.sqrt(maxCurvature(heights) / (8 * tolerance)));
+			for (int piece = 1; piece < pieces; piece++) {
+				fractions.add(previous + length * piece / pieces);
+			}
+			if (i < crossings) {
+				fractions.add(next);
+			}
+			previous = next;
+			previousZ = nextZ;
+		}
+		fractions.removeRange(first, crossings);
+	}
+
+	/**
+	 * @return a bound on |z''| along a piece, from the heights at k / degree
+	 *         of it
+	 */
+	private double maxCurvature(double[] heights) {
+		double max = 0;
+		for (double[] weights : curvature) {
+			double coefficient = 0;
+			for (int k = 0; k < weights.length; k++) {
+				coefficient += weights[k] * heights[k];
+			}
+			max = Math.max(max, Math.abs(coefficient));
+		}
+		return max;
+	}
+
+	/**
+	 * @return the weights that turn the heights at k / degree of a piece into
+	 *         the degree - 1 Bernstein coefficients of z''
+	 */
+	private static double[][] curvature(int degree) {
+		int n = degree + 1;
+		// bernstein[k][i] is the i-th Bernstein polynomial at k / degree
+		double[][] bernstein = new double[n][n];
+		for (int k = 0; k < n; k++) {
+			double s = (double) k / degree;
+			for (int i = 0; i < n; i++) {
+				bernstein[k][i] = binomial(degree, i) * Math.pow(s, i) * Math.pow(1 - s, degree - i);
+			}
+		}
+		double[][] toCoefficients = invert(bernstein);
+		double[][] curvature = new double[Math.max(0, degree - 1)][n];
+		for (int i = 0; i < curvature.length; i++) {
+			for (int k = 0; k < n; k++) {
+				curvature[i][k] = degree * (degree - 1)
+					* (toCoefficients[i + 2][k] - 2 * toCoefficients[i + 1][k] + toCoefficients[i][k]);
+			}
+		}
+		return curvature;
+	}
+
+	private static double binomial(int n, int k) {
+		double result = 1;
+		for (int i = 1; i <= k; i++) {
+			result = result * (n - k + i) / i;
+		}
+		return result;
+	}
+
+	/**
+	 * @return the inverse of the matrix, by Gauss-Jordan elimination with
+	 *         partial pivoting
+	 */
+	private static double[][] invert(double[][] matrix) {
+		int n = matrix.length;
+		double[][] a = new double[n][2 * n];
+		for (int row = 0; row < n; row++) {
+			System.arraycopy(matrix[row], 0, a[row], 0, n);
+			a[row][n + row] = 1;
+		}
+		for (int column = 0; column < n; column++) {
+			int pivot = column;
+			for (int row = column + 1; row < n; row++) {
+				if (Math.abs(a[row][column]) > Math.abs(a[pivot][column])) {
+					pivot = row;
+				}
+			}
+			double[] swap = a[column];
+			a[column] = a[pivot];
+			a[pivot] = swap;
+			double scale = a[column][column];
+			for (int j = 0; j < 2 * n; j++) {
+				a[column][j] /= scale;
+			}
+			for (int row = 0; row < n; row++) {
+				double factor = a[row][column];
+				if (row != column && factor != 0) {
+					for (int j = 0; j < 2 * n; j++) {
+						a[row][j] -= factor * a[column][j];
+					}
+				}
+			}
+		}
+		double[][] inverse = new double[n][n];
+		for (int row = 0; row < n; row++) {
+			System.arraycopy(a[row], n, inverse[row], 0, n);
+		}
+		return inverse;
+	}
+
+	private static void addCrossing(double fraction, Fractions fractions) {
+		if (fraction > SAME_SPLIT && fraction < 1 - SAME_SPLIT) {
+			fractions.add(fraction);
+		}
+	}
+}
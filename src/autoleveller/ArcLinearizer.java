@@ -0,0 +1,116 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller;
+
+import java.util.Arrays;
+
+/**
+ * Replaces a circular arc in the XY plane by the fewest chords that stay
+ * within a tolerance of it. A chord spanning the angle a misses an arc of
+ * radius r by r (1 - cos(a / 2)), so no chord may span more than
+ * 2 acos(1 - tolerance / r). The chord ends are kept between calls, so a
+ * linearizer is reused for every arc of a file.
+ */
+public class ArcLinearizer {
+	private double[] xs = new double[64];
+	private double[] ys = new double[64];
+	private int chords;
+
+	/**
+	 * Linearizes an arc given by its center, the I/J form.
+	 *
+	 * @return the number of chords
+	 */
+	public int linearize(double startX, double startY, double endX, double endY, double centerX, double centerY, boolean clockwise,
+		double tolerance) {
+		double startAngle = Math.atan2(startY - centerY, startX - centerX);
+		double endAngle = Math.atan2(endY - centerY, endX - centerX);
+		double sweep = clockwise ? startAngle - endAngle : endAngle - startAngle;
+		if (sweep <= 0) {
+			// includes start == end, a full circle
+			sweep += 2 * Math.PI;
+		}
+		double startRadius = Math.hypot(startX - centerX, startY - centerY);
+		double endRadius = Math.hypot(endX - centerX, endY - centerY);
+		double radius = Math.max(startRadius, endRadius);
+		double maxAngle = tolerance < radius ? 2 * Math.acos(1 - tolerance / radius) : Math.PI;
+		chords = Math.max(1, (int) Math.ceil(sweep / maxAngle));
+		if (chords > xs.length) {
+			xs = Arrays.copyOf(xs, Math.max(chords, xs.length * 2));
+			ys = Arrays.copyOf(ys, xs.length);
+		}
+		double step = (clockwise ? -sweep : sweep) / chords;
+		for (int i = 1; i < chords; i++) {
+			double k = (double) i / chords;
+			// the radius may differ a little at the ends, blend it along the arc
+			double r = startRadius + k * (endRadius - startRadius);
+			double angle = startAngle + i * step;
+			xs[i - 1] = centerX + r * Math.cos(angle);
+			ys[i - 1] = centerY + r * Math.sin(angle);
+		}
+		xs[chords - 1] = endX;
+		ys[chords - 1] = endY;
+		return chords;
+	}
+
+	/**
+	 * Linearizes an arc given by its radius, the R form. A negative radius
+	 * selects the arc of more than half a circle.
+	 *
+	 * @return the number of chords
+	 */
+	public int linearizeRadius(double startX, double startY, double endX, double endY, double radius, boolean clockwise,
+		double tolerance) {
+		double dx = endX - startX;
+		double dy = endY - startY;
+		double distance = Math.hypot(dx, dy);
+		if (distance == 0) {
+			// the center can't be found, there is no move
+			chords = 0;
+			return 0;
+		}
+		// distance from the middle of the chord to the center, to the left of the
+		// chord for a counter clockwise arc of less than half a circle
+		double offset = Math.sqrt(Math.max(0, radius * radius - distance * distance / 4)) / distance;
+		if (clockwise == (radius > 0)) {
+			offset = -offset;
+		}
+		double centerX = startX + dx / 2 - offset * dy;
+		double centerY = startY + dy / 2 + offset * dx;
+		return linearize(startX, startY, endX, endY, centerX, centerY, clockwise, tolerance);
+	}
+
+	public int getChords() {
+		return chords;
+	}
+
+	/**
+	 * @return the X of the end of a chord, the last chord ends at the end of
+	 *         the arc
+	 */
+	public double getX(int chord) {
+		return xs[chord];
+	}
+
+	public double getY(int chord) {
+		return ys[chord];
+	}
+}
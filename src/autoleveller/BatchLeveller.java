@@ -0,0 +1,163 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import autoleveller.probe.Probe;
+import autoleveller.stats.CountingOutputStream;
+
+/**
+ * Levels many files against one probe map, e.g. all the jobs of a panel, a
+ * file per thread. The probe map, its interpolation and the segmenter are
+ * immutable and shared by all threads, everything else is per file.
+ */
+public class BatchLeveller {
+	private final Probe probe;
+	private final Segmenter segmenter;
+	private final int threads;
+	private double mergeTolerance;
+
+	/**
+	 * Outcome of levelling one file.
+	 */
+	public static class Result {
+		private final File input;
+		private final File output;
+		private final long nanos;
+		private final Exception error;
+
+		Result(File input, File output, long nanos, Exception error) {
+			this.input = input;
+			this.output = output;
+			this.nanos = nanos;
+			this.error = error;
+		}
+
+		public File getInput() {
+			return input;
+		}
+
+		public File getOutput() {
+			return output;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+
+		/**
+		 * @return why the file could not be levelled, null if it was
+		 */
+		public Exception getError() {
+			return error;
+		}
+
+		@Override
+		public String toString() {
+			if (error != null) {
+				return input.getName() + " failed after " + String.format(Locale.US, "%.2f s: ", nanos / 1e9) + error.getMessage();
+			}
+			double seconds = nanos / 1e9;
+			return String.format(Locale.US, "%s -> %s in %.2f s (%.1f MB/s)", input.getName(), output.getName(), seconds,
+				seconds == 0 ? 0 : input.length() / seconds / 1e6);
+		}
+	}
+
+	public BatchLeveller(Probe probe, Segmenter segmenter, int threads) {
+		this.probe = probe;
+		this.segmenter = segmenter;
+		this.threads = threads;
+	}
+
+	/**
+	 * See {@link Surface#setMergeTolerance(double)}.
+	 */
+	public void setMergeTolerance(double mergeTolerance) {
+		this.mergeTolerance = mergeTolerance;
+	}
+
+	/**
+	 * Levels every input into the output at the same index. A file that fails
+	 * does not stop the others.
+	 *
+	 * @return the result of every file, in the order of the inputs
+	 */
+	public List<Result> level(List<File> inputs, final List<File> outputs) throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			List<Future<Result>> results = new ArrayList<Future<Result>>(inputs.size());
+			for (int i = 0; i < inputs.size(); i++) {
+				final File input = inputs.get(i);
+				final File output = outputs.get(i);
+				results.add(pool.submit(new Callable<Result>() {
+					@Override
+					public Result call() {
+						return level(input, output);
+					}
+				}));
+			}
+			List<Result> levelled = new ArrayList<Result>(inputs.size());
+			for (Future<Result> result : results) {
+				levelled.add(result.get());
+			}
+			return levelled;
+		} catch (InterruptedException e) {
+			throw new IOException("Levelling interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Levelling failed", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private Result level(File input, File output) {
+		long start = System.nanoTime();
+		try {
+			GCodeBreaker breaker = new GCodeBreaker(input, segmenter, probe.getArea());
+			PrintWriter lvldFile;
+			try {
+				lvldFile = new NoExponentWriter(new BufferedWriter(new OutputStreamWriter(new CountingOutputStream(new FileOutputStream(output)))));
+			} catch (IOException e) {
+				breaker.close();
+				throw e;
+			}
+			Surface surface = new Surface(probe, breaker);
+			surface.setMergeTolerance(mergeTolerance);
+			surface.level(lvldFile);
+			return new Result(input, output, System.nanoTime() - start, null);
+		} catch (Exception e) {
+			return new Result(input, output, System.nanoTime() - start, e);
+		}
+	}
+}
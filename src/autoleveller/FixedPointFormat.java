@@ -0,0 +1,101 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Writes doubles as g-code numbers: fixed precision, never an exponent, no
+ * trailing zeros and no negative zero, e.g. 1.5, -0.0125 or 20. Values are
+ * rounded half away from zero using integer arithmetic only.
+ */
+public final class FixedPointFormat {
+	public static final int DEFAULT_DECIMALS = 4;
+
+	private static final long[] POWERS_OF_TEN = { 1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L };
+	// above this the scaled value no longer fits exactly in a long
+	private static final double MAX_SCALED = 1e15;
+
+	private FixedPointFormat() {
+	}
+
+	public static String format(double value) {
+		return append(new StringBuilder(16), value, DEFAULT_DECIMALS).toString();
+	}
+
+	public static StringBuilder append(StringBuilder out, double value) {
+		return append(out, value, DEFAULT_DECIMALS);
+	}
+
+	/**
+	 * @return the value as it is written with the number of decimals
+	 */
+	public static double round(double value, int decimals) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return value;
+		}
+		long scale = POWERS_OF_TEN[decimals];
+		double scaled = Math.abs(value) * scale;
+		if (scaled >= MAX_SCALED) {
+			return BigDecimal.valueOf(value).setScale(decimals, RoundingMode.HALF_UP).doubleValue();
+		}
+		double rounded = (long) (scaled + 0.5) / (double) scale;
+		return value < 0 ? -rounded : rounded;
+	}
+
+	/**
+	 * Appends the value with at most decimals (0 - 9) digits after the decimal
+	 * point.
+	 */
+	public static StringBuilder append(StringBuilder out, double value, int decimals) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return out.append(value);
+		}
+		long scale = POWERS_OF_TEN[decimals];
+		double scaled = Math.abs(value) * scale;
+		if (scaled >= MAX_SCALED) {
+			return out.append(BigDecimal.valueOf(value).setScale(decimals, RoundingMode.HALF_UP).stripTrailingZeros().toPlainString());
+		}
+		long units = (long) (scaled + 0.5);
+		if (units == 0) {
+			return out.append('0');
+		}
+		if (value < 0) {
+			out.append('-');
+		}
+		out.append(units / scale);
+		long fraction = units % scale;
+		if (fraction != 0) {
+			out.append('.');
+			int digits = decimals;
+			while (fraction % 10 == 0) {
+				fraction /= 10;
+				digits--;
+			}
+			for (long limit = POWERS_OF_TEN[digits - 1]; fraction < limit; limit /= 10) {
+				out.append('0');
+			}
+			out.append(fraction);
+		}
+		return out;
+	}
+}
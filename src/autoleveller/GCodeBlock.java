@@ -0,0 +1,232 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller;
+
+import java.util.Arrays;
+
+/**
+ * One g-code block as its words in order, for rewriting values. Words can be
+ * given new values, inserted or left out, everything else in the line (spacing,
+ * comments, words that are not touched) is written back as it was. Like
+ * {@link GCodeTokenizer} the block is reused between lines.
+ */
+public class GCodeBlock {
+	private final GCodeTokenizer tokenizer = new GCodeTokenizer();
+	private CharSequence line = "";
+	private int size;
+	private char[] letters = new char[16];
+	// position of the letter and end of the value in the line, an inserted word
+	// has both at the end of the word it follows
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+	private boolean[] inserted = new boolean[16];
+	private boolean[] removed = new boolean[16];
+	// new values, NaN keeps the value as written
+	private double[] values = new double[16];
+	private int[] decimals = new int[16];
+
+	/**
+	 * Parses the line, replacing the previous block.
+	 */
+	public void parse(CharSequence line) {
+		tokenizer.tokenize(line);
+		parse(tokenizer);
+	}
+
+	/**
+	 * Takes the words of an already tokenized line, replacing the previous
+	 * block.
+	 */
+	public void parse(GCodeTokenizer words) {
+		line = words.getLine();
+		size = 0;
+		for (int i = 0; i < words.size(); i++) {
+			add(size, words.getLetter(i), words.getWordStart(i), words.getValueEnd(i), false);
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public char getLetter(int index) {
+		return letters[index];
+	}
+
+	public boolean contains(char letter) {
+		return indexOf(letter) >= 0;
+	}
+
+	public void set(char letter, double value) {
+		set(letter, value, FixedPointFormat.DEFAULT_DECIMALS);
+	}
+
+	/**
+	 * Gives the first word with the letter a new value. A missing word is
+	 * inserted after the last X or Y word, or after the last word if there are
+	 * neither.
+	 */
+	public void set(char letter, double value, int decimals) {
+		int index = indexOf(letter);
+		if (index < 0) {
+			int after = size - 1;
+			for (int i = size - 1; i >= 0; i--) {
+				if (letters[i] == 'X' || letters[i] == 'Y') {
+					after = i;
+					break;
+				}
+			}
+			int position = after < 0 ? 0 : ends[after];
+			index = after + 1;
+			add(index, letter, position, position, true);
+		}
+		values[index] = value;
+		this.decimals[index] = decimals;
+	}
+
+	/**
+	 * Gives the word at index a new value.
+	 */
+	public void set(int index, double value, int decimals) {
+		values[index] = value;
+		this.decimals[index] = decimals;
+	}
+
+	/**
+	 * Inserts a word in front of the word at index, or after the last word if
+	 * index is the size of the block.
+	 */
+	public void insert(int index, char letter, double value, int decimals) {
+		int position = index < size ? starts[index] : (size > 0 ? ends[size - 1] : 0);
+		add(index, letter, position, position, true);
+		set(index, value, decimals);
+	}
+
+	/**
+	 * Leaves out all words with the letter.
+	 */
+	public void remove(char letter) {
+		for (int i = 0; i < size; i++) {
+			if (letters[i] == letter) {
+				removed[i] = true;
+			}
+		}
+	}
+
+	/**
+	 * Writes the block, changed words with their new values.
+	 */
+	public StringBuilder appendTo(StringBuilder out) {
+		int copied = 0;
+		for (int i = 0; i < size; i++) {
+			if (removed[i]) {
+				if (!inserted[i]) {
+					// take a space in front of the word with it
+					int start = starts[i];
+					if (start > copied && line.charAt(start - 1) == ' ') {
+						start--;
+					}
+					append(out, copied, start);
+					copied = ends[i];
+				}
+				continue;
+			}
+			if (Double.isNaN(values[i])) {
+				continue;
+			}
+			append(out, copied, starts[i]);
+			if (inserted[i]) {
+				if (starts[i] > 0) {
+					out.append(' ');
+				}
+				out.append(letters[i]);
+			} else {
+				// keep the letter as written, it may be lower case
+				out.append(line.charAt(starts[i]));
+			}
+			FixedPointFormat.append(out, values[i], decimals[i]);
+			if (inserted[i] && starts[i] == 0 && line.length() > 0) {
+				// inserted in front of the line
+				out.append(' ');
+			}
+			copied = ends[i];
+		}
+		append(out, copied, line.length());
+		return out;
+	}
+
+	/**
+	 * Copies part of the line. StringBuilder copies a CharSequence that is not
+	 * a String a char at a time through a call shared by all its callers, a
+	 * loop of our own is much quicker for a line read as a view.
+	 */
+	private void append(StringBuilder out, int start, int end) {
+		if (line instanceof String) {
+			out.append(line, start, end);
+			return;
+		}
+		for (int i = start; i < end; i++) {
+			out.append(line.charAt(i));
+		}
+	}
+
+	@Override
+	public String toString() {
+		return appendTo(new StringBuilder(line.length() + 16)).toString();
+	}
+
+	private int indexOf(char letter) {
+		for (int i = 0; i < size; i++) {
+			if (letters[i] == letter) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void add(int index, char letter, int start, int end, boolean insert) {
+		if (size == letters.length) {
+			int newLength = size * 2;
+			letters = Arrays.copyOf(letters, newLength);
+			starts = Arrays.copyOf(starts, newLength);
+			ends = Arrays.copyOf(ends, newLength);
+			inserted = Arrays.copyOf(inserted, newLength);
+			removed = Arrays.copyOf(removed, newLength);
+			values = Arrays.copyOf(values, newLength);
+			decimals = Arrays.copyOf(decimals, newLength);
+		}
+		int moved = size - index;
+		System.arraycopy(letters, index, letters, index + 1, moved);
+		System.arraycopy(starts, index, starts, index + 1, moved);
+		System.arraycopy(ends, index, ends, index + 1, moved);
+		System.arraycopy(inserted, index, inserted, index + 1, moved);
+		System.arraycopy(removed, index, removed, index + 1, moved);
+		System.arraycopy(values, index, values, index + 1, moved);
+		System.arraycopy(decimals, index, decimals, index + 1, moved);
+		letters[index] = letter;
+		starts[index] = start;
+		ends[index] = end;
+		inserted[index] = insert;
+		removed[index] = false;
+		values[index] = Double.NaN;
+		size++;
+	}
+}
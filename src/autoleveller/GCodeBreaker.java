@@ -21,85 +21,344 @@
  */
 package autoleveller;
 
-import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import javax.vecmath.Point3d;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import autoleveller.stats.Stats;
 
 public class GCodeBreaker extends GCodeReader
 {
-    private double segmentLength;
+    private Segmenter segmenter;
+    // segment ends are read back as the next start, keep more than the output precision
+    static final int SEGMENT_DECIMALS = 5;
+    public static final double DEFAULT_ARC_TOLERANCE = 0.002;
+    private GCodeTokenizer nextWords = new GCodeTokenizer();
+    private GCodeBlock block = new GCodeBlock();
+    private Segmenter.Fractions fractions = new Segmenter.Fractions();
+    // sub-points of the move being broken down followed by the move itself
+    private Deque<CharSequence> pending = new ArrayDeque<CharSequence>();
+    private ArcLinearizer arcs = new ArcLinearizer();
+    private double arcTolerance = DEFAULT_ARC_TOLERANCE;
+    // arc mode to return to once an arc written as G1 moves has been read
+    private int arcMotion = ModalState.NONE;
+    // state once the line read ahead has been read
+    private ModalState nextState = new ModalState();
+    private static final char[] AXES = { 'X', 'Y', 'Z' };
+    // in incremental mode, the offsets of the last sub-point queued from the
+    // start of the move being broken down, as written
+    private double[] queued = new double[3];
     
     public GCodeBreaker(File file, double segmentLength) throws IOException
     {
         super(file);
-        this.segmentLength = segmentLength;
+        this.segmenter = new UniformSegmenter(segmentLength);
     }
     
-    public Point2D reduceSegment(Point2D point1, Point2D point2, double segmentLength)
+    /**
+     * Single pass breaker, see {@link GCodeReader#GCodeReader(File, Rectangle2D)}
+     */
+    public GCodeBreaker(File file, double segmentLength, Rectangle2D knownArea) throws IOException
     {
-        double distance = point1.distance(point2);        
-        
-        if (distance > segmentLength)
-        {
-            double k = 1 / (distance / segmentLength);
-            double newX = point1.getX() + k * (point2.getX() - point1.getX());
-            double newY = point1.getY() + k * (point2.getY() - point1.getY());
-            
-            return new Point2D.Double(newX, newY);
-        }
-        else
-            return point2;
+        this(file, new UniformSegmenter(segmentLength), knownArea);
+    }
+    
+    public GCodeBreaker(File file, Segmenter segmenter, Rectangle2D knownArea) throws IOException
+    {
+        super(file, knownArea);
+        this.segmenter = segmenter;
+    }
+    
+    public GCodeBreaker(BufferedReader reader, String name, double segmentLength, Rectangle2D knownArea)
+    {
+        this(reader, name, new UniformSegmenter(segmentLength), knownArea);
+    }
+    
+    public GCodeBreaker(BufferedReader reader, String name, Segmenter segmenter, Rectangle2D knownArea)
+    {
+        super(reader, name, knownArea);
+        this.segmenter = segmenter;
+    }
+    
+    /**
+     * Single pass breaker of any line source, see
+     * {@link GCodeReader#GCodeReader(LineSource, String, Rectangle2D)}
+     */
+    public GCodeBreaker(LineSource lines, String name, Segmenter segmenter, Rectangle2D knownArea)
+    {
+        super(lines, name, knownArea);
+        this.segmenter = segmenter;
+    }
+    
+    /**
+     * Single pass breaker of a stream, see
+     * {@link GCodeReader#GCodeReader(InputStream, String, Rectangle2D)}
+     */
+    public GCodeBreaker(InputStream in, String name, Segmenter segmenter, Rectangle2D knownArea)
+    {
+        super(in, name, knownArea);
+        this.segmenter = segmenter;
+    }
+    
+    public Segmenter getSegmenter()
+    {
+        return segmenter;
+    }
+    
+    /**
+     * Sets the largest distance in mm between an arc and the straight moves
+     * replacing it.
+     */
+    public void setArcTolerance(double millimeters)
+    {
+        arcTolerance = millimeters;
+    }
+    
+    public double getArcTolerance()
+    {
+        return arcTolerance;
     }
     
+    /**
+     * @return the next line, the line read or one of the moves it is broken
+     *         down into, valid until the next line is read
+     */
     @Override
-    public String readNextLine() throws IOException
+    public CharSequence readNext() throws IOException
     {
-        //we only need to break the line down if we are cutting
-        //where < 0 is assumed to be cutting
-        if (gotAllPoints() && (currentCoords.getZ() < 0) && (isCurrentMoveLinear()))
+        if (pending.isEmpty())
         {
-            String nextString = peek();
-            if (nextString == null)
+            CharSequence line = readRawLine();
+            if (line == null)
                 return null;
-            nextString = nextString.toUpperCase();
-
-            Point2D startPoint = new Point2D.Double(currentCoords.getX(), currentCoords.getY());
-            Point3d endPoint3D = createPointFromString(currentCoords, nextString);
-            Point2D endPoint = new Point2D.Double(endPoint3D.getX(), endPoint3D.getY());
-            if (startPoint.distance(endPoint) > this.segmentLength)
+            Stats.Recorder stats = getStats();
+            stats.add(Stats.LINES_IN, 1);
+            long start = stats.start(Stats.SEGMENT);
+            nextWords.tokenize(toUpperCase(line));
+            nextState.set(getModalState());
+            nextState.update(nextWords);
+            //we only need to break the line down if we are cutting
+            //where < 0 is assumed to be cutting
+            boolean cutting = gotAllPoints() && (currentCoords.getZ() < 0) && !nextState.isAxisCommand();
+            if (cutting && nextState.isLinear())
+            {
+                line = addSegments(line);
+                pending.add(line);
+            }
+            else if (!(cutting && nextState.isArc() && nextState.getPlane() == 17 && addArc()))
             {
-                Point2D segment = reduceSegment(startPoint, endPoint, this.segmentLength);
-                String segmentString = createStringFromPoint(nextString, segment);
-                updateStateFromString(segmentString);
-                return segmentString;
+                if (nextState.isArc() && !nextState.hasMotionWord() && isMove())
+                {
+                    // earlier arcs may have been written as G1, so a modal arc
+                    // needs its G code
+                    block.parse(line);
+                    block.insert(0, 'G', nextState.getMotion() / 10, 0);
+                    line = block.toString();
+                }
+                pending.add(line);
             }
+            if (pending.size() > 1)
+                stats.add(Stats.SEGMENTS, pending.size());
+            stats.stop(Stats.SEGMENT, start);
         }
-        
-        return super.readNextLine();
+        CharSequence line = pending.poll();
+        acceptLine(line);
+        if (pending.isEmpty() && arcMotion != ModalState.NONE)
+        {
+            // the file is still in arc mode
+            getModalState().setMotion(arcMotion);
+            arcMotion = ModalState.NONE;
+        }
+        return line;
     }
     
-    public Point3d createPointFromString(Point3d prevPoint, String line)
+    /**
+     * @return the line in upper case, the line itself if it is already
+     */
+    private CharSequence toUpperCase(CharSequence line)
     {
-        Point3d retPoint = new Point3d(prevPoint);
-        
-        if (!Double.isNaN(getDoubleFromChar(line, 'X'))){
-            retPoint.setX(getDoubleFromChar(line, 'X'));}
-        if (!Double.isNaN(getDoubleFromChar(line, 'Y'))){
-            retPoint.setY(getDoubleFromChar(line, 'Y'));}
-        if (!Double.isNaN(getDoubleFromChar(line, 'Z'))){
-            retPoint.setZ(getDoubleFromChar(line, 'Z'));}
+        if (line instanceof String)
+            return ((String) line).toUpperCase();
+        int length = line.length();
+        for (int i = 0; i < length; i++)
+        {
+            char c = line.charAt(i);
+            if (c >= 'a' && c <= 'z' || c > 127)
+                return line.toString().toUpperCase();
+        }
+        return line;
+    }
+    
+    private boolean isMove()
+    {
+        return nextWords.contains('X') || nextWords.contains('Y') || nextWords.contains('Z') || nextWords.contains('I')
+            || nextWords.contains('J') || nextWords.contains('R');
+    }
+    
+    /**
+     * Queues the sub-points of the linear move in nextWords where the segmenter
+     * splits it. A move that changes Z, e.g. a ramp, has its Z spread along the
+     * sub-points in both distance modes. In incremental mode the sub-points are
+     * increments and the move itself is given what is left of its increments.
+     *
+     * @return the move, to queue after the sub-points
+     */
+    private CharSequence addSegments(CharSequence line)
+    {
+        boolean incremental = nextState.isIncremental();
+        double startX = currentCoords.getX();
+        double startY = currentCoords.getY();
+        double startZ = currentCoords.getZ();
+        double endX = nextWords.getValue('X');
+        double endY = nextWords.getValue('Y');
+        boolean hasX = !Double.isNaN(endX);
+        boolean hasY = !Double.isNaN(endY);
+        // a Z from an unknown height can only be written as it is
+        boolean hasZ = nextWords.contains('Z') && !Double.isNaN(startZ);
+        if (!hasX)
+            endX = startX;
+        else if (incremental)
+            endX += startX;
+        if (!hasY)
+            endY = startY;
+        else if (incremental)
+            endY += startY;
+        double endZ = startZ;
+        if (hasZ)
+            endZ = incremental ? startZ + nextWords.getValue('Z') : nextWords.getValue('Z');
+        fractions.clear();
+        double scale = nextState.getScale();
+        segmenter.split(startX * scale, startY * scale, endX * scale, endY * scale, fractions);
+        if (fractions.size() == 0)
+            return line;
         
-        return retPoint;
+        block.parse(nextWords);
+        Arrays.fill(queued, 0);
+        for (int i = 0; i < fractions.size(); i++)
+        {
+            double k = fractions.get(i);
+            if (hasX)
+                setAxis(0, incremental, startX, startX + k * (endX - startX));
+            if (hasY)
+                setAxis(1, incremental, startY, startY + k * (endY - startY));
+            if (hasZ)
+                setAxis(2, incremental, startZ, startZ + k * (endZ - startZ));
+            pending.add(block.toString());
+        }
+        if (!incremental)
+            return line;
+        block.parse(line);
+        if (hasX)
+            setAxis(0, true, startX, endX);
+        if (hasY)
+            setAxis(1, true, startY, endY);
+        if (hasZ)
+            setAxis(2, true, startZ, endZ);
+        return block.toString();
+    }
+    
+    /**
+     * Sets the word of the block for the axis (0 to 2 for X to Z) to move to
+     * target, in incremental mode as the increment from the last sub-point
+     * queued.
+     */
+    private void setAxis(int axis, boolean incremental, double start, double target)
+    {
+        if (!incremental)
+        {
+            block.set(AXES[axis], target, SEGMENT_DECIMALS);
+            return;
+        }
+        double written = FixedPointFormat.round(target - start, SEGMENT_DECIMALS);
+        block.set(AXES[axis], written - queued[axis], SEGMENT_DECIMALS);
+        queued[axis] = written;
     }
     
-    public String createStringFromPoint(String original, Point2D point)
+    /**
+     * Queues the arc in nextWords as straight G1 moves, each split further by
+     * the segmenter. A helical arc gets its Z spread along the moves.
+     *
+     * @return false if the arc has no center
+     */
+    private boolean addArc()
     {
-        String modifiedString = original.toUpperCase();
+        boolean incremental = nextState.isIncremental();
+        double startX = currentCoords.getX();
+        double startY = currentCoords.getY();
+        double startZ = currentCoords.getZ();
+        double endX = nextWords.contains('X') ? nextWords.getValue('X') : startX;
+        double endY = nextWords.contains('Y') ? nextWords.getValue('Y') : startY;
+        boolean helical = nextWords.contains('Z');
+        double endZ = helical ? nextWords.getValue('Z') : startZ;
+        if (incremental)
+        {
+            endX = nextWords.contains('X') ? startX + endX : startX;
+            endY = nextWords.contains('Y') ? startY + endY : startY;
+            endZ = helical ? startZ + endZ : startZ;
+        }
+        boolean clockwise = nextState.isClockwise();
+        double tolerance = arcTolerance;
+        if (nextState.isInches())
+            tolerance /= 25.4;
+        double scale = nextState.getScale();
+        
+        int chords;
+        if (nextWords.contains('R'))
+            chords = arcs.linearizeRadius(startX, startY, endX, endY, nextWords.getValue('R'), clockwise, tolerance);
+        else
+        {
+            double i = nextWords.contains('I') ? nextWords.getValue('I') : 0;
+            double j = nextWords.contains('J') ? nextWords.getValue('J') : 0;
+            if (i == 0 && j == 0)
+                return false;
+            chords = arcs.linearize(startX, startY, endX, endY, startX + i, startY + j, clockwise, tolerance);
+        }
+        if (chords == 0)
+            return false;
         
-        modifiedString = modifiedString.replaceAll(("X" + getStringDoubleFromChar(modifiedString, 'X')), "X" + localFormat.format(point.getX()));
-        modifiedString = modifiedString.replaceAll(("Y" + getStringDoubleFromChar(modifiedString, 'Y')), "Y" + localFormat.format(point.getY()));
+        block.parse(nextWords);
+        int motion = -1;
+        for (int i = 0; i < nextWords.size(); i++)
+        {
+            if (nextWords.getLetter(i) == 'G' && nextWords.getCode(i) == nextState.getMotion())
+                motion = i;
+        }
+        if (motion >= 0)
+            block.set(motion, 1, 0);
+        else
+            block.insert(0, 'G', 1, 0);
+        block.remove('I');
+        block.remove('J');
+        block.remove('K');
+        block.remove('R');
         
-        return modifiedString;
+        Arrays.fill(queued, 0);
+        double fromX = startX;
+        double fromY = startY;
+        for (int chord = 0; chord < chords; chord++)
+        {
+            double toX = arcs.getX(chord);
+            double toY = arcs.getY(chord);
+            fractions.clear();
+            segmenter.split(fromX * scale, fromY * scale, toX * scale, toY * scale, fractions);
+            for (int i = 0; i <= fractions.size(); i++)
+            {
+                double k = i < fractions.size() ? fractions.get(i) : 1;
+                setAxis(0, incremental, startX, fromX + k * (toX - fromX));
+                setAxis(1, incremental, startY, fromY + k * (toY - fromY));
+                if (helical)
+                    setAxis(2, incremental, startZ, startZ + (chord + k) / chords * (endZ - startZ));
+                pending.add(block.toString());
+            }
+            fromX = toX;
+            fromY = toY;
+        }
+        arcMotion = nextState.getMotion();
+        return true;
     }
-}
\ No newline at end of file
+}
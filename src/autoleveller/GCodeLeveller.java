@@ -23,11 +23,19 @@ package autoleveller;
 import java.awt.geom.Rectangle2D;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -38,8 +46,12 @@ import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
 
 import autoleveller.probe.Probe;
+import autoleveller.probe.SurfaceInterpolator;
+import autoleveller.stats.CountingOutputStream;
+import autoleveller.stats.Stats;
 
 public class GCodeLeveller {
+	private static final String[] GCODE_SUFFIXES = { ".ngc", ".nc", ".gc", ".gcode", ".tap", ".cnc" };
 
 	/**
 	 * @param args
@@ -54,17 +66,33 @@ public class GCodeLeveller {
 		Options options = new Options();
 		options.addOption("h", "help", false, "This message");
 
-		options.addOption(OptionBuilder.withDescription("Probing file").withArgName("probe").hasArg().isRequired().create('p'));
+		options.addOption(OptionBuilder.withDescription("Probing file, repeat it for the probe logs of refinement probings").withArgName("probe").hasArg().isRequired().create('p'));
 		options.addOption(OptionBuilder.withDescription("Output directory, if not set output goes on system out").hasArg().withArgName("dir").create('D'));
+		options.addOption(OptionBuilder.withLongOpt("threads").withDescription("Level in parallel on n threads (default 1, or a thread per processor for several files)").hasArg().withArgName("n").create('j'));
+		options.addOption(OptionBuilder.withLongOpt("tolerance").withDescription("Split moves at probe grid lines and where the levelled height is off by more than this, instead of every 5 mm").hasArg().withArgName("mm").create('t'));
+		options.addOption(OptionBuilder.withLongOpt("merge").withDescription("Join levelled moves that stay within this distance of a single move").hasArg().withArgName("mm").create('m'));
+		options.addOption(OptionBuilder.withLongOpt("stats").withDescription("Print the time spent in each phase and the line, segment and byte counts to standard error").create());
+		options.addOption(OptionBuilder.withLongOpt("interpolation").withDescription("Height between probe points: bilinear (default), bicubic or catmull-rom").hasArg().withArgName("method").create('i'));
 
 		int probeFeed = 100;
 		int probeDepth = -1;
 		int probeClearance = 2;
 		int probeSpacing = 10;
 		int finishHeight = 20;
+		int threads = 1;
+		double tolerance = 0;
+		double mergeTolerance = 0;
+		String interpolation = SurfaceInterpolator.BILINEAR;
 		File probeFile = null;
+		List<File> refinements = new ArrayList<File>();
 		File gCodeFile = null;
-		OutputStream out = System.out;
+		List<File> gCodeFiles = new ArrayList<File>();
+		boolean batch = false;
+		File outDir = null;
+		boolean stdin = false;
+		boolean printStats = false;
+		// not System.out, a PrintStream would hide write errors
+		OutputStream out = new FileOutputStream(FileDescriptor.out);
 
 		for (String arg : args) {
 			if (arg.endsWith("-h")) {
@@ -87,7 +115,37 @@ public class GCodeLeveller {
 			probeClearance = Integer.parseInt(line.getOptionValue('c', "2"));
 			probeSpacing = Integer.parseInt(line.getOptionValue('s', "10"));
 			finishHeight = Integer.parseInt(line.getOptionValue("height", "20"));
-			probeFile = new File(line.getOptionValue("p"));
+			threads = Integer.parseInt(line.getOptionValue('j', "1"));
+			printStats = line.hasOption("stats");
+			if (line.hasOption('t')) {
+				tolerance = Double.parseDouble(line.getOptionValue('t'));
+				if (!(tolerance > 0)) {
+					System.out.println("Argument error: tolerance must be positive");
+					helpMessage(options);
+					System.exit(0);
+				}
+			}
+			if (line.hasOption('m')) {
+				mergeTolerance = Double.parseDouble(line.getOptionValue('m'));
+				if (!(mergeTolerance > 0)) {
+					System.out.println("Argument error: merge distance must be positive");
+					helpMessage(options);
+					System.exit(0);
+				}
+			}
+			if (line.hasOption('i')) {
+				interpolation = line.getOptionValue('i');
+				if (!isInterpolation(interpolation)) {
+					System.out.println("Argument error: unknown interpolation '" + interpolation + "'");
+					helpMessage(options);
+					System.exit(0);
+				}
+			}
+			String[] probeFiles = line.getOptionValues('p');
+			probeFile = new File(probeFiles[0]);
+			for (int i = 1; i < probeFiles.length; i++) {
+				refinements.add(new File(probeFiles[i]));
+			}
 
 			@SuppressWarnings("rawtypes")
 			List argList = line.getArgList();
@@ -96,21 +154,52 @@ public class GCodeLeveller {
 				helpMessage(options);
 				System.exit(0);
 			}
-			if (argList.size() > 1) {
-				System.out.println("Argument error: only one gCodeFile can be specified");
-				helpMessage(options);
-				System.exit(0);
+			// more than one file or a directory levels them all in one go
+			batch = argList.size() > 1;
+			for (Object arg : argList) {
+				File file = new File((String) arg);
+				if (file.isDirectory()) {
+					batch = true;
+					gCodeFiles.addAll(listGCodeFiles(file));
+				} else {
+					gCodeFiles.add(file);
+				}
+			}
+			if (batch) {
+				if (gCodeFiles.isEmpty()) {
+					System.out.println("Argument error: no g-code files found");
+					helpMessage(options);
+					System.exit(0);
+				}
+				if (gCodeFiles.contains(new File("-"))) {
+					System.out.println("Argument error: stdin can only be levelled on its own");
+					helpMessage(options);
+					System.exit(0);
+				}
+				if (!line.hasOption('j')) {
+					threads = Runtime.getRuntime().availableProcessors();
+				}
+			}
+			gCodeFile = gCodeFiles.get(0);
+			stdin = !batch && gCodeFile.getPath().equals("-");
+			if (stdin) {
+				gCodeFile = new File("stdin");
+				if (threads > 1) {
+					System.out.println("Argument error: levelling in parallel needs a gCodeFile, not stdin");
+					helpMessage(options);
+					System.exit(0);
+				}
 			}
-			gCodeFile = new File((String) argList.get(0));
 
 			if (line.hasOption('D')) {
-				File outDir = new File(line.getOptionValue('D'));
+				outDir = new File(line.getOptionValue('D'));
 				if (!outDir.isDirectory()) {
 					System.out.println("Argument error: directory '" + line.getOptionValue('D') + "' does not exist");
 					helpMessage(options);
 					System.exit(0);
 				}
-
+			}
+			if (outDir != null && !batch) {
 				File probingFile = createFile(gCodeFile, outDir);
 				System.out.println("Creating levelled file at: " + probingFile.getCanonicalPath());
 				out = new FileOutputStream(probingFile);
@@ -120,23 +209,125 @@ public class GCodeLeveller {
 			System.out.println("Argument error:" + exp.getMessage());
 			helpMessage(options);
 			System.exit(0);
+		} catch (NumberFormatException exp) {
+			System.out.println("Argument error: " + exp.getMessage());
+			helpMessage(options);
+			System.exit(0);
 		}
 
-		GCodeBreaker gCodeBreaker = new GCodeBreaker(gCodeFile, 5);
-		Rectangle2D area = gCodeBreaker.getArea();
+		Stats.reset();
+		// the probe map already knows the bounds, so the g-code file is read only once
+		SimplePoint3DCNC[][] points = Probe.createProbePoints(Probe.readHeightMap(probeFile, refinements));
+		Rectangle2D area = Probe.getArea(points);
 		double x = area.getX();
 		double y = area.getY();
 		double width = area.getWidth();
 		double height = area.getHeight();
-		SimplePoint3DCNC[][] points = Probe.createProbePoints(probeFile);
 
-		Probe probe = Probe.createProbe(Probe.MILLIMETERS, x, y, width, height, probeFeed, probeDepth, probeSpacing, finishHeight, probeClearance, points);
-		Surface surface = new Surface(probe, gCodeBreaker);
-		surface.writeLeveledFile(new NoExponentWriter(new BufferedWriter(new PrintWriter(out))));
+		// a probing log does not say, it is taken to be in the units of the job
+		String mapUnits = Probe.readUnits(probeFile);
+		Probe probe = Probe.createProbe(mapUnits.isEmpty() ? Probe.MILLIMETERS : mapUnits, x, y, width, height, probeFeed, probeDepth, probeSpacing, finishHeight, probeClearance, points);
+		probe.setMapUnits(mapUnits);
+		probe.setInterpolation(interpolation);
+		// segmenters work in the units of the probe map, the options are in mm
+		double mapScale = Probe.INCHES.equals(mapUnits) ? 1 / 25.4 : 1;
+		Segmenter segmenter = tolerance > 0 ? new AdaptiveSegmenter(probe.getInterpolator(), tolerance * mapScale) : new UniformSegmenter(5 * mapScale);
+		if (batch) {
+			int failed = levelBatch(probe, segmenter, threads, mergeTolerance, gCodeFiles, outDir);
+			Stats.finish("GCodeLeveller", gCodeFiles.size() + " files", printStats);
+			if (failed > 0) {
+				System.exit(1);
+			}
+			return;
+		}
+		PrintWriter lvldFile = new NoExponentWriter(new BufferedWriter(new OutputStreamWriter(new CountingOutputStream(out))));
+		if (threads > 1) {
+			ParallelLeveller leveller = new ParallelLeveller(probe, gCodeFile, segmenter, threads);
+			leveller.setMergeTolerance(mergeTolerance);
+			leveller.writeLeveledFile(lvldFile);
+		} else {
+			// a single pass, the job area is that of the probe map
+			GCodeBreaker gCodeBreaker = stdin ? new GCodeBreaker(System.in, gCodeFile.getName(), segmenter, area) : new GCodeBreaker(gCodeFile,
+				segmenter, area);
+			Surface surface = new Surface(probe, gCodeBreaker);
+			surface.setMergeTolerance(mergeTolerance);
+			surface.level(lvldFile);
+		}
+		Stats.finish("GCodeLeveller", gCodeFile.getName(), printStats);
+
+	}
+
+	/**
+	 * Levels every file into its own levelled file, in outDir or next to the
+	 * file if outDir is null, and reports the time each took.
+	 *
+	 * @return the number of files that failed
+	 */
+	private static int levelBatch(Probe probe, Segmenter segmenter, int threads, double mergeTolerance, List<File> gCodeFiles, File outDir)
+		throws IOException {
+		List<File> outputs = new ArrayList<File>();
+		Set<File> taken = new HashSet<File>();
+		for (File gCodeFile : gCodeFiles) {
+			File output = createFile(gCodeFile, outDir != null ? outDir : gCodeFile.getAbsoluteFile().getParentFile(), taken);
+			taken.add(output);
+			outputs.add(output);
+		}
+		System.out.println("Levelling " + gCodeFiles.size() + " files on " + threads + " threads");
+		long start = System.nanoTime();
+		BatchLeveller leveller = new BatchLeveller(probe, segmenter, threads);
+		leveller.setMergeTolerance(mergeTolerance);
+		int failed = 0;
+		for (BatchLeveller.Result result : leveller.level(gCodeFiles, outputs)) {
+			System.out.println(result);
+			if (result.getError() != null) {
+				failed++;
+			}
+		}
+		System.out.println(String.format(Locale.US, "Levelled %d of %d files in %.2f s", gCodeFiles.size() - failed, gCodeFiles.size(),
+			(System.nanoTime() - start) / 1e9));
+		return failed;
+	}
+
+	/**
+	 * @return the g-code files in the directory, by name, leaving out files
+	 *         that have already been levelled
+	 */
+	private static List<File> listGCodeFiles(File dir) {
+		List<File> files = new ArrayList<File>();
+		File[] listed = dir.listFiles();
+		if (listed == null) {
+			return files;
+		}
+		Arrays.sort(listed);
+		for (File file : listed) {
+			String name = file.getName().toLowerCase(Locale.US);
+			if (!file.isFile() || name.contains("-levelled")) {
+				continue;
+			}
+			for (String suffix : GCODE_SUFFIXES) {
+				if (name.endsWith(suffix)) {
+					files.add(file);
+					break;
+				}
+			}
+		}
+		return files;
+	}
 
+	private static boolean isInterpolation(String name) {
+		return SurfaceInterpolator.BILINEAR.equalsIgnoreCase(name) || SurfaceInterpolator.BICUBIC.equalsIgnoreCase(name)
+			|| SurfaceInterpolator.CATMULL_ROM.equalsIgnoreCase(name);
 	}
 
 	private static File createFile(File gCodeFile, File outDir) {
+		return createFile(gCodeFile, outDir, Collections.<File> emptySet());
+	}
+
+	/**
+	 * @return a levelled file in outDir that does not exist yet and is not one
+	 *         of the taken files
+	 */
+	private static File createFile(File gCodeFile, File outDir, Set<File> taken) {
 		String gCodeFileName = gCodeFile.getName();
 		String name = gCodeFileName;
 		String suffix = "";
@@ -148,7 +339,7 @@ public class GCodeLeveller {
 
 		File probingFile = new File(outDir, name + "-Levelled" + suffix);
 		int i = 0;
-		while (probingFile.exists()) {
+		while (probingFile.exists() || taken.contains(probingFile)) {
 			i++;
 			probingFile = new File(outDir, name + "-Levelled_" + i + suffix);
 		}
@@ -157,7 +348,8 @@ public class GCodeLeveller {
 
 	private static void helpMessage(Options options) {
 		HelpFormatter help = new HelpFormatter();
-		help.printHelp(140, "GCodeLeveller [-D <dir>]  [-h] -p <probeFile> gCodeFile", "", options, "", true);
+		help.printHelp(140, "GCodeLeveller [-D <dir>] [-h] [-i <method>] [-j <n>] [-m <mm>] [--stats] [-t <mm>] -p <probeFile>... gCodeFile...",
+			"gCodeFile can be - to read standard input. Several files or a directory are levelled on a thread per file, each into its own levelled file", options, "", true);
 	}
 
 }
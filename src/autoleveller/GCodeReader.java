@@ -21,69 +21,127 @@
  */
 package autoleveller;
 
-import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
-import java.text.ParseException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import javax.swing.JOptionPane;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
 import javax.vecmath.Point3d;
 
-import autoleveller.probe.Probe;
+import autoleveller.stats.Stats;
 
 public class GCodeReader {
-	private DecimalFormatSymbols symbols = new DecimalFormatSymbols();
-	protected DecimalFormat localFormat = new DecimalFormat("#.#####");
-	private Pattern floatPt = Pattern.compile("-?[0-9]*[\\.,]?[0-9]+");
+	// positions reached by increments are rounded to this
+	private static final int INCREMENT_DECIMALS = 9;
+	// words of the line last passed to updateStateFromString
+	private GCodeTokenizer words = new GCodeTokenizer();
+	// used by the String helpers so they don't disturb the current words
+	private GCodeTokenizer scratchWords = new GCodeTokenizer();
 	// private Pattern _variable = Pattern.compile("#[1-9][0-9]*");
 	// private Pattern _varAssign = Pattern.compile(_variable.pattern() + "=" +
 	// _floatPt.pattern());
-	protected BufferedReader gCodeFile;
+	protected LineSource gCodeFile;
+	// line read ahead by peek, null if none
+	private String peeked;
 	private Rectangle2D area = new Rectangle2D.Double();
 	private File rawFile;
-	private Map<String, Long> storedStates = new HashMap<String, Long>();
+	private String name;
 	// private Map<String, Double> _storedVars = new HashMap<String, Double>();
-	private String currentGCode = null;
-	private long lineNumber = 0;
+	private ModalState modal = new ModalState();
+	// ModalState units of the probe map, see setMapUnits
+	private int mapUnits = ModalState.NONE;
+	// ReaderState axis bits of the axes any line has set, even to NaN
+	private int axesSet;
+	// cells cut in, filled as the file is read if set
+	private OccupancyMask occupancy;
+	private ArcLinearizer arcs;
+	// bound on first use, by the thread reading
+	private Stats.Recorder stats;
 
 	// The current state as per the line read up to
 	protected Point3d currentCoords = new Point3d(Double.NaN, Double.NaN, Double.NaN);
 
+	/**
+	 * Opens the file and pre-scans it once to find the job area, the file is then
+	 * reopened for the real pass.
+	 */
 	public GCodeReader(File gCodeFile) throws IOException {
+		this(gCodeFile, null);
+		createArea();
+	}
+
+	/**
+	 * Opens the file for a single pass without any pre-scan. The job area starts
+	 * as knownArea (if not null) and grows with every cutting point read, so it
+	 * covers the whole job once the file has been read to the end. The file is
+	 * read through a {@link MappedLineSource}.
+	 */
+	public GCodeReader(File gCodeFile, Rectangle2D knownArea) throws IOException {
+		this(open(gCodeFile), gCodeFile.getName(), knownArea);
+		rawFile = gCodeFile;
+	}
+
+	/**
+	 * Single pass reader of already opened g-code, e.g. one chunk of a bigger
+	 * file, see {@link #GCodeReader(File, Rectangle2D)}.
+	 */
+	public GCodeReader(BufferedReader gCodeReader, String name, Rectangle2D knownArea) {
+		this(new ReaderLineSource(gCodeReader), name, knownArea);
+	}
+
+	/**
+	 * Single pass reader of lines from any source, see
+	 * {@link #GCodeReader(File, Rectangle2D)}.
+	 */
+	public GCodeReader(LineSource lines, String name, Rectangle2D knownArea) {
+		this.gCodeFile = lines;
+		this.name = name;
+		if (knownArea != null) {
+			area.setRect(knownArea);
+		}
+	}
+
+	/**
+	 * Single pass reader of a stream, e.g. standard input, see
+	 * {@link #GCodeReader(File, Rectangle2D)}. Only the current line is kept,
+	 * so any length of g-code can be read in constant memory.
+	 */
+	public GCodeReader(InputStream gCodeStream, String name, Rectangle2D knownArea) {
+		this(new BufferedReader(new InputStreamReader(gCodeStream)), name, knownArea);
+	}
+
+	private static LineSource open(File gCodeFile) throws IOException {
 		if (!(gCodeFile.exists())) {
 			throw new IOException("file does not exist");
 		}
-		rawFile = gCodeFile;
-		this.gCodeFile = new BufferedReader(new FileReader(gCodeFile));
-		symbols.setDecimalSeparator('.');
-		symbols.setGroupingSeparator(',');
-		localFormat.setDecimalFormatSymbols(symbols);
-		createArea();
+		return new MappedLineSource(gCodeFile);
 	}
 
 	public File getOriginalFile() {
 		return rawFile;
 	}
 
+	public String getName() {
+		return name;
+	}
+
 	private void createArea() throws IOException {
+		long start = System.nanoTime();
+		long lines = 0;
 		while (readThisLine() != null) {
-			if (gotAllPoints() && currentCoords.getZ() < 0) {
-				area.add(new Point2D.Double(currentCoords.getX(), currentCoords.getY()));
-			}
+			lines++;
 		}
+		getStats().time(Stats.SCAN, System.nanoTime() - start);
+		getStats().add(Stats.SCANNED_LINES, lines);
 		gCodeFile.close();
-		gCodeFile = new BufferedReader(new FileReader(rawFile));
+		gCodeFile = open(rawFile);
+		peeked = null;
 		currentCoords = new Point3d(Double.NaN, Double.NaN, Double.NaN);
+		axesSet = 0;
+		modal = new ModalState();
+		modal.setMapUnits(mapUnits);
 	}
 
 	protected boolean gotAllPoints() {
@@ -102,131 +160,248 @@ public class GCodeReader {
 	}
 
 	public double getDoubleFromChar(String line, char charToFind) {
-		String result;
-		result = getStringDoubleFromChar(line, charToFind);
-		result = result.contains(",") ? result.replaceAll(",", ".") : result;
-		if (result != "") {
-			try {
-				return localFormat.parse(result).doubleValue();
-			} catch (ParseException e) {
-				JOptionPane.showMessageDialog(null, "parse error");
-			}
-		}
-		return Double.NaN;
+		scratchWords.tokenize(line);
+		return scratchWords.getValue(charToFind);
 	}
 
 	public boolean doesContain(String line, char charToFind) {
-		String upperLine = line.toUpperCase();
-		if (Double.isNaN(getDoubleFromChar(upperLine, charToFind)))
-			return false;
-
-		return true;
+		scratchWords.tokenize(line);
+		return scratchWords.contains(charToFind);
 	}
 
 	protected String getStringDoubleFromChar(String line, char charToFind) {
-		if (getAllStringDoubleFromChar(line, charToFind).size() > 0)
-			return getAllStringDoubleFromChar(line, charToFind).get(0);
-
-		return "";
-	}
-
-	private ArrayList<String> getAllStringDoubleFromChar(String line, char charToFind) {
-		String upperString = line.toUpperCase();
-		upperString = upperString.replaceAll("\\s", "");
-		Matcher floatMatcher = floatPt.matcher(upperString);
-		ArrayList<String> foundFloats = new ArrayList<String>();
-
-		// Pattern varNotAssign = Pattern.compile(_variable.pattern() +
-		// "(?!=)");
-		// Matcher varMatcher = varNotAssign.matcher(upperString);
-		//
-		// while (varMatcher.find())
-		// {
-		// if ((upperString.charAt(varMatcher.start()-1) == charToFind) &&
-		// (_storedVars.containsKey(upperString.substring(varMatcher.start(),
-		// varMatcher.end()))))
-		// foundFloats.add(_storedVars.get(upperString.substring(varMatcher.start(),
-		// varMatcher.end())).toString());
-		// }
-
-		while (floatMatcher.find()) {
-			// if the character before the match is 'charToFind'
-			if (upperString.charAt(floatMatcher.start() - 1) == charToFind) {
-				foundFloats.add(upperString.substring(floatMatcher.start(), floatMatcher.end()));
-			}
-		}
+		scratchWords.tokenize(line);
+		return scratchWords.getValueText(charToFind);
+	}
 
-		// searched whole string and didnt find what we wanted
-		return foundFloats;
+	/**
+	 * @return the words of the line last read, valid until the next line is read
+	 */
+	public GCodeTokenizer getCurrentWords() {
+		return words;
 	}
 
 	public String readNextLine() throws IOException {
+		CharSequence line = readNext();
+		return line == null ? null : line.toString();
+	}
+
+	/**
+	 * Like {@link #readNextLine()}, but the line may be a view that is only
+	 * valid until the next line is read, so no String needs to be made for it.
+	 */
+	public CharSequence readNext() throws IOException {
 		return readThisLine();
 	}
 
-	private String readThisLine() throws IOException {
-		String line = gCodeFile.readLine();
+	private CharSequence readThisLine() throws IOException {
+		CharSequence line = readRawLine();
 		if (line == null) {
 			return null;
 		}
-		String upperLine = line.toUpperCase();
-		updateStateFromString(upperLine);
+		acceptLine(line);
 
 		return line;
 	}
 
-	public Point3d getCurrentCoords() {
-		return currentCoords;
+	/**
+	 * Updates the state and the job area from a line that is passed on.
+	 */
+	protected void acceptLine(CharSequence line) {
+		if (occupancy == null) {
+			updateStateFromString(line);
+			addToArea();
+			return;
+		}
+		double fromX = currentCoords.getX();
+		double fromY = currentCoords.getY();
+		double fromZ = currentCoords.getZ();
+		updateStateFromString(line);
+		addToArea();
+		addToOccupancy(fromX, fromY, fromZ);
 	}
 
-	private void recordState(String line) {
-		ArrayList<String> mCodes = getAllStringDoubleFromChar(line, 'M');
-		ArrayList<String> gCodes = getAllStringDoubleFromChar(line, 'G');
+	private void addToArea() {
+		if (gotAllPoints() && currentCoords.getZ() < 0) {
+			double scale = modal.getScale();
+			area.add(currentCoords.getX() * scale, currentCoords.getY() * scale);
+		}
+	}
 
-		for (String mCode : mCodes) {
-			if (!mCode.equals("")) {
-				storedStates.put("M" + mCode, lineNumber);
+	/**
+	 * Marks the cells the move just read cuts through, a move cuts if it starts
+	 * or ends below Z0. Arcs in the XY plane are followed to within a quarter
+	 * of a cell. The mask is in the units the file started in.
+	 */
+	private void addToOccupancy(double fromX, double fromY, double fromZ) {
+		if (!gotAllPoints() || modal.isAxisCommand()) {
+			return;
+		}
+		double scale = modal.getScale();
+		fromX *= scale;
+		fromY *= scale;
+		double toX = currentCoords.getX() * scale;
+		double toY = currentCoords.getY() * scale;
+		if (Double.isNaN(fromX) || Double.isNaN(fromY) || Double.isNaN(fromZ)) {
+			if (currentCoords.getZ() < 0) {
+				occupancy.addPoint(toX, toY);
 			}
+			return;
 		}
-
-		for (String gCode : gCodes) {
-			if (!gCode.equals("")) {
-				storedStates.put("G" + gCode, lineNumber);
-				currentGCode = ("G" + gCode);
+		if (!(fromZ < 0 || currentCoords.getZ() < 0) || (fromZ < 0 && fromX == toX && fromY == toY)) {
+			// not cutting, or only moving Z where the last move already cut
+			return;
+		}
+		int chords = 0;
+		if (modal.isArc() && modal.getPlane() == 17 && (words.contains('X') || words.contains('Y'))) {
+			boolean clockwise = modal.isClockwise();
+			double tolerance = occupancy.getCellSize() / 4;
+			if (words.contains('R')) {
+				chords = arcs.linearizeRadius(fromX, fromY, toX, toY, words.getValue('R') * scale, clockwise, tolerance);
+			} else if (words.contains('I') || words.contains('J')) {
+				double i = words.contains('I') ? words.getValue('I') * scale : 0;
+				double j = words.contains('J') ? words.getValue('J') * scale : 0;
+				chords = arcs.linearize(fromX, fromY, toX, toY, fromX + i, fromY + j, clockwise, tolerance);
 			}
 		}
+		if (chords == 0) {
+			occupancy.addMove(fromX, fromY, toX, toY);
+			return;
+		}
+		for (int chord = 0; chord < chords; chord++) {
+			occupancy.addMove(fromX, fromY, arcs.getX(chord), arcs.getY(chord));
+			fromX = arcs.getX(chord);
+			fromY = arcs.getY(chord);
+		}
+	}
+
+	/**
+	 * Records the cells the job cuts in into the mask while the file is read,
+	 * null to stop recording.
+	 */
+	public void setOccupancyMask(OccupancyMask occupancy) {
+		this.occupancy = occupancy;
+		if (occupancy != null && arcs == null) {
+			arcs = new ArcLinearizer();
+		}
+	}
+
+	public OccupancyMask getOccupancyMask() {
+		return occupancy;
 	}
 
-	protected boolean isCurrentMoveLinear() {
-		String upperGCode = currentGCode.toUpperCase();
-		return ((upperGCode.equals("G0")) || (upperGCode.equals("G00")) || (upperGCode.equals("G01")) || (upperGCode
-				.equals("G1")));
+	public Point3d getCurrentCoords() {
+		return currentCoords;
+	}
 
+	/**
+	 * @return the modal state as per the line read up to
+	 */
+	public ModalState getModalState() {
+		return modal;
 	}
 
-	public Map<String, Long> getState() {
-		return storedStates;
+	ReaderState saveState() {
+		return new ReaderState(currentCoords.getX(), currentCoords.getY(), currentCoords.getZ(), axesSet, modal);
 	}
 
-	public void updateStateFromString(String upperLine) {
-		lineNumber++;
+	/**
+	 * Continues from a saved state, as if the lines leading to it had just been
+	 * read.
+	 */
+	void restoreState(ReaderState state) {
+		currentCoords.set(state.x, state.y, state.z);
+		axesSet = state.axesSet;
+		modal.set(state.modal);
+		modal.setMapUnits(mapUnits);
+	}
+
+	/**
+	 * Sets the units of the probe map the file is read against, see
+	 * {@link ModalState#setMapUnits(int)}. The job area and the scale of the
+	 * modal state are then in those units.
+	 */
+	public void setMapUnits(int mapUnits) {
+		this.mapUnits = mapUnits;
+		modal.setMapUnits(mapUnits);
+	}
+
+	/**
+	 * @return the stats recorder of the thread reading
+	 */
+	protected Stats.Recorder getStats() {
+		if (stats == null) {
+			stats = Stats.recorder();
+		}
+		return stats;
+	}
+
+	public void updateStateFromString(CharSequence line) {
+		Stats.Recorder stats = getStats();
+		long start = stats.start(Stats.PARSE);
 		// add all variables
 		// addVarsFromLine(upperLine);
-		// strip comments to avoid confusion when a comment exists at the end of
-		// a non-comment line
-		stripComments(upperLine);
+		// the tokenizer skips comments so a comment at the end of a
+		// non-comment line can't cause confusion
+		words.tokenize(line);
 		// get machine states
-		recordState(upperLine);
+		int units = modal.getUnits();
+		modal.update(words);
+		if (units != modal.getUnits() && units != ModalState.NONE) {
+			// the position is kept in the current units
+			currentCoords.scale(modal.isInches() ? 1 / 25.4 : 25.4);
+		}
 
-		double xValue = getDoubleFromChar(upperLine, 'X');
-		double yValue = getDoubleFromChar(upperLine, 'Y');
-		double zValue = getDoubleFromChar(upperLine, 'Z');
-		if (!Double.isNaN(xValue))
-			currentCoords.setX(xValue);
-		if (!Double.isNaN(yValue))
-			currentCoords.setY(yValue);
-		if (!Double.isNaN(zValue))
-			currentCoords.setZ(zValue);
+		double xValue = words.getValue('X');
+		double yValue = words.getValue('Y');
+		double zValue = words.getValue('Z');
+		switch (modal.getNonModal()) {
+		case ModalState.SET_OFFSETS:
+			break;
+		case ModalState.GO_HOME:
+		case ModalState.GO_SECOND_HOME:
+			// ends at a stored machine position
+			currentCoords.set(Double.NaN, Double.NaN, Double.NaN);
+			axesSet = ReaderState.ALL_AXES;
+			break;
+		case ModalState.MACHINE_COORDINATES:
+			// the work position of the axes moved is no longer known
+			if (!Double.isNaN(xValue))
+				currentCoords.setX(Double.NaN);
+			if (!Double.isNaN(yValue))
+				currentCoords.setY(Double.NaN);
+			if (!Double.isNaN(zValue))
+				currentCoords.setZ(Double.NaN);
+			axesSet |= axes(xValue, yValue, zValue);
+			break;
+		default:
+			// G92 names the current position, always absolute
+			boolean incremental = modal.isIncremental() && modal.getNonModal() != ModalState.SET_POSITION;
+			if (!Double.isNaN(xValue))
+				currentCoords.setX(incremental ? add(currentCoords.getX(), xValue) : xValue);
+			if (!Double.isNaN(yValue))
+				currentCoords.setY(incremental ? add(currentCoords.getY(), yValue) : yValue);
+			if (!Double.isNaN(zValue))
+				currentCoords.setZ(incremental ? add(currentCoords.getZ(), zValue) : zValue);
+			axesSet |= axes(xValue, yValue, zValue);
+		}
+		stats.stop(Stats.PARSE, start);
+	}
+
+	/**
+	 * @return the ReaderState axis bits of the values given
+	 */
+	private static int axes(double xValue, double yValue, double zValue) {
+		return (Double.isNaN(xValue) ? 0 : ReaderState.X_AXIS) | (Double.isNaN(yValue) ? 0 : ReaderState.Y_AXIS)
+			| (Double.isNaN(zValue) ? 0 : ReaderState.Z_AXIS);
+	}
+
+	/**
+	 * @return the position after an increment, rounded so that summing
+	 *         increments lands on the values an absolute file would give
+	 */
+	private static double add(double position, double increment) {
+		return FixedPointFormat.round(position + increment, INCREMENT_DECIMALS);
 	}
 
 	public static String stripComments(String gCodeLine) {
@@ -238,20 +413,29 @@ public class GCodeReader {
 		return gCodeLine.replace(outerMostComment, "").trim();
 	}
 
+	/**
+	 * @return the next line without reading it, null at the end. The line
+	 *         last returned by {@link #readNext()} is no longer valid.
+	 */
 	public String peek() throws IOException {
-		gCodeFile.mark(1000);
-		String retString = gCodeFile.readLine();
-		gCodeFile.reset();
-		return retString;
+		if (peeked == null) {
+			CharSequence line = gCodeFile.readLine();
+			peeked = line == null ? null : line.toString();
+		}
+		return peeked;
 	}
 
-	public static String getUnits(Map<String, Long> state) {
-		if (state.containsKey("G21"))
-			return Probe.MILLIMETERS;
-		else if (state.containsKey("G20"))
-			return Probe.INCHES;
-
-		return "";
+	/**
+	 * @return the next line of the g-code as it is, without updating the state,
+	 *         valid until the next line is read
+	 */
+	protected CharSequence readRawLine() throws IOException {
+		if (peeked != null) {
+			String line = peeked;
+			peeked = null;
+			return line;
+		}
+		return gCodeFile.readLine();
 	}
 
 	public void close() throws IOException {
@@ -0,0 +1,286 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller;
+
+import java.util.Arrays;
+
+/**
+ * Splits a g-code block into letter/value words in one pass over the
+ * characters. Letters are upper cased, values are parsed straight into
+ * doubles and comments are skipped. G and M codes are also decoded to ints,
+ * see {@link #getCode(int)}. The word arrays are reused between lines, so
+ * tokenizing does not allocate once the arrays are big enough.
+ */
+public class GCodeTokenizer {
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13,
+		1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+	// largest mantissa that is still exact as a double
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+	private CharSequence line = "";
+	private int size;
+	private char[] letters = new char[16];
+	private double[] values = new double[16];
+	private int[] codes = new int[16];
+	private int[] wordStarts = new int[16];
+	private int[] valueStarts = new int[16];
+	private int[] valueEnds = new int[16];
+
+	/**
+	 * Tokenizes the line, replacing the words of the previous line.
+	 *
+	 * @return the number of words found
+	 */
+	public int tokenize(CharSequence line) {
+		this.line = line;
+		size = 0;
+		int length = line.length();
+		int i = 0;
+		while (i < length) {
+			char c = line.charAt(i);
+			if (c == '(') {
+				// skip the comment, an unterminated comment runs to the end of the line
+				while (i < length && line.charAt(i) != ')') {
+					i++;
+				}
+				i++;
+				continue;
+			}
+			if (c == ';') {
+				break;
+			}
+			char letter = toUpper(c);
+			if (letter >= 'A' && letter <= 'Z') {
+				int valueStart = skipSpaces(i + 1, length);
+				int valueEnd = scanNumber(valueStart, length);
+				if (valueEnd > valueStart) {
+					addWord(letter, i, valueStart, valueEnd);
+					i = valueEnd;
+					continue;
+				}
+			}
+			i++;
+		}
+		return size;
+	}
+
+	public CharSequence getLine() {
+		return line;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public char getLetter(int index) {
+		return letters[index];
+	}
+
+	public double getValue(int index) {
+		return values[index];
+	}
+
+	/**
+	 * @return the value of a G or M word times ten, e.g. 382 for G38.2, so
+	 *         codes can be switched on; 0 for other letters
+	 */
+	public int getCode(int index) {
+		return codes[index];
+	}
+
+	/**
+	 * @return the value of the first word with the letter or NaN if the letter is
+	 *         not in the line
+	 */
+	public double getValue(char letter) {
+		int index = indexOf(letter);
+		return index < 0 ? Double.NaN : values[index];
+	}
+
+	public int indexOf(char letter) {
+		return indexOf(letter, 0);
+	}
+
+	public int indexOf(char letter, int fromIndex) {
+		for (int i = fromIndex; i < size; i++) {
+			if (letters[i] == letter) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public boolean contains(char letter) {
+		return indexOf(letter) >= 0;
+	}
+
+	/**
+	 * @return the position of the word letter in the line
+	 */
+	public int getWordStart(int index) {
+		return wordStarts[index];
+	}
+
+	public int getValueStart(int index) {
+		return valueStarts[index];
+	}
+
+	public int getValueEnd(int index) {
+		return valueEnds[index];
+	}
+
+	/**
+	 * @return the value as written in the line
+	 */
+	public String getValueText(int index) {
+		return line.subSequence(valueStarts[index], valueEnds[index]).toString();
+	}
+
+	/**
+	 * @return the value of the first word with the letter as written in the line or
+	 *         an empty string if the letter is not in the line
+	 */
+	public String getValueText(char letter) {
+		int index = indexOf(letter);
+		return index < 0 ? "" : getValueText(index);
+	}
+
+	private void addWord(char letter, int wordStart, int valueStart, int valueEnd) {
+		if (size == letters.length) {
+			int newLength = size * 2;
+			letters = Arrays.copyOf(letters, newLength);
+			values = Arrays.copyOf(values, newLength);
+			codes = Arrays.copyOf(codes, newLength);
+			wordStarts = Arrays.copyOf(wordStarts, newLength);
+			valueStarts = Arrays.copyOf(valueStarts, newLength);
+			valueEnds = Arrays.copyOf(valueEnds, newLength);
+		}
+		letters[size] = letter;
+		values[size] = parseDouble(line, valueStart, valueEnd);
+		codes[size] = letter == 'G' || letter == 'M' ? (int) Math.round(values[size] * 10) : 0;
+		wordStarts[size] = wordStart;
+		valueStarts[size] = valueStart;
+		valueEnds[size] = valueEnd;
+		size++;
+	}
+
+	private int skipSpaces(int i, int length) {
+		while (i < length && isSpace(line.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @return the end of the number starting at start, or start if there is no
+	 *         number
+	 */
+	private int scanNumber(int start, int length) {
+		int i = start;
+		if (i < length && (line.charAt(i) == '-' || line.charAt(i) == '+')) {
+			i = skipSpaces(i + 1, length);
+		}
+		boolean digits = false;
+		while (i < length && isDigit(line.charAt(i))) {
+			i++;
+			digits = true;
+		}
+		if (i < length && isDecimalSeparator(line.charAt(i))) {
+			int fractionStart = i + 1;
+			int j = fractionStart;
+			while (j < length && isDigit(line.charAt(j))) {
+				j++;
+			}
+			if (digits || j > fractionStart) {
+				return j;
+			}
+		}
+		return digits ? i : start;
+	}
+
+	/**
+	 * Parses a number as written in g-code, i.e. an optional sign followed by
+	 * digits with an optional '.' or ',' decimal separator. Short numbers are
+	 * parsed exactly without allocating, longer ones fall back to
+	 * {@link Double#parseDouble(String)}.
+	 */
+	public static double parseDouble(CharSequence text, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		char c = text.charAt(i);
+		if (c == '-' || c == '+') {
+			negative = c == '-';
+			i++;
+			while (i < end && isSpace(text.charAt(i))) {
+				i++;
+			}
+		}
+		long mantissa = 0;
+		int fractionDigits = 0;
+		boolean fraction = false;
+		for (; i < end; i++) {
+			c = text.charAt(i);
+			if (isDecimalSeparator(c)) {
+				fraction = true;
+				continue;
+			}
+			mantissa = mantissa * 10 + (c - '0');
+			if (mantissa >= MAX_EXACT_MANTISSA) {
+				return parseSlow(text, start, end);
+			}
+			if (fraction) {
+				fractionDigits++;
+			}
+		}
+		if (fractionDigits >= POWERS_OF_TEN.length) {
+			return parseSlow(text, start, end);
+		}
+		double value = mantissa / POWERS_OF_TEN[fractionDigits];
+		return negative ? -value : value;
+	}
+
+	private static double parseSlow(CharSequence text, int start, int end) {
+		StringBuilder number = new StringBuilder(end - start);
+		for (int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			if (!isSpace(c)) {
+				number.append(c == ',' ? '.' : c);
+			}
+		}
+		return Double.parseDouble(number.toString());
+	}
+
+	private static char toUpper(char c) {
+		return (c >= 'a' && c <= 'z') ? (char) (c - ('a' - 'A')) : c;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isDecimalSeparator(char c) {
+		return c == '.' || c == ',';
+	}
+
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t';
+	}
+}
@@ -0,0 +1,177 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+import autoleveller.sender.GrblEmulator;
+import autoleveller.sender.GrblStreamer;
+import autoleveller.sender.SerialPortTransport;
+import autoleveller.sender.Transport;
+
+/**
+ * Streams a g-code file, e.g. a levelled one, to GRBL on a serial port with
+ * the character counting protocol, or to the built in GRBL emulator.
+ */
+public class GrblSender {
+
+	@SuppressWarnings("static-access")
+	public static void main(String[] args) throws IOException {
+		CommandLineParser parser = new PosixParser();
+
+		Options options = new Options();
+		options.addOption("h", "help", false, "This message");
+		options.addOption(OptionBuilder.withLongOpt("port").withDescription("Serial port of GRBL, e.g. /dev/ttyUSB0").hasArg().withArgName("device").create('p'));
+		options.addOption(OptionBuilder.withLongOpt("baud").withDescription("Baud rate (default " + SerialPortTransport.DEFAULT_BAUD_RATE + ")").hasArg().withArgName("rate").create('b'));
+		options.addOption(OptionBuilder.withLongOpt("emulate").withDescription("Stream to the built in GRBL emulator instead of a serial port").create('e'));
+		options.addOption(OptionBuilder.withLongOpt("status").withDescription("Milliseconds between status queries, 0 for none (default " + GrblStreamer.DEFAULT_STATUS_INTERVAL + ")").hasArg().withArgName("ms").create('s'));
+		options.addOption(OptionBuilder.withLongOpt("rx-buffer").withDescription("Size of the GRBL receive buffer (default " + GrblStreamer.RX_BUFFER_SIZE + ")").hasArg().withArgName("bytes").create('r'));
+		options.addOption(OptionBuilder.withLongOpt("timeout").withDescription("Milliseconds to wait for the GRBL welcome message after opening the port, 0 to start at once (default " + GrblStreamer.DEFAULT_WELCOME_TIMEOUT + ")").hasArg().withArgName("ms").create('t'));
+		options.addOption(OptionBuilder.withLongOpt("wait").withDescription("Wait for each ok before sending the next block instead of counting characters").create('w'));
+		options.addOption(OptionBuilder.withLongOpt("verbose").withDescription("Print status reports and messages from GRBL").create('v'));
+
+		String port = null;
+		int baudRate = SerialPortTransport.DEFAULT_BAUD_RATE;
+		boolean emulate = false;
+		long statusInterval = GrblStreamer.DEFAULT_STATUS_INTERVAL;
+		int rxBufferSize = GrblStreamer.RX_BUFFER_SIZE;
+		long welcomeTimeout = GrblStreamer.DEFAULT_WELCOME_TIMEOUT;
+		boolean characterCounting = true;
+		boolean verbose = false;
+		File gCodeFile = null;
+
+		for (String arg : args) {
+			if (arg.endsWith("-h")) {
+				helpMessage(options);
+				System.exit(0);
+			}
+		}
+
+		try {
+			CommandLine line = parser.parse(options, args);
+
+			if (line.hasOption('h')) {
+				helpMessage(options);
+				System.exit(0);
+			}
+
+			emulate = line.hasOption('e');
+			port = line.getOptionValue('p');
+			if (emulate == (port != null)) {
+				System.out.println("Argument error: either a serial port or the emulator must be specified");
+				helpMessage(options);
+				System.exit(0);
+			}
+			baudRate = Integer.parseInt(line.getOptionValue('b', String.valueOf(SerialPortTransport.DEFAULT_BAUD_RATE)));
+			statusInterval = Long.parseLong(line.getOptionValue('s', String.valueOf(GrblStreamer.DEFAULT_STATUS_INTERVAL)));
+			rxBufferSize = Integer.parseInt(line.getOptionValue('r', String.valueOf(GrblStreamer.RX_BUFFER_SIZE)));
+			welcomeTimeout = Long.parseLong(line.getOptionValue('t', String.valueOf(GrblStreamer.DEFAULT_WELCOME_TIMEOUT)));
+			if (statusInterval < 0 || rxBufferSize < 2 || welcomeTimeout < 0) {
+				System.out.println("Argument error: status interval, receive buffer and timeout must be positive");
+				helpMessage(options);
+				System.exit(0);
+			}
+			characterCounting = !line.hasOption('w');
+			verbose = line.hasOption('v');
+
+			@SuppressWarnings("rawtypes")
+			List argList = line.getArgList();
+			if (argList.size() != 1) {
+				System.out.println("Argument error: one gCodeFile must be specified");
+				helpMessage(options);
+				System.exit(0);
+			}
+			gCodeFile = new File((String) argList.get(0));
+			if (!gCodeFile.isFile()) {
+				System.out.println("Argument error: gCodeFile '" + gCodeFile + "' does not exist");
+				helpMessage(options);
+				System.exit(0);
+			}
+		} catch (ParseException exp) {
+			System.out.println("Argument error:" + exp.getMessage());
+			helpMessage(options);
+			System.exit(0);
+		} catch (NumberFormatException exp) {
+			System.out.println("Argument error: " + exp.getMessage());
+			helpMessage(options);
+			System.exit(0);
+		}
+
+		GrblEmulator emulator = null;
+		Transport transport;
+		if (emulate) {
+			emulator = new GrblEmulator(rxBufferSize, 0, 0);
+			transport = emulator.start();
+		} else {
+			transport = new SerialPortTransport(port, baudRate);
+		}
+		GrblStreamer streamer = new GrblStreamer(transport);
+		streamer.setRxBufferSize(rxBufferSize);
+		streamer.setStatusInterval(statusInterval);
+		streamer.setWelcomeTimeout(welcomeTimeout);
+		streamer.setCharacterCounting(characterCounting);
+		if (verbose) {
+			streamer.setListener(new GrblStreamer.Listener() {
+				@Override
+				public void status(String report) {
+					System.out.println(report);
+				}
+
+				@Override
+				public void message(String line) {
+					System.out.println(line);
+				}
+			});
+		}
+		BufferedReader gCode = new BufferedReader(new FileReader(gCodeFile));
+		try {
+			streamer.stream(gCode);
+		} finally {
+			gCode.close();
+			streamer.close();
+			if (emulator != null) {
+				emulator.close();
+			}
+		}
+		for (String error : streamer.getErrors()) {
+			System.out.println(error);
+		}
+		System.out.println(streamer);
+	}
+
+	private static void helpMessage(Options options) {
+		HelpFormatter help = new HelpFormatter();
+		help.printHelp(140, "GrblSender [-b <rate>] [-h] [-r <bytes>] [-s <ms>] [-t <ms>] [-v] [-w] (-p <device> | -e) gCodeFile", "", options, "", true);
+	}
+
+}
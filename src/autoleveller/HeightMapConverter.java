@@ -0,0 +1,169 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+import autoleveller.probe.HeightMap;
+import autoleveller.probe.HeightMapFile;
+import autoleveller.probe.Probe;
+import autoleveller.probe.ProbeLog;
+
+/**
+ * Converts a GRBL probing log into a binary height map file, which
+ * GCodeLeveller loads in place of the log without parsing it again. The logs
+ * of refinement probings can follow the first log, they are merged into one
+ * height map.
+ */
+public class HeightMapConverter {
+
+	@SuppressWarnings("static-access")
+	public static void main(String[] args) throws IOException {
+		CommandLineParser parser = new PosixParser();
+
+		Options options = new Options();
+		options.addOption("h", "help", false, "This message");
+		options.addOption(OptionBuilder.withDescription("Height map file, default is the probe log with the suffix " + HeightMapFile.SUFFIX).hasArg().withArgName("file").create('o'));
+		options.addOption(OptionBuilder.withDescription("Units of the probe log, mm (default unless the layout has units) or inch").hasArg().withArgName("units").create('u'));
+		options.addOption(OptionBuilder.withDescription("Positions closer than this are the same column or row (default " + ProbeLog.DEFAULT_TOLERANCE + ")").hasArg().withArgName("tolerance").create('t'));
+		options.addOption(OptionBuilder.withLongOpt("float").withDescription("Store the heights as floats, half the size").create('f'));
+		options.addOption(OptionBuilder.withLongOpt("layout").withDescription("Height map layout written with a sparse probing program, the probe log is read onto its grid").hasArg().withArgName("file").create('l'));
+
+		File probeFile = null;
+		List<File> refinements = new ArrayList<File>();
+		File heightMapFile = null;
+		String units = Probe.MILLIMETERS;
+		double tolerance = ProbeLog.DEFAULT_TOLERANCE;
+		boolean floats = false;
+		HeightMapFile layout = null;
+
+		for (String arg : args) {
+			if (arg.endsWith("-h")) {
+				helpMessage(options);
+				System.exit(0);
+			}
+		}
+
+		try {
+			CommandLine line = parser.parse(options, args);
+
+			if (line.hasOption('h')) {
+				helpMessage(options);
+				System.exit(0);
+			}
+
+			@SuppressWarnings("rawtypes")
+			List argList = line.getArgList();
+			if (argList.size() == 0) {
+				System.out.println("Argument error: a probe log must be specified");
+				helpMessage(options);
+				System.exit(0);
+			}
+			for (Object arg : argList) {
+				File file = new File((String) arg);
+				if (!file.isFile()) {
+					System.out.println("Argument error: probe log '" + file + "' does not exist");
+					helpMessage(options);
+					System.exit(0);
+				}
+				if (probeFile == null) {
+					probeFile = file;
+				} else {
+					refinements.add(file);
+				}
+			}
+
+			if (line.hasOption('o')) {
+				heightMapFile = new File(line.getOptionValue('o'));
+			} else {
+				String name = probeFile.getName();
+				int indexOf = name.lastIndexOf('.');
+				if (indexOf > 0) {
+					name = name.substring(0, indexOf);
+				}
+				heightMapFile = new File(probeFile.getAbsoluteFile().getParentFile(), name + HeightMapFile.SUFFIX);
+			}
+
+			if (line.hasOption('l')) {
+				File layoutFile = new File(line.getOptionValue('l'));
+				if (!layoutFile.isFile() || !HeightMapFile.isHeightMapFile(layoutFile)) {
+					System.out.println("Argument error: layout '" + layoutFile + "' is not a height map file");
+					helpMessage(options);
+					System.exit(0);
+				}
+				layout = HeightMapFile.read(layoutFile);
+				if (!layout.getUnits().isEmpty()) {
+					units = layout.getUnits();
+				}
+			}
+
+			if (line.hasOption('u') || layout == null) {
+				String unit = line.getOptionValue('u', "mm");
+				if (unit.equalsIgnoreCase("inch")) {
+					units = Probe.INCHES;
+				} else if (!unit.equalsIgnoreCase("mm")) {
+					System.out.println("Argument error: units must be mm or inch");
+					helpMessage(options);
+					System.exit(0);
+				}
+			}
+			tolerance = Double.parseDouble(line.getOptionValue('t', String.valueOf(ProbeLog.DEFAULT_TOLERANCE)));
+			floats = line.hasOption('f');
+		} catch (ParseException exp) {
+			System.out.println("Argument error:" + exp.getMessage());
+			helpMessage(options);
+			System.exit(0);
+		} catch (NumberFormatException exp) {
+			System.out.println("Argument error: " + exp.getMessage());
+			helpMessage(options);
+			System.exit(0);
+		}
+
+		HeightMap heightMap = layout != null ? ProbeLog.read(probeFile, layout.getHeightMap()) : ProbeLog.read(probeFile, tolerance);
+		if (!refinements.isEmpty()) {
+			// the refined grid no longer matches the layout mask
+			heightMap = ProbeLog.refine(heightMap, refinements, tolerance);
+			HeightMapFile.write(heightMapFile, heightMap, units, floats);
+		} else if (layout != null) {
+			HeightMapFile.write(heightMapFile, heightMap, units, floats, layout.getProbedPoints());
+		} else {
+			HeightMapFile.write(heightMapFile, heightMap, units, floats);
+		}
+		System.out.println("Wrote " + heightMap.getColumns() + " x " + heightMap.getRows() + " height map to: " + heightMapFile.getCanonicalPath());
+	}
+
+	private static void helpMessage(Options options) {
+		HelpFormatter help = new HelpFormatter();
+		help.printHelp(140, "HeightMapConverter [-f] [-h] [-l <file>] [-o <file>] [-t <tolerance>] [-u <units>] probeLog [refinementLog...]", "", options, "", true);
+	}
+
+}
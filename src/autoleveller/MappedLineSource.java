@@ -0,0 +1,222 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Lines of a file read straight from its memory mapped bytes. The mapping is
+ * copied a block at a time into a byte array, line ends are found by scanning
+ * the bytes, and a line of ASCII is returned as a view of the array that is
+ * reused for every line, so reading neither decodes nor creates a String. Only
+ * lines with other bytes are decoded, with the default charset like a
+ * FileReader. The file is mapped a window at a time, so any size can be read.
+ * Lines end at "\n", "\r\n" or "\r", as for
+ * {@link java.io.BufferedReader#readLine()}.
+ */
+public class MappedLineSource implements LineSource {
+	public static final int DEFAULT_WINDOW_SIZE = 1 << 28;
+	private static final int BLOCK_SIZE = 1 << 16;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long end;
+	private final int windowSize;
+	private final Charset charset = Charset.defaultCharset();
+	private final Line line = new Line();
+	private MappedByteBuffer window;
+	// position in the file of the start of the window
+	private long windowStart;
+	// position in the file of the next byte to copy
+	private long next;
+	private byte[] buffer = new byte[BLOCK_SIZE];
+	// unread bytes of the buffer
+	private int start;
+	private int limit;
+	// the last line ended with a '\r' at the end of the buffer
+	private boolean skipLineFeed;
+
+	public MappedLineSource(File file) throws IOException {
+		this(file, 0, Long.MAX_VALUE, DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * Reads the bytes from start, the start of a line, up to end or the end of
+	 * the file.
+	 */
+	public MappedLineSource(File file, long start, long end) throws IOException {
+		this(file, start, end, DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * @param windowSize
+	 *            bytes mapped at a time
+	 */
+	public MappedLineSource(File file, long start, long end, int windowSize) throws IOException {
+		this.file = new RandomAccessFile(file, "r");
+		try {
+			channel = this.file.getChannel();
+			this.end = Math.min(end, channel.size());
+		} catch (IOException e) {
+			this.file.close();
+			throw e;
+		}
+		this.windowSize = windowSize;
+		next = start;
+		windowStart = start;
+	}
+
+	/**
+	 * Moves the unread bytes to the front of the buffer and copies the next
+	 * block of the file after them.
+	 *
+	 * @return false at the end of the file
+	 */
+	private boolean fill() throws IOException {
+		if (next >= end) {
+			return false;
+		}
+		if (window == null || next >= windowStart + window.limit()) {
+			windowStart = next;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, next, Math.min(windowSize, end - next));
+		}
+		int unread = limit - start;
+		if (unread == buffer.length) {
+			// a line longer than the buffer
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+		} else {
+			System.arraycopy(buffer, start, buffer, 0, unread);
+		}
+		start = 0;
+		limit = unread;
+		int count = (int) Math.min(buffer.length - limit, windowStart + window.limit() - next);
+		window.position((int) (next - windowStart));
+		window.get(buffer, limit, count);
+		limit += count;
+		next += count;
+		return true;
+	}
+
+	@Override
+	public CharSequence readLine() throws IOException {
+		if (start == limit && !fill()) {
+			return null;
+		}
+		if (skipLineFeed) {
+			skipLineFeed = false;
+			if (buffer[start] == '\n') {
+				start++;
+				if (start == limit && !fill()) {
+					return null;
+				}
+			}
+		}
+		int i = start;
+		// any byte outside ASCII makes this negative
+		int high = 0;
+		byte terminator = 0;
+		while (true) {
+			while (i < limit) {
+				byte b = buffer[i];
+				if (b == '\n' || b == '\r') {
+					terminator = b;
+					break;
+				}
+				high |= b;
+				i++;
+			}
+			if (i < limit) {
+				break;
+			}
+			int scanned = i - start;
+			if (!fill()) {
+				break;
+			}
+			i = start + scanned;
+		}
+		int lineStart = start;
+		int length = i - start;
+		start = i;
+		if (i < limit) {
+			start++;
+			if (terminator == '\r') {
+				if (start == limit) {
+					skipLineFeed = true;
+				} else if (buffer[start] == '\n') {
+					start++;
+				}
+			}
+		}
+		if (high < 0) {
+			return new String(buffer, lineStart, length, charset);
+		}
+		line.bytes = buffer;
+		line.offset = lineStart;
+		line.length = length;
+		return line;
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * An ASCII line in the buffer.
+	 */
+	private static final class Line implements CharSequence {
+		private byte[] bytes;
+		private int offset;
+		private int length;
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return (char) bytes[offset + index];
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return toString(start, end);
+		}
+
+		@Override
+		public String toString() {
+			return toString(0, length);
+		}
+
+		private String toString(int start, int end) {
+			// ASCII, so each byte is its char
+			return new String(bytes, offset + start, end - start, StandardCharsets.ISO_8859_1);
+		}
+	}
+}
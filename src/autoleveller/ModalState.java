@@ -0,0 +1,300 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller;
+
+/**
+ * Modal state of a g-code program: the active motion, plane, distance mode,
+ * units and work offsets. Codes are kept as {@link GCodeTokenizer#getCode(int)}
+ * decodes them, ten times the G number, and a group no line has set yet is
+ * {@link #NONE}, its getter then gives the default. Updating from a line looks
+ * at its G words only and does not allocate.
+ */
+public class ModalState {
+	public static final int NONE = -1;
+
+	public static final int RAPID = 0;
+	public static final int LINEAR = 10;
+	public static final int CLOCKWISE_ARC = 20;
+	public static final int COUNTER_CLOCKWISE_ARC = 30;
+
+	public static final int XY_PLANE = 170;
+	public static final int XZ_PLANE = 180;
+	public static final int YZ_PLANE = 190;
+
+	public static final int INCHES = 200;
+	public static final int MILLIMETERS = 210;
+
+	public static final int ABSOLUTE = 900;
+	public static final int INCREMENTAL = 910;
+
+	public static final int FIRST_WORK_OFFSETS = 540;
+
+	// non-modal codes whose axis words are not a move to that point
+	public static final int SET_OFFSETS = 100;
+	public static final int GO_HOME = 280;
+	public static final int GO_SECOND_HOME = 300;
+	public static final int MACHINE_COORDINATES = 530;
+	public static final int SET_POSITION = 920;
+
+	private int motion = NONE;
+	private int plane = NONE;
+	private int units = NONE;
+	// units of the first G20 or G21
+	private int firstUnits = NONE;
+	// units of the probe map, NONE if they are those of the file
+	private int mapUnits = NONE;
+	private int distance = NONE;
+	private int workOffsets = NONE;
+	private boolean incrementalUsed;
+	private boolean unitsSwitched;
+	// of the last line only
+	private int nonModal = NONE;
+	private boolean motionWord;
+
+	/**
+	 * Applies the G words of the line.
+	 */
+	public void update(GCodeTokenizer words) {
+		nonModal = NONE;
+		motionWord = false;
+		for (int i = 0; i < words.size(); i++) {
+			if (words.getLetter(i) == 'G') {
+				apply(words.getCode(i));
+			}
+		}
+	}
+
+	private void apply(int code) {
+		switch (code) {
+		case XY_PLANE:
+		case XZ_PLANE:
+		case YZ_PLANE:
+			plane = code;
+			break;
+		case INCHES:
+		case MILLIMETERS:
+			unitsSwitched |= units != NONE && units != code;
+			units = code;
+			if (firstUnits == NONE) {
+				firstUnits = code;
+			}
+			break;
+		case ABSOLUTE:
+			distance = code;
+			break;
+		case INCREMENTAL:
+			distance = code;
+			incrementalUsed = true;
+			break;
+		case 40:
+		case SET_OFFSETS:
+		case GO_HOME:
+		case 281:
+		case GO_SECOND_HOME:
+		case 301:
+		case MACHINE_COORDINATES:
+		case SET_POSITION:
+		case 921:
+		case 922:
+		case 923:
+			nonModal = code;
+			break;
+		default:
+			if (isMotion(code)) {
+				motion = code;
+				motionWord = true;
+			} else if (code >= 540 && code <= 593) {
+				workOffsets = code;
+			}
+		}
+	}
+
+	/**
+	 * @return true for G0 to G3, probing (G38.x) and the canned cycles
+	 */
+	private static boolean isMotion(int code) {
+		return code == RAPID || code == LINEAR || code == CLOCKWISE_ARC || code == COUNTER_CLOCKWISE_ARC
+			|| (code >= 382 && code <= 385) || code == 730 || (code >= 800 && code <= 890 && code % 10 == 0);
+	}
+
+	/**
+	 * Copies the state of other.
+	 */
+	public void set(ModalState other) {
+		motion = other.motion;
+		plane = other.plane;
+		units = other.units;
+		firstUnits = other.firstUnits;
+		mapUnits = other.mapUnits;
+		distance = other.distance;
+		workOffsets = other.workOffsets;
+		incrementalUsed = other.incrementalUsed;
+		unitsSwitched = other.unitsSwitched;
+		nonModal = other.nonModal;
+		motionWord = other.motionWord;
+	}
+
+	/**
+	 * Takes every group next has set, as if the lines that lead to next were
+	 * read after those that lead to this state.
+	 */
+	public void overlay(ModalState next) {
+		unitsSwitched |= next.unitsSwitched || (units != NONE && next.firstUnits != NONE && next.firstUnits != units);
+		if (next.motion != NONE) {
+			motion = next.motion;
+		}
+		if (next.plane != NONE) {
+			plane = next.plane;
+		}
+		if (next.units != NONE) {
+			units = next.units;
+		}
+		if (firstUnits == NONE) {
+			firstUnits = next.firstUnits;
+		}
+		if (next.distance != NONE) {
+			distance = next.distance;
+		}
+		if (next.workOffsets != NONE) {
+			workOffsets = next.workOffsets;
+		}
+		incrementalUsed |= next.incrementalUsed;
+		nonModal = next.nonModal;
+		motionWord = next.motionWord;
+	}
+
+	/**
+	 * @return the motion code, {@link #NONE} until a line selects one
+	 */
+	public int getMotion() {
+		return motion;
+	}
+
+	/**
+	 * Sets the motion, e.g. back to the arc mode of the file after writing an
+	 * arc as straight moves.
+	 */
+	public void setMotion(int motion) {
+		this.motion = motion;
+	}
+
+	public boolean isLinear() {
+		return motion == RAPID || motion == LINEAR;
+	}
+
+	public boolean isArc() {
+		return motion == CLOCKWISE_ARC || motion == COUNTER_CLOCKWISE_ARC;
+	}
+
+	public boolean isClockwise() {
+		return motion == CLOCKWISE_ARC;
+	}
+
+	/**
+	 * @return true if the last line selected the motion itself
+	 */
+	public boolean hasMotionWord() {
+		return motionWord;
+	}
+
+	/**
+	 * @return the plane as 17, 18 or 19, 17 (XY) if none was selected
+	 */
+	public int getPlane() {
+		return plane == NONE ? 17 : plane / 10;
+	}
+
+	public boolean isIncremental() {
+		return distance == INCREMENTAL;
+	}
+
+	/**
+	 * @return true if any line so far selected incremental distance mode
+	 */
+	public boolean wasIncremental() {
+		return incrementalUsed;
+	}
+
+	/**
+	 * @return true if any line so far switched from inches to millimeters or
+	 *         back
+	 */
+	public boolean wasUnitsSwitched() {
+		return unitsSwitched;
+	}
+
+	/**
+	 * @return {@link #INCHES}, {@link #MILLIMETERS} or {@link #NONE}
+	 */
+	public int getUnits() {
+		return units;
+	}
+
+	public boolean isInches() {
+		return units == INCHES;
+	}
+
+	/**
+	 * Sets the units of the probe map, {@link #INCHES} or {@link #MILLIMETERS}.
+	 * {@link #NONE} (the default) takes the map to be in the units the file
+	 * starts in.
+	 */
+	public void setMapUnits(int mapUnits) {
+		this.mapUnits = mapUnits;
+	}
+
+	/**
+	 * @return the factor from the current units to those of the probe map, 1
+	 *         while the file has not selected any units
+	 */
+	public double getScale() {
+		int map = mapUnits == NONE ? firstUnits : mapUnits;
+		if (units == map || units == NONE || map == NONE) {
+			return 1;
+		}
+		return units == INCHES ? 25.4 : 1 / 25.4;
+	}
+
+	/**
+	 * @return the work offsets code, {@link #FIRST_WORK_OFFSETS} (G54) if none
+	 *         was selected
+	 */
+	public int getWorkOffsets() {
+		return workOffsets == NONE ? FIRST_WORK_OFFSETS : workOffsets;
+	}
+
+	/**
+	 * @return the non-modal code of the last line, e.g. G4 or G92, or
+	 *         {@link #NONE}
+	 */
+	public int getNonModal() {
+		return nonModal;
+	}
+
+	/**
+	 * @return true if the axis words of the last line set offsets or a
+	 *         position rather than move to that point in the work coordinates
+	 */
+	public boolean isAxisCommand() {
+		return nonModal == SET_OFFSETS || nonModal == GO_HOME || nonModal == GO_SECOND_HOME || nonModal == MACHINE_COORDINATES
+			|| nonModal == SET_POSITION;
+	}
+}
@@ -1,8 +1,8 @@
 /*  	AutoLeveller (http://www.autoleveller.co.uk) is a stand-alone PC application written in Java which is designed
  *  	to measure precisely the height of the material to be milled / etched in several places,
  *  	then use the information gathered to make adjustments to the Z height
- *  	during the milling / etching process so that a more consistent and accurate result can be achieved. 
- *   
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
  *   	Copyright (C) 2013 James Hawthorne PhD, daedelus1982@gmail.com
  *
  *   	This program is free software; you can redistribute it and/or modify
@@ -23,19 +23,57 @@ package autoleveller;
 import java.io.PrintWriter;
 import java.io.Writer;
 
-public class NoExponentWriter extends PrintWriter 
-{	
-	DoubleManipulator _dm = new DoubleManipulator();
-	
+import autoleveller.stats.Stats;
+
+/**
+ * Writer that prints doubles in fixed precision without exponents, see
+ * {@link FixedPointFormat}. Lines are written as they are, numbers in them
+ * must already be formatted. Lines are counted as {@link Stats#LINES_OUT}.
+ */
+public class NoExponentWriter extends PrintWriter
+{
+	private final StringBuilder number = new StringBuilder(24);
+	private char[] digits = new char[24];
+	// bound on first use, by the thread writing
+	private Stats.Recorder stats;
+
 	public NoExponentWriter(Writer out) {
 		super(out);
 	}
 
 	@Override
-	public void println(String original)
+	public void println()
+	{
+		getStats().add(Stats.LINES_OUT, 1);
+		super.println();
+	}
+
+	@Override
+	public void print(double d)
 	{
-		String exponentsRemoved = _dm.formatOutput(original);
-		super.println(exponentsRemoved);
+		synchronized (lock) {
+			number.setLength(0);
+			FixedPointFormat.append(number, d);
+			if (digits.length < number.length()) {
+				digits = new char[number.length()];
+			}
+			number.getChars(0, number.length(), digits, 0);
+			write(digits, 0, number.length());
+		}
 	}
-	
+
+	@Override
+	public void print(float f)
+	{
+		print((double) f);
+	}
+
+	private Stats.Recorder getStats()
+	{
+		if (stats == null) {
+			stats = Stats.recorder();
+		}
+		return stats;
+	}
+
 }
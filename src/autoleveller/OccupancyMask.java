@@ -0,0 +1,185 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller;
+
+/**
+ * Coarse map of the XY cells a job cuts in. The cells are squares of a fixed
+ * size in absolute coordinates, so the mask can be filled while a file is
+ * read, before its area is known. A move marks every cell its path crosses,
+ * not just the cells of its end points.
+ */
+public class OccupancyMask {
+	private final double cellSize;
+	// marked cells, bit (row - firstRow) * columns + (column - firstColumn)
+	private long[] bits = new long[0];
+	private int firstColumn;
+	private int firstRow;
+	private int columns;
+	private int rows;
+	private int occupied;
+
+	public OccupancyMask(double cellSize) {
+		if (!(cellSize > 0)) {
+			throw new IllegalArgumentException("cell size must be positive");
+		}
+		this.cellSize = cellSize;
+	}
+
+	public double getCellSize() {
+		return cellSize;
+	}
+
+	/**
+	 * @return the number of marked cells
+	 */
+	public int getOccupiedCells() {
+		return occupied;
+	}
+
+	public boolean isEmpty() {
+		return occupied == 0;
+	}
+
+	public void addPoint(double x, double y) {
+		mark(cell(x), cell(y));
+	}
+
+	/**
+	 * Marks the cells crossed by the straight move, walking the grid lines it
+	 * crosses in order. A move that ends on a grid line does not mark the cell
+	 * beyond it.
+	 */
+	public void addMove(double fromX, double fromY, double toX, double toY) {
+		double dx = toX - fromX;
+		double dy = toY - fromY;
+		int column = cell(fromX);
+		int row = cell(fromY);
+		int endColumn = dx > 0 ? Math.max(cellBelow(toX), column) : cell(toX);
+		int endRow = dy > 0 ? Math.max(cellBelow(toY), row) : cell(toY);
+		mark(column, row);
+		int stepColumn = dx > 0 ? 1 : -1;
+		int stepRow = dy > 0 ? 1 : -1;
+		// move fraction to the next grid line along each axis, and between lines
+		double nextX = dx == 0 ? Double.POSITIVE_INFINITY : ((column + (dx > 0 ? 1 : 0)) * cellSize - fromX) / dx;
+		double nextY = dy == 0 ? Double.POSITIVE_INFINITY : ((row + (dy > 0 ? 1 : 0)) * cellSize - fromY) / dy;
+		double deltaX = dx == 0 ? Double.POSITIVE_INFINITY : cellSize / Math.abs(dx);
+		double deltaY = dy == 0 ? Double.POSITIVE_INFINITY : cellSize / Math.abs(dy);
+		int steps = Math.abs(endColumn - column) + Math.abs(endRow - row);
+		for (int i = 0; i < steps; i++) {
+			if (nextX < nextY) {
+				column += stepColumn;
+				nextX += deltaX;
+			} else {
+				row += stepRow;
+				nextY += deltaY;
+			}
+			mark(column, row);
+		}
+	}
+
+	/**
+	 * @return true if any marked cell overlaps the rectangle, a cell that
+	 *         starts on its maximum X or Y is outside, so neighbouring
+	 *         rectangles don't share the cells on their common edge. The
+	 *         rectangle can be open ended.
+	 */
+	public boolean isOccupied(double minX, double minY, double maxX, double maxY) {
+		int fromColumn = Math.max(cell(minX), firstColumn);
+		int toColumn = Math.min(Math.max(cellBelow(maxX), fromColumn), firstColumn + columns - 1);
+		int fromRow = Math.max(cell(minY), firstRow);
+		int toRow = Math.min(Math.max(cellBelow(maxY), fromRow), firstRow + rows - 1);
+		for (int row = fromRow; row <= toRow; row++) {
+			for (int column = fromColumn; column <= toColumn; column++) {
+				if (isMarked(column, row)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private int cell(double value) {
+		return (int) Math.floor(value / cellSize);
+	}
+
+	// the last cell that starts before the value
+	private int cellBelow(double value) {
+		return (int) Math.ceil(value / cellSize) - 1;
+	}
+
+	private boolean isMarked(int column, int row) {
+		long bit = (long) (row - firstRow) * columns + (column - firstColumn);
+		return (bits[(int) (bit >>> 6)] & (1L << bit)) != 0;
+	}
+
+	private void mark(int column, int row) {
+		if (column < firstColumn || column >= firstColumn + columns || row < firstRow || row >= firstRow + rows) {
+			grow(column, row);
+		}
+		long bit = (long) (row - firstRow) * columns + (column - firstColumn);
+		int word = (int) (bit >>> 6);
+		if ((bits[word] & (1L << bit)) == 0) {
+			bits[word] |= 1L << bit;
+			occupied++;
+		}
+	}
+
+	/**
+	 * Grows the bitmap to take in the cell, at least doubling the side it grows
+	 * on so a job drawn outwards copies the bitmap only a few times.
+	 */
+	private void grow(int column, int row) {
+		int newFirstColumn, newLastColumn, newFirstRow, newLastRow;
+		if (columns == 0) {
+			newFirstColumn = newLastColumn = column;
+			newFirstRow = newLastRow = row;
+		} else {
+			int lastColumn = firstColumn + columns - 1;
+			int lastRow = firstRow + rows - 1;
+			newFirstColumn = column < firstColumn ? Math.min(column, firstColumn - columns) : firstColumn;
+			newLastColumn = column > lastColumn ? Math.max(column, lastColumn + columns) : lastColumn;
+			newFirstRow = row < firstRow ? Math.min(row, firstRow - rows) : firstRow;
+			newLastRow = row > lastRow ? Math.max(row, lastRow + rows) : lastRow;
+		}
+		int newColumns = newLastColumn - newFirstColumn + 1;
+		int newRows = newLastRow - newFirstRow + 1;
+		long[] newBits = new long[(int) (((long) newColumns * newRows + 63) >>> 6)];
+		for (int r = 0; r < rows; r++) {
+			for (int c = 0; c < columns; c++) {
+				long bit = (long) r * columns + c;
+				if ((bits[(int) (bit >>> 6)] & (1L << bit)) != 0) {
+					long newBit = (long) (r + firstRow - newFirstRow) * newColumns + (c + firstColumn - newFirstColumn);
+					newBits[(int) (newBit >>> 6)] |= 1L << newBit;
+				}
+			}
+		}
+		bits = newBits;
+		firstColumn = newFirstColumn;
+		firstRow = newFirstRow;
+		columns = newColumns;
+		rows = newRows;
+	}
+
+	@Override
+	public String toString() {
+		return occupied + " cells of " + cellSize + " occupied";
+	}
+}
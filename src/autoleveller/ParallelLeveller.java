@@ -0,0 +1,220 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import autoleveller.probe.Probe;
+import autoleveller.stats.Stats;
+
+/**
+ * Levels a file on several threads. The file is split into chunks of whole
+ * lines, the modal state entering each chunk is found by summarising every
+ * chunk in parallel and combining the summaries in order, then the chunks are
+ * levelled in parallel and written in order. The output is identical to
+ * {@link Surface#writeLeveledFile(PrintWriter)}. A file that uses incremental
+ * mode or switches units is levelled on one thread.
+ */
+public class ParallelLeveller {
+	public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+	private final Probe probe;
+	private final File gCodeFile;
+	private final Segmenter segmenter;
+	private final int threads;
+	private final int chunkSize;
+	private double mergeTolerance;
+
+	public ParallelLeveller(Probe probe, File gCodeFile, double segmentLength, int threads) {
+		this(probe, gCodeFile, new UniformSegmenter(segmentLength), threads, DEFAULT_CHUNK_SIZE);
+	}
+
+	public ParallelLeveller(Probe probe, File gCodeFile, Segmenter segmenter, int threads) {
+		this(probe, gCodeFile, segmenter, threads, DEFAULT_CHUNK_SIZE);
+	}
+
+	public ParallelLeveller(Probe probe, File gCodeFile, Segmenter segmenter, int threads, int chunkSize) {
+		this.probe = probe;
+		this.gCodeFile = gCodeFile;
+		this.segmenter = segmenter;
+		this.threads = threads;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * See {@link Surface#setMergeTolerance(double)}, runs are also ended at
+	 * chunk boundaries.
+	 */
+	public void setMergeTolerance(double mergeTolerance) {
+		this.mergeTolerance = mergeTolerance;
+	}
+
+	public void writeLeveledFile(PrintWriter lvldFile) throws IOException {
+		if (!gCodeFile.exists()) {
+			throw new IOException("file does not exist");
+		}
+		final long[] chunks = findChunks();
+		final int chunkCount = chunks.length - 1;
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			List<Future<ReaderState>> summaries = new ArrayList<Future<ReaderState>>(chunkCount);
+			for (int i = 0; i < chunkCount; i++) {
+				final int chunk = i;
+				summaries.add(pool.submit(new Callable<ReaderState>() {
+					@Override
+					public ReaderState call() throws IOException {
+						return summarise(chunks[chunk], chunks[chunk + 1]);
+					}
+				}));
+			}
+			// prefix scan of the summaries gives the state entering each chunk
+			final ReaderState[] entering = new ReaderState[chunkCount];
+			ReaderState state = ReaderState.INITIAL;
+			for (int i = 0; i < chunkCount; i++) {
+				entering[i] = state;
+				state = state.then(summaries.get(i).get());
+			}
+			if (state.modal.wasIncremental() || state.modal.wasUnitsSwitched()) {
+				// where a chunk starts depends on every increment before it, and a
+				// summary can't tell which of its positions a switch converts
+				levelSequentially(lvldFile);
+				return;
+			}
+
+			AutoLeveller.writeHeader(lvldFile, gCodeFile.getName());
+			Surface.writeMillHeader(lvldFile, probe.getInterpolator().getName());
+			// keep a bounded number of levelled chunks in memory
+			Deque<Future<String>> levelled = new ArrayDeque<Future<String>>();
+			int next = 0;
+			for (int i = 0; i < chunkCount; i++) {
+				while (next < chunkCount && next - i < threads * 2) {
+					final int chunk = next++;
+					levelled.add(pool.submit(new Callable<String>() {
+						@Override
+						public String call() throws IOException {
+							return level(chunks[chunk], chunks[chunk + 1], entering[chunk]);
+						}
+					}));
+				}
+				lvldFile.write(levelled.removeFirst().get());
+			}
+			lvldFile.println();
+			lvldFile.close();
+		} catch (InterruptedException e) {
+			throw new IOException("Levelling interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Levelling failed", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return the state a reader starting from nothing has after reading the
+	 *         chunk
+	 */
+	private ReaderState summarise(long start, long end) throws IOException {
+		long started = System.nanoTime();
+		GCodeReader reader = new GCodeReader(readChunk(start, end), gCodeFile.getName(), null);
+		long lines = 0;
+		while (reader.readNext() != null) {
+			lines++;
+		}
+		Stats.Recorder stats = Stats.recorder();
+		stats.time(Stats.SCAN, System.nanoTime() - started);
+		stats.add(Stats.SCANNED_LINES, lines);
+		return reader.saveState();
+	}
+
+	private void levelSequentially(PrintWriter lvldFile) throws IOException {
+		Surface surface = new Surface(probe, new GCodeBreaker(gCodeFile, segmenter, probe.getArea()));
+		surface.setMergeTolerance(mergeTolerance);
+		surface.level(lvldFile);
+	}
+
+	private String level(long start, long end, ReaderState entering) throws IOException {
+		GCodeBreaker breaker = new GCodeBreaker(readChunk(start, end), gCodeFile.getName(), segmenter, probe.getArea());
+		breaker.restoreState(entering);
+		StringWriter chunkOut = new StringWriter();
+		PrintWriter writer = new NoExponentWriter(chunkOut);
+		Surface surface = new Surface(probe, breaker);
+		surface.setMergeTolerance(mergeTolerance);
+		surface.writeMillLines(writer);
+		writer.flush();
+		return chunkOut.toString();
+	}
+
+	private LineSource readChunk(long start, long end) throws IOException {
+		return new MappedLineSource(gCodeFile, start, end);
+	}
+
+	/**
+	 * @return the chunk boundaries, each chunk ends just after a line feed
+	 */
+	private long[] findChunks() throws IOException {
+		List<Long> boundaries = new ArrayList<Long>();
+		RandomAccessFile file = new RandomAccessFile(gCodeFile, "r");
+		try {
+			long length = file.length();
+			long boundary = 0;
+			boundaries.add(boundary);
+			byte[] buffer = new byte[8192];
+			while (boundary < length) {
+				long position = Math.min(length, boundary + chunkSize);
+				boundary = length;
+				file.seek(position);
+				int read;
+				search: while ((read = file.read(buffer)) > 0) {
+					for (int i = 0; i < read; i++) {
+						if (buffer[i] == '\n') {
+							boundary = position + i + 1;
+							break search;
+						}
+					}
+					position += read;
+				}
+				boundaries.add(boundary);
+			}
+		} finally {
+			file.close();
+		}
+		long[] chunks = new long[boundaries.size()];
+		for (int i = 0; i < chunks.length; i++) {
+			chunks[i] = boundaries.get(i);
+		}
+		return chunks;
+	}
+}
@@ -26,7 +26,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -37,9 +39,20 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
 
+import autoleveller.probe.HeightMap;
+import autoleveller.probe.HeightMapFile;
 import autoleveller.probe.Probe;
+import autoleveller.probe.ProbeRefiner;
+import autoleveller.probe.ProbeRoute;
+import autoleveller.stats.CountingOutputStream;
+import autoleveller.stats.Stats;
 
 public class ProbingGenerator {
+	/**
+	 * Default estimated interpolation error above which a cell is refined, in
+	 * millimeters.
+	 */
+	public static final double DEFAULT_REFINE_ERROR = 0.02;
 
 	/**
 	 * @param args
@@ -60,7 +73,17 @@ public class ProbingGenerator {
 		options.addOption("c", "clearance", true, "Clearence distanse above the surfice (default 2mm)");
 		options.addOption("s", "spacing", true, "Spacing between probing points (default 10mm)");
 		options.addOption("height", true, "Finish height (default 20mm)");
+		options.addOption("xs", true, "Comma separated X positions of the probe columns, overrides spacing");
+		options.addOption("ys", true, "Comma separated Y positions of the probe rows, overrides spacing");
 		options.addOption("D", "dir", true, "Output directory, if not set output goes on system out");
+		options.addOption("r", "rapid", true, "Rapid rate for the probing time estimate (default " + (int) Probe.DEFAULT_RAPID_RATE + "mm/min)");
+		options.addOption("sparse", true, "Only probe the cells the job cuts in and this many cells around them, 0 for bilinear and 1 for cubic "
+			+ "interpolation, writes a height map layout next to the probing file");
+		options.addOption("refine", true, "Probe log or height map of a coarse probing, only probes the middles of the cells the job cuts in that "
+			+ "it does not describe accurately enough");
+		options.addOption(OptionBuilder.withLongOpt("stats").withDescription("Print the time spent reading the job and the line counts to standard error").create());
+		options.addOption("e", "error", true, "Estimated interpolation error above which refine splits a cell (default "
+			+ FixedPointFormat.format(DEFAULT_REFINE_ERROR) + "mm)");
 		OptionGroup og = new OptionGroup();
 		og.addOption(OptionBuilder.withDescription("Millimiters, (default)").create('m'));
 		og.addOption(OptionBuilder.withDescription("Inches").create('i'));
@@ -72,7 +95,15 @@ public class ProbingGenerator {
 		int probeSpacing = 10;
 		int finishHeight = 20;
 		String unit = null;
+		double[] xPositions = null;
+		double[] yPositions = null;
+		double rapidRate = Double.NaN;
+		int ring = -1;
+		File refineFile = null;
+		double refineError = Double.NaN;
 		File gCodeFile = null;
+		File layoutFile = null;
+		boolean printStats = false;
 		OutputStream out = System.out;
 
 		try {
@@ -90,6 +121,60 @@ public class ProbingGenerator {
 			probeSpacing = Integer.parseInt(line.getOptionValue('s', "10"));
 			finishHeight = Integer.parseInt(line.getOptionValue("height", "20"));
 			unit = line.hasOption('i') ? Probe.INCHES : Probe.MILLIMETERS;
+			printStats = line.hasOption("stats");
+			if (line.hasOption('r')) {
+				rapidRate = Double.parseDouble(line.getOptionValue('r'));
+				if (!(rapidRate > 0)) {
+					System.out.println("Argument error: rapid rate must be positive");
+					helpMessage(options);
+					System.exit(0);
+				}
+			}
+			if (line.hasOption("xs") != line.hasOption("ys")) {
+				System.out.println("Argument error: xs and ys must be used together");
+				helpMessage(options);
+				System.exit(0);
+			}
+			if (line.hasOption("xs")) {
+				xPositions = parsePositions(line.getOptionValue("xs"));
+				yPositions = parsePositions(line.getOptionValue("ys"));
+			}
+			if (line.hasOption("refine")) {
+				refineFile = new File(line.getOptionValue("refine"));
+				if (!refineFile.isFile()) {
+					System.out.println("Argument error: probe file '" + refineFile + "' does not exist");
+					helpMessage(options);
+					System.exit(0);
+				}
+				if (line.hasOption("xs") || line.hasOption("sparse")) {
+					System.out.println("Argument error: refine takes its grid from the coarse probing, it can't be used with xs, ys or sparse");
+					helpMessage(options);
+					System.exit(0);
+				}
+			}
+			if (line.hasOption('e')) {
+				refineError = Double.parseDouble(line.getOptionValue('e'));
+				if (!(refineError > 0)) {
+					System.out.println("Argument error: error must be positive");
+					helpMessage(options);
+					System.exit(0);
+				}
+			} else {
+				refineError = Probe.INCHES.equals(unit) ? DEFAULT_REFINE_ERROR / 25.4 : DEFAULT_REFINE_ERROR;
+			}
+			if (line.hasOption("sparse")) {
+				ring = Integer.parseInt(line.getOptionValue("sparse"));
+				if (ring < 0) {
+					System.out.println("Argument error: sparse ring can not be negative");
+					helpMessage(options);
+					System.exit(0);
+				}
+				if (!line.hasOption('D')) {
+					System.out.println("Argument error: sparse probing needs an output directory for the layout");
+					helpMessage(options);
+					System.exit(0);
+				}
+			}
 
 			@SuppressWarnings("rawtypes")
 			List argList = line.getArgList();
@@ -116,25 +201,176 @@ public class ProbingGenerator {
 				File probingFile = createFile(gCodeFile, outDir);
 				System.out.println("Creating probing file at: " + probingFile.getCanonicalPath());
 				out = new FileOutputStream(probingFile);
+				if (ring >= 0) {
+					String name = probingFile.getName();
+					int indexOf = name.lastIndexOf('.');
+					layoutFile = new File(outDir, (indexOf > 0 ? name.substring(0, indexOf) : name) + HeightMapFile.SUFFIX);
+				}
 			}
 
 		} catch (ParseException exp) {
 			System.out.println("Argument error:" + exp.getMessage());
 			helpMessage(options);
 			System.exit(0);
+		} catch (NumberFormatException exp) {
+			System.out.println("Argument error: " + exp.getMessage());
+			helpMessage(options);
+			System.exit(0);
 		}
 
-		GCodeReader gCodeReader = new GCodeReader(gCodeFile);
-		Rectangle2D area = gCodeReader.getArea();
-		double x = area.getX();
-		double y = area.getY();
-		double width = area.getWidth();
-		double height = area.getHeight();
+		Stats.reset();
+		Probe probe;
+		OccupancyMask occupancy = null;
+		if (refineFile != null) {
+			probe = createRefinement(refineFile, gCodeFile, refineError, unit, probeFeed, probeDepth, finishHeight, probeClearance, out != System.out);
+			write(probe, gCodeFile, out, rapidRate);
+			Stats.finish("ProbingGenerator", gCodeFile.getName(), printStats);
+			return;
+		}
+		if (ring >= 0) {
+			// a quarter of the probe spacing keeps the cells that only touch
+			// the job at a corner of a mask cell few
+			occupancy = new OccupancyMask((xPositions != null ? Math.min(minimumGap(xPositions), minimumGap(yPositions)) : probeSpacing) / 4.0);
+		}
+		if (xPositions != null) {
+			probe = Probe.createProbe(unit, xPositions, yPositions, probeFeed, probeDepth, finishHeight, probeClearance);
+			if (occupancy != null) {
+				readOccupancy(gCodeFile, occupancy);
+			}
+		} else {
+			// single pass, the area is complete once the whole file has been read
+			GCodeReader gCodeReader = new GCodeReader(gCodeFile, null);
+			gCodeReader.setOccupancyMask(occupancy);
+			scan(gCodeReader);
+			Rectangle2D area = gCodeReader.getArea();
+			double x = area.getX();
+			double y = area.getY();
+			double width = area.getWidth();
+			double height = area.getHeight();
 
-		Probe probe = Probe.createProbe(unit, x, y, width, height, probeFeed, probeDepth, probeSpacing, finishHeight, probeClearance);
-		PrintWriter file = new PrintWriter(out);
+			probe = Probe.createProbe(unit, x, y, width, height, probeFeed, probeDepth, probeSpacing, finishHeight, probeClearance);
+		}
+		if (occupancy != null) {
+			int points = probe.getPointsToProbe().length;
+			int left = probe.maskPoints(occupancy, ring);
+			System.out.println(String.format(Locale.US, "Sparse probing: %d of %d points left out (%.0f%%), %d cells of %s cut in", left, points,
+				points > 0 ? 100.0 * left / points : 0.0, occupancy.getOccupiedCells(), FixedPointFormat.format(occupancy.getCellSize())));
+			HeightMap grid = probe.getHeightMap();
+			double[] xs = new double[grid.getColumns()];
+			double[] ys = new double[grid.getRows()];
+			for (int column = 0; column < xs.length; column++) {
+				xs[column] = grid.getX(column);
+			}
+			for (int row = 0; row < ys.length; row++) {
+				ys[row] = grid.getY(row);
+			}
+			double[] z = new double[xs.length * ys.length];
+			Arrays.fill(z, Double.NaN);
+			HeightMapFile.write(layoutFile, new HeightMap(xs, ys, z), unit, false, probe.getProbedPoints());
+			System.out.println("Creating height map layout at: " + layoutFile.getCanonicalPath());
+		}
+		write(probe, gCodeFile, out, rapidRate);
+		Stats.finish("ProbingGenerator", gCodeFile.getName(), printStats);
+	}
+
+	/**
+	 * Creates the second stage of adaptive probing, the probe points that split
+	 * the cells of the coarse probing the job cuts in where the estimated
+	 * interpolation error is over maxError. If report is set the number of
+	 * cells split is printed.
+	 *
+	 * @see ProbeRefiner
+	 */
+	private static Probe createRefinement(File coarseFile, File gCodeFile, double maxError, String unit, double probeFeed, double probeDepth,
+		double finishHeight, double probeClearance, boolean report) throws IOException {
+		HeightMap coarse = Probe.readHeightMap(coarseFile);
+		double[] xs = new double[coarse.getColumns()];
+		double[] ys = new double[coarse.getRows()];
+		for (int column = 0; column < xs.length; column++) {
+			xs[column] = coarse.getX(column);
+		}
+		for (int row = 0; row < ys.length; row++) {
+			ys[row] = coarse.getY(row);
+		}
+		OccupancyMask occupancy = new OccupancyMask(Math.min(minimumGap(xs), minimumGap(ys)) / 4.0);
+		readOccupancy(gCodeFile, occupancy);
+
+		ProbeRefiner refiner = new ProbeRefiner(coarse);
+		int cells = refiner.refine(maxError, occupancy);
+		Probe probe = Probe.createProbe(unit, refiner.getColumnPositions(), refiner.getRowPositions(), probeFeed, probeDepth, finishHeight,
+			probeClearance);
+		probe.retainPoints(refiner.getNewPoints());
+		if (report) {
+			System.out.println(String.format(Locale.US, "Refining %d of %d cells, largest estimated error %s, %d new points", cells,
+				Math.max(1, xs.length - 1) * Math.max(1, ys.length - 1), FixedPointFormat.format(refiner.getMaxError()), refiner.getNewPointCount()));
+		}
+		return probe;
+	}
+
+	private static void write(Probe probe, File gCodeFile, OutputStream out, double rapidRate) {
+		if (!Double.isNaN(rapidRate)) {
+			probe.setRapidRate(rapidRate);
+		}
+		PrintWriter file = new PrintWriter(new CountingOutputStream(out));
 		probe.writeProbe(new NoExponentWriter(file), gCodeFile.getName());
 		file.flush();
+		if (out != System.out) {
+			ProbeRoute route = probe.planRoute(probe.getPointsToProbe());
+			System.out.println(String.format(Locale.US, "Probing %d points with %.1f of rapid travel, about %.1f minutes", route.size(),
+				route.getLength(), probe.estimateMinutes(route)));
+		}
+	}
+
+	private static void readOccupancy(File gCodeFile, OccupancyMask occupancy) throws IOException {
+		GCodeReader gCodeReader = new GCodeReader(gCodeFile, null);
+		gCodeReader.setOccupancyMask(occupancy);
+		scan(gCodeReader);
+	}
+
+	/**
+	 * Reads the g-code to its end and closes it, recorded as a scan pass.
+	 */
+	private static void scan(GCodeReader gCodeReader) throws IOException {
+		long start = System.nanoTime();
+		long lines = 0;
+		while (gCodeReader.readNext() != null) {
+			lines++;
+		}
+		gCodeReader.close();
+		Stats.Recorder stats = Stats.recorder();
+		stats.time(Stats.SCAN, System.nanoTime() - start);
+		stats.add(Stats.SCANNED_LINES, lines);
+	}
+
+	/**
+	 * @return the smallest distance between neighbouring sorted positions, 1
+	 *         if there is only one position
+	 */
+	private static double minimumGap(double[] positions) {
+		double gap = Double.POSITIVE_INFINITY;
+		for (int i = 1; i < positions.length; i++) {
+			gap = Math.min(gap, positions[i] - positions[i - 1]);
+		}
+		return Double.isInfinite(gap) ? 1 : gap;
+	}
+
+	/**
+	 * @return the sorted, distinct positions of a comma separated list
+	 */
+	private static double[] parsePositions(String list) {
+		String[] values = list.split(",");
+		double[] positions = new double[values.length];
+		for (int i = 0; i < values.length; i++) {
+			positions[i] = Double.parseDouble(values[i].trim());
+		}
+		Arrays.sort(positions);
+		int count = 0;
+		for (int i = 0; i < positions.length; i++) {
+			if (count == 0 || positions[i] != positions[count - 1]) {
+				positions[count++] = positions[i];
+			}
+		}
+		return Arrays.copyOf(positions, count);
 	}
 
 	private static File createFile(File gCodeFile, File outDir) {
@@ -158,7 +394,7 @@ public class ProbingGenerator {
 
 	private static void helpMessage(Options options) {
 		HelpFormatter help = new HelpFormatter();
-		help.printHelp(140, "ProbeGenerator [-c <n>] [-D <dir>] [-d <n>] [-f <feed>] [-h] [-height <n>] [-i|-m] [-s <n>] gCodeFile", "",
+		help.printHelp(140, "ProbeGenerator [-c <n>] [-D <dir>] [-d <n>] [-f <feed>] [-h] [-height <n>] [-i|-m] [-r <rate>] [--stats] [-s <n> | -xs <x,..> -ys <y,..>] [-sparse <ring> | -refine <probeFile> [-e <n>]] gCodeFile", "",
 			options, "foot", false);
 	}
 
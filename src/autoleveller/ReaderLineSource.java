@@ -0,0 +1,45 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+
+/**
+ * Lines of a {@link BufferedReader}, for streams that can't be mapped.
+ */
+public class ReaderLineSource implements LineSource {
+	private final BufferedReader reader;
+
+	public ReaderLineSource(BufferedReader reader) {
+		this.reader = reader;
+	}
+
+	@Override
+	public CharSequence readLine() throws IOException {
+		return reader.readLine();
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+}
@@ -0,0 +1,67 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller;
+
+/**
+ * State of a {@link GCodeReader} between two lines: the current position, the
+ * axes any line has set and the {@link ModalState}. Values the reader has not
+ * seen yet are NaN or {@link ModalState#NONE}. A set axis can be NaN too, when
+ * a line such as G28 has left its position unknown.
+ */
+class ReaderState {
+	static final int X_AXIS = 1;
+	static final int Y_AXIS = 2;
+	static final int Z_AXIS = 4;
+	static final int ALL_AXES = X_AXIS | Y_AXIS | Z_AXIS;
+
+	static final ReaderState INITIAL = new ReaderState(Double.NaN, Double.NaN, Double.NaN, 0, new ModalState());
+
+	final double x;
+	final double y;
+	final double z;
+	final int axesSet;
+	final ModalState modal;
+
+	ReaderState(double x, double y, double z, int axesSet, ModalState modal) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.axesSet = axesSet;
+		this.modal = new ModalState();
+		this.modal.set(modal);
+	}
+
+	/**
+	 * @return the state after reading the lines that lead to this state followed
+	 *         by the lines that lead to next, when next was read starting from
+	 *         {@link #INITIAL}. Positions only combine like this in absolute
+	 *         mode and one set of units, see
+	 *         {@link ModalState#wasIncremental()} and
+	 *         {@link ModalState#wasUnitsSwitched()}.
+	 */
+	ReaderState then(ReaderState next) {
+		ModalState combined = new ModalState();
+		combined.set(modal);
+		combined.overlay(next.modal);
+		return new ReaderState((next.axesSet & X_AXIS) != 0 ? next.x : x, (next.axesSet & Y_AXIS) != 0 ? next.y : y,
+			(next.axesSet & Z_AXIS) != 0 ? next.z : z, axesSet | next.axesSet, combined);
+	}
+}
@@ -0,0 +1,173 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Output stage that joins runs of levelled G1 moves into single moves. A run
+ * is joined into one move from its start to its last point as long as every
+ * point of the run stays within the XY and Z tolerances of that move, so
+ * flat stretches of the board need far fewer blocks. Lines that are not plain
+ * moves end a run and are written as they are.
+ */
+public class SegmentMerger {
+	// bounds the work of checking a run, which grows with its length squared
+	private static final int MAX_RUN = 256;
+
+	private final PrintWriter out;
+	private final double xyTolerance;
+	private final double zTolerance;
+	private final StringBuilder merged = new StringBuilder(64);
+
+	// where the machine is before the run, NaN if not known
+	private double startX = Double.NaN;
+	private double startY = Double.NaN;
+	private double startZ = Double.NaN;
+	private int run;
+	private String[] lines = new String[16];
+	private double[] xs = new double[16];
+	private double[] ys = new double[16];
+	private double[] zs = new double[16];
+	// F of the lines of the run, NaN if they have none
+	private double feed;
+	private long written;
+
+	public SegmentMerger(PrintWriter out, double xyTolerance, double zTolerance) {
+		this.out = out;
+		this.xyTolerance = xyTolerance;
+		this.zTolerance = zTolerance;
+	}
+
+	/**
+	 * Adds a line that can't be merged, ending the run. x, y and z are the
+	 * position after the line.
+	 */
+	public void line(String line, double x, double y, double z) {
+		flush();
+		println(line);
+		startX = x;
+		startY = y;
+		startZ = z;
+	}
+
+	/**
+	 * Adds a plain G1 move to x, y, z that may be merged with the moves around
+	 * it. Only moves with the same feed, NaN for none, are merged.
+	 */
+	public void move(String line, double x, double y, double z, double feed) {
+		if (Double.isNaN(startX) || Double.isNaN(startY) || Double.isNaN(startZ)) {
+			line(line, x, y, z);
+			return;
+		}
+		if (run == MAX_RUN || (run > 0 && (Double.compare(feed, this.feed) != 0 || !fits(x, y, z)))) {
+			writeRun();
+		}
+		this.feed = feed;
+		if (run == lines.length) {
+			int newLength = run * 2;
+			lines = Arrays.copyOf(lines, newLength);
+			xs = Arrays.copyOf(xs, newLength);
+			ys = Arrays.copyOf(ys, newLength);
+			zs = Arrays.copyOf(zs, newLength);
+		}
+		lines[run] = line;
+		xs[run] = x;
+		ys[run] = y;
+		zs[run] = z;
+		run++;
+	}
+
+	/**
+	 * Writes the run that has been held back.
+	 */
+	public void flush() {
+		if (run > 0) {
+			writeRun();
+		}
+	}
+
+	/**
+	 * @return the number of lines written
+	 */
+	public long getWritten() {
+		return written;
+	}
+
+	/**
+	 * @return true if all points of the run are close enough to the move from
+	 *         the start of the run to x, y, z
+	 */
+	private boolean fits(double x, double y, double z) {
+		double dx = x - startX;
+		double dy = y - startY;
+		double dz = z - startZ;
+		double lengthSquared = dx * dx + dy * dy;
+		if (lengthSquared == 0) {
+			return false;
+		}
+		for (int i = 0; i < run; i++) {
+			double px = xs[i] - startX;
+			double py = ys[i] - startY;
+			double t = (px * dx + py * dy) / lengthSquared;
+			if (t < 0 || t > 1) {
+				return false;
+			}
+			double offX = px - t * dx;
+			double offY = py - t * dy;
+			if (offX * offX + offY * offY > xyTolerance * xyTolerance) {
+				return false;
+			}
+			if (Math.abs(zs[i] - startZ - t * dz) > zTolerance) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void writeRun() {
+		int last = run - 1;
+		if (run == 1) {
+			println(lines[0]);
+		} else {
+			merged.setLength(0);
+			merged.append("G1X");
+			FixedPointFormat.append(merged, xs[last], GCodeBreaker.SEGMENT_DECIMALS);
+			FixedPointFormat.append(merged.append('Y'), ys[last], GCodeBreaker.SEGMENT_DECIMALS);
+			FixedPointFormat.append(merged.append('Z'), zs[last]);
+			if (!Double.isNaN(feed)) {
+				FixedPointFormat.append(merged.append('F'), feed);
+			}
+			println(merged);
+		}
+		startX = xs[last];
+		startY = ys[last];
+		startZ = zs[last];
+		Arrays.fill(lines, 0, run, null);
+		run = 0;
+	}
+
+	private void println(CharSequence line) {
+		out.println(line);
+		written++;
+	}
+}
@@ -0,0 +1,90 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller;
+
+import java.util.Arrays;
+
+/**
+ * Decides where a linear cutting move is split before levelling. A segmenter
+ * holds no state of its own, so one can be shared by breakers on several
+ * threads.
+ */
+public interface Segmenter {
+	/**
+	 * Adds the positions along the move from start to end where it is to be
+	 * split, as fractions 0 < t < 1 of the move in ascending order.
+	 */
+	void split(double startX, double startY, double endX, double endY, Fractions fractions);
+
+	/**
+	 * Reusable list of split positions.
+	 */
+	public static final class Fractions {
+		private double[] values = new double[64];
+		private int size;
+		private double[] scratch = new double[0];
+
+		public void clear() {
+			size = 0;
+		}
+
+		public void add(double fraction) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = fraction;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public double get(int index) {
+			return values[index];
+		}
+
+		/**
+		 * Sorts the fractions added from index from on.
+		 */
+		void sort(int from) {
+			Arrays.sort(values, from, size);
+		}
+
+		/**
+		 * Removes the fractions from index from up to but not including to.
+		 */
+		void removeRange(int from, int to) {
+			System.arraycopy(values, to, values, from, size - to);
+			size -= to - from;
+		}
+
+		/**
+		 * @return an array of at least the length for the segmenter to work
+		 *         in, the same one from move to move
+		 */
+		double[] scratch(int length) {
+			if (scratch.length < length) {
+				scratch = new double[length];
+			}
+			return scratch;
+		}
+	}
+}
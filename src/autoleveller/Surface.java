@@ -31,17 +31,37 @@ import javax.swing.JOptionPane;
 import javax.vecmath.Point3d;
 
 import autoleveller.probe.Probe;
+import autoleveller.probe.ZCache;
+import autoleveller.stats.Stats;
 
 public class Surface {
 	private Probe probe;
 	private GCodeBreaker segFile;
+	private double mergeTolerance;
+	private ZCache zCache;
+	// bound on first use, by the thread levelling
+	private Stats.Recorder stats;
+	// lines that are not Strings are written through this
+	private char[] chars = new char[128];
 	public Surface(Probe probe, File outputFile, File inputFile) throws IOException {
-		this(probe, new GCodeBreaker(inputFile, (probe.getUnits().equalsIgnoreCase(Probe.MILLIMETERS)) ? 5 : 0.187));
+		this(probe, new GCodeBreaker(inputFile, (probe.getUnits().equalsIgnoreCase(Probe.MILLIMETERS)) ? 5 : 0.187, probe.getArea()));
 	}
 
 	public Surface(Probe probe, GCodeBreaker segFile) throws IOException {
 		this.probe = probe;
 		this.segFile = segFile;
+		this.zCache = new ZCache(probe.getInterpolator());
+		segFile.setMapUnits(modalUnits(probe.getMapUnits()));
+	}
+
+	/**
+	 * @return the {@link ModalState} units of {@link Probe#getMapUnits()}
+	 */
+	private static int modalUnits(String units) {
+		if (Probe.INCHES.equals(units)) {
+			return ModalState.INCHES;
+		}
+		return Probe.MILLIMETERS.equals(units) ? ModalState.MILLIMETERS : ModalState.NONE;
 	}
 
 	public boolean probeAreaGEJobArea() {
@@ -54,69 +74,216 @@ public class Surface {
 
 	public void writeLeveledFile(PrintWriter lvldFile) {
 		try {
-			// PrintWriter lvldFile = new NoExponentWriter(new
-			// BufferedWriter(new FileWriter(outputFile, false)));
-			AutoLeveller.writeHeader(lvldFile, segFile.getOriginalFile().getName());
-			// lvldFile.println();
-			// probe.writeProbe(lvldFile);
-			// lvldFile.println();
-			// probe.writeSubs(lvldFile);
-			// lvldFile.println();
-			writeMillFile(lvldFile, segFile);
-			lvldFile.println();
-			segFile.close();
-			lvldFile.close();
+			level(lvldFile);
 		} catch (Exception e) {
 			JOptionPane.showMessageDialog(null, "File error occured: " + e.getMessage());
 			e.printStackTrace();
 		}
 	}
 
-	private SimplePoint3DCNC writeBilinear(PrintWriter writer, Point3d point) {
+	/**
+	 * Writes the levelled file as the g-code is read, holding no more than a
+	 * few lines at a time, and closes both.
+	 *
+	 * @throws IOException
+	 *             if the g-code can't be read or the levelled file written
+	 */
+	public void level(PrintWriter lvldFile) throws IOException {
+		try {
+			AutoLeveller.writeHeader(lvldFile, segFile.getName());
+			writeMillHeader(lvldFile, probe.getInterpolator().getName());
+			writeMillLines(lvldFile);
+			lvldFile.println();
+		} finally {
+			segFile.close();
+			lvldFile.close();
+		}
+		// a PrintWriter keeps write errors to itself
+		if (lvldFile.checkError()) {
+			throw new IOException("Could not write the levelled file");
+		}
+	}
+
+	/**
+	 * @param scale
+	 *            from the units of the point to those of the probe map
+	 */
+	private SimplePoint3DCNC writeBilinear(PrintWriter writer, Point3d point, double scale) {
+		long start = stats.start(Stats.INTERPOLATE);
 		SimplePoint3DCNC currentPoint = SimplePoint3DCNC.point3dToSimplePoint3DCNC(point);
-		SimplePoint3DCNC intPointLeft = probe.interpolateY(probe.getBLPoint(currentPoint),
-				probe.getTLPoint(currentPoint), currentPoint);
-		SimplePoint3DCNC intPointRight = probe.interpolateY(probe.getBRPoint(currentPoint),
-				probe.getTRPoint(currentPoint), currentPoint);
-		// writer.println("#102=" + intPointLeft.getZ());
-		// writer.println("#101=" + intPointRight.getZ());
-		intPointLeft.setZ(intPointLeft.getZ());
-		intPointRight.setZ(intPointRight.getZ());
-		SimplePoint3DCNC intPointHoriz = probe.interpolateX(intPointLeft, intPointRight, currentPoint);
-		currentPoint.setZ(intPointHoriz.getZ());
-		// writer.println("#100=" + currentPoint.getZ());
+		currentPoint.setZ(zCache.getZ(point.getX() * scale, point.getY() * scale) / scale);
+		stats.stop(Stats.INTERPOLATE, start);
+		stats.add(Stats.INTERPOLATIONS, 1);
 		return currentPoint;
 	}
 
-	private void writeMillFile(PrintWriter file, GCodeBreaker original) throws IOException {
-		String current;
+	static void writeMillHeader(PrintWriter file, String interpolation) {
 		file.println("(The original mill file is now rewritten with z depth replaced with a)");
-		file.println("(bilinear interpolated value based on the initial probing)");
+		file.println("(" + interpolation + " interpolated value based on the initial probing)");
 		file.println();
+	}
 
-		while ((current = original.readNextLine()) != null) {
-			if (original.getCurrentCoords().getZ() < 0) {
-				SimplePoint3DCNC bilinear = writeBilinear(file, original.getCurrentCoords());
-				String modifiedLine = current;
-
- 				if (original.doesContain(current, 'Z')) {
-					modifiedLine = current.replaceAll("Z *" + original.getStringDoubleFromChar(current, 'Z'), "Z"
-							+ (bilinear.getZ() + original.getCurrentCoords().getZ()));
-				} else if (original.doesContain(current, 'Y')) {
-					modifiedLine = current.replaceAll("Y *" + original.getStringDoubleFromChar(current, 'Y'), "Y"
-							+ original.getCurrentCoords().getY() + " Z"
-							+ (bilinear.getZ() +  original.getCurrentCoords().getZ()));
-				} else if (original.doesContain(current, 'X')) {
-					modifiedLine = current.replaceAll("X *" + original.getStringDoubleFromChar(current, 'X'), "X"
-							+ original.getCurrentCoords().getX() + " Z"
-							+ (bilinear.getZ() + original.getCurrentCoords().getZ()));
+	/**
+	 * @return the cache of interpolated heights, with its hit rate
+	 */
+	public ZCache getZCache() {
+		return zCache;
+	}
+
+	/**
+	 * Joins runs of levelled moves that stay within the tolerance of a single
+	 * move, 0 (the default) keeps every move.
+	 */
+	public void setMergeTolerance(double mergeTolerance) {
+		this.mergeTolerance = mergeTolerance;
+	}
+
+	/**
+	 * Writes the levelled lines of the breaker, from its current state to its
+	 * end. The probe map is in {@link Probe#getMapUnits()}, or if they are not
+	 * known in the units the file started in. In
+	 * incremental mode Z is written as the increment between levelled heights,
+	 * and the first move that leaves the surface takes back what was added.
+	 */
+	void writeMillLines(PrintWriter file) throws IOException {
+		if (stats == null) {
+			stats = Stats.recorder();
+		}
+		long hits = zCache.getHits();
+		long misses = zCache.getMisses();
+		GCodeBreaker original = segFile;
+		ModalState modal = original.getModalState();
+		// how far the Z written so far is from that of the file, incremental moves
+		// carry on from there
+		double carried = 0;
+		GCodeBlock block = new GCodeBlock();
+		SegmentMerger merger = mergeTolerance > 0 ? new SegmentMerger(file, mergeTolerance, mergeTolerance) : null;
+		StringBuilder modifiedLine = new StringBuilder(128);
+		CharSequence current;
+		while ((current = original.readNext()) != null) {
+			Point3d coords = original.getCurrentCoords();
+			CharSequence levelled = current;
+			double levelledZ = coords.getZ();
+			boolean incremental = modal.isIncremental();
+			GCodeTokenizer words = original.getCurrentWords();
+			boolean moves = words.contains('Z') || words.contains('Y') || words.contains('X');
+			SimplePoint3DCNC bilinear = null;
+			if (!modal.isAxisCommand() && coords.getZ() < 0) {
+				bilinear = writeBilinear(file, coords, modal.getScale());
+			}
+			// rewriting the line and writing it out
+			long start = stats.start(Stats.FORMAT);
+			if (modal.isAxisCommand()) {
+				// sets offsets or a position, the file's Z holds again from here
+				carried = 0;
+			} else if (bilinear != null) {
+				// the words of current, as the reader has just parsed it
+				block.parse(words);
+				if (!block.contains('Z') && !incremental) {
+					// as precise as the breaker wrote the other axes
+					if (block.contains('Y')) {
+						block.set('Y', coords.getY(), GCodeBreaker.SEGMENT_DECIMALS);
+					} else if (block.contains('X')) {
+						block.set('X', coords.getX(), GCodeBreaker.SEGMENT_DECIMALS);
+					}
+				}
+				if (moves) {
+					levelledZ = bilinear.getZ() + coords.getZ();
+					if (incremental) {
+						carried = setIncrementalZ(block, words, bilinear.getZ() - carried) + carried;
+					} else {
+						block.set('Z', levelledZ);
+						carried = FixedPointFormat.round(levelledZ, FixedPointFormat.DEFAULT_DECIMALS) - coords.getZ();
+					}
+					modifiedLine.setLength(0);
+					levelled = block.appendTo(modifiedLine);
 				}
-				modifiedLine.trim();
-				file.println(modifiedLine);
+			} else if (incremental && moves && carried != 0) {
+				block.parse(words);
+				carried = setIncrementalZ(block, words, -carried) + carried;
+				modifiedLine.setLength(0);
+				levelled = block.appendTo(modifiedLine);
+			} else if (moves) {
+				// the file's Z as it is
+				carried = 0;
+			}
+			if (merger == null) {
+				println(file, levelled);
+			} else if (incremental) {
+				// every increment counts, nothing can be left out
+				merger.line(levelled.toString(), coords.getX(), coords.getY(), coords.getZ() + carried);
+			} else if (coords.getZ() < 0 && isPlainFeedMove(original)) {
+				merger.move(levelled.toString(), coords.getX(), coords.getY(), levelledZ, original.getCurrentWords().getValue('F'));
 			} else {
-				file.println(current);
+				merger.line(levelled.toString(), coords.getX(), coords.getY(), levelledZ);
+			}
+			stats.stop(Stats.FORMAT, start);
+		}
+		if (merger != null) {
+			merger.flush();
+		}
+		stats.add(Stats.ZCACHE_HITS, zCache.getHits() - hits);
+		stats.add(Stats.ZCACHE_MISSES, zCache.getMisses() - misses);
+	}
+
+	/**
+	 * Writes the line without making a String of it first.
+	 */
+	private void println(PrintWriter file, CharSequence line) {
+		if (line instanceof String) {
+			file.println((String) line);
+			return;
+		}
+		int length = line.length();
+		if (chars.length < length) {
+			chars = new char[Math.max(length, chars.length * 2)];
+		}
+		if (line instanceof StringBuilder) {
+			((StringBuilder) line).getChars(0, length, chars, 0);
+		} else {
+			for (int i = 0; i < length; i++) {
+				chars[i] = line.charAt(i);
+			}
+		}
+		file.write(chars, 0, length);
+		file.println();
+	}
+
+	/**
+	 * Writes the Z increment of the line with the correction added.
+	 *
+	 * @return how much the Z written differs from that of the line
+	 */
+	private static double setIncrementalZ(GCodeBlock block, GCodeTokenizer words, double correction) {
+		double z = words.contains('Z') ? words.getValue('Z') : 0;
+		double written = FixedPointFormat.round(z + correction, FixedPointFormat.DEFAULT_DECIMALS);
+		block.set('Z', written);
+		return written - z;
+	}
+
+	/**
+	 * @return true if the line just read is a G1 move with nothing but
+	 *         coordinates and a feed, so it can be merged with its neighbours
+	 */
+	private static boolean isPlainFeedMove(GCodeReader reader) {
+		if (reader.getModalState().getMotion() != ModalState.LINEAR) {
+			return false;
+		}
+		GCodeTokenizer words = reader.getCurrentWords();
+		CharSequence line = words.getLine();
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '(' || c == ';') {
+				return false;
+			}
+		}
+		for (int i = 0; i < words.size(); i++) {
+			char letter = words.getLetter(i);
+			if (letter != 'X' && letter != 'Y' && letter != 'Z' && letter != 'F' && !(letter == 'G' && words.getCode(i) == ModalState.LINEAR)) {
+				return false;
 			}
 		}
+		return true;
 	}
 
 
@@ -0,0 +1,49 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller;
+
+/**
+ * Splits moves longer than the segment length into evenly spaced pieces no
+ * longer than the segment length.
+ */
+public class UniformSegmenter implements Segmenter {
+	private final double segmentLength;
+
+	public UniformSegmenter(double segmentLength) {
+		this.segmentLength = segmentLength;
+	}
+
+	public double getSegmentLength() {
+		return segmentLength;
+	}
+
+	@Override
+	public void split(double startX, double startY, double endX, double endY, Fractions fractions) {
+		double distance = Math.hypot(endX - startX, endY - startY);
+		if (distance <= segmentLength) {
+			return;
+		}
+		int segments = (int) Math.ceil(distance / segmentLength);
+		for (int i = 1; i < segments; i++) {
+			fractions.add((double) i / segments);
+		}
+	}
+}
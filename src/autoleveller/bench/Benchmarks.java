@@ -0,0 +1,527 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+import autoleveller.FixedPointFormat;
+import autoleveller.GCodeBreaker;
+import autoleveller.GCodeReader;
+import autoleveller.MappedLineSource;
+import autoleveller.NoExponentWriter;
+import autoleveller.SimplePoint3DCNC;
+import autoleveller.Surface;
+import autoleveller.probe.Probe;
+import autoleveller.probe.SurfaceInterpolator;
+import autoleveller.probe.ZCache;
+
+/**
+ * Micro and end to end benchmarks of the levelling hot paths on synthetic
+ * jobs. Every benchmark is run for a number of warm up and measured
+ * iterations, each iteration is one pass over its input. The report gives
+ * the throughput, the per line latency (mean and percentiles over batches of
+ * lines), the allocation per line and the garbage collections per iteration.
+ */
+public class Benchmarks {
+	// lines timed together when measuring latency, keeps the timer overhead low
+	private static final int LATENCY_BATCH = 256;
+
+	/**
+	 * One benchmark, setUp is called before every iteration and next until it
+	 * returns 0.
+	 */
+	abstract static class Benchmark {
+		final String name;
+		final String description;
+
+		Benchmark(String name, String description) {
+			this.name = name;
+			this.description = description;
+		}
+
+		void setUp() throws IOException {
+		}
+
+		/**
+		 * @return the number of lines processed, 0 when the iteration is done
+		 */
+		abstract long next() throws IOException;
+
+		void tearDown() throws IOException {
+		}
+
+		/**
+		 * @return extra statistics printed after the results, null for none
+		 */
+		String report() {
+			return null;
+		}
+	}
+
+	private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	public static void main(String[] args) throws IOException {
+		CommandLineParser parser = new PosixParser();
+		Options options = new Options();
+		options.addOption("h", "help", false, "This message");
+		options.addOption("size", true, "Size of the synthetic job, e.g. 64K, 100M or 2G (default 16M)");
+		options.addOption("memsize", true, "Size of the in memory input of the micro benchmarks (default 16M)");
+		options.addOption("spacing", true, "Probe spacing of the synthetic probe map (default 5)");
+		options.addOption("w", "warmup", true, "Warm up iterations (default 3)");
+		options.addOption("i", "iterations", true, "Measured iterations (default 5)");
+		options.addOption("b", "bench", true, "Comma separated benchmarks to run (default all)");
+
+		long size = 16L << 20;
+		long memSize = 16L << 20;
+		double spacing = 5;
+		int warmup = 3;
+		int iterations = 5;
+		String selected = null;
+		try {
+			CommandLine line = parser.parse(options, args);
+			if (line.hasOption('h')) {
+				helpMessage(options);
+				System.exit(0);
+			}
+			size = parseSize(line.getOptionValue("size", "16M"));
+			memSize = Math.min(size, parseSize(line.getOptionValue("memsize", "16M")));
+			spacing = Double.parseDouble(line.getOptionValue("spacing", "5"));
+			warmup = Integer.parseInt(line.getOptionValue('w', "3"));
+			iterations = Integer.parseInt(line.getOptionValue('i', "5"));
+			selected = line.getOptionValue('b');
+		} catch (ParseException exp) {
+			System.out.println("Argument error:" + exp.getMessage());
+			helpMessage(options);
+			System.exit(0);
+		} catch (NumberFormatException exp) {
+			System.out.println("Argument error: " + exp.getMessage());
+			helpMessage(options);
+			System.exit(0);
+		}
+
+		Benchmarks benchmarks = new Benchmarks();
+		Map<String, Benchmark> all = benchmarks.createBenchmarks(size, memSize, spacing);
+		List<String> names = selected == null ? new ArrayList<String>(all.keySet()) : Arrays.asList(selected.split(","));
+		System.out.println(String.format(Locale.US, "%-10s %14s %10s %10s %10s %12s %8s %8s", "benchmark", "lines/s", "ns/line",
+			"p50", "p99", "alloc B/line", "gc/iter", "gc ms"));
+		for (String name : names) {
+			Benchmark benchmark = all.get(name.trim());
+			if (benchmark == null) {
+				System.out.println("Unknown benchmark: " + name + ", one of " + all.keySet());
+				continue;
+			}
+			System.out.println(benchmarks.run(benchmark, warmup, iterations));
+			String report = benchmark.report();
+			if (report != null) {
+				System.out.println("           " + report);
+			}
+		}
+	}
+
+	Map<String, Benchmark> createBenchmarks(long size, long memSize, double spacing) throws IOException {
+		final SyntheticJob job = new SyntheticJob(42, 160, 100);
+		final File jobFile = File.createTempFile("bench", ".ngc");
+		final File probeFile = File.createTempFile("bench", ".log");
+		jobFile.deleteOnExit();
+		probeFile.deleteOnExit();
+		final long jobLines = job.writeGCode(jobFile, size);
+		job.writeProbeLog(probeFile, spacing);
+		final SimplePoint3DCNC[][] points = Probe.createProbePoints(probeFile);
+		final Probe probe = Probe.createProbe(Probe.MILLIMETERS, 0, 0, 0, 0, 100, -1, spacing, 20, 2, points);
+		final List<String> lines = job.createLines(memSize);
+		final StringBuilder text = new StringBuilder();
+		for (String line : lines) {
+			text.append(line).append('\n');
+		}
+
+		Map<String, Benchmark> benchmarks = new LinkedHashMap<String, Benchmark>();
+		benchmarks.put("parse", new Benchmark("parse", "GCodeReader.updateStateFromString") {
+			private GCodeReader reader;
+			private int index;
+
+			@Override
+			void setUp() {
+				reader = new GCodeReader(new BufferedReader(new StringReader("")), "bench", null);
+				index = 0;
+			}
+
+			@Override
+			long next() {
+				if (index == lines.size()) {
+					return 0;
+				}
+				reader.updateStateFromString(lines.get(index++));
+				return 1;
+			}
+		});
+		benchmarks.put("segment", new Benchmark("segment", "GCodeBreaker.readNextLine") {
+			private GCodeBreaker breaker;
+
+			@Override
+			void setUp() {
+				breaker = new GCodeBreaker(new BufferedReader(new StringReader(text.toString())), "bench", 5, probe.getArea());
+			}
+
+			@Override
+			long next() throws IOException {
+				return breaker.readNextLine() == null ? 0 : 1;
+			}
+		});
+		benchmarks.put("read", new Benchmark("read", "MappedLineSource.readLine over the job file") {
+			private MappedLineSource lines;
+
+			@Override
+			void setUp() throws IOException {
+				lines = new MappedLineSource(jobFile);
+			}
+
+			@Override
+			long next() throws IOException {
+				return lines.readLine() == null ? 0 : 1;
+			}
+
+			@Override
+			void tearDown() throws IOException {
+				lines.close();
+			}
+		});
+		benchmarks.put("readline", new Benchmark("readline", "BufferedReader.readLine over the job file") {
+			private BufferedReader lines;
+
+			@Override
+			void setUp() throws IOException {
+				lines = new BufferedReader(new FileReader(jobFile));
+			}
+
+			@Override
+			long next() throws IOException {
+				return lines.readLine() == null ? 0 : 1;
+			}
+
+			@Override
+			void tearDown() throws IOException {
+				lines.close();
+			}
+		});
+		benchmarks.put("corners", new Benchmark("corners", "Probe.getBLPoint/TL/BR/TR and HeightMap.getZ") {
+			private double[] xs = new double[1 << 16];
+			private double[] ys = new double[1 << 16];
+			private int index;
+			private double sink;
+
+			@Override
+			void setUp() {
+				Random random = new Random(7);
+				for (int i = 0; i < xs.length; i++) {
+					xs[i] = random.nextDouble() * job.getWidth();
+					ys[i] = random.nextDouble() * job.getHeight();
+				}
+				index = 0;
+			}
+
+			@Override
+			long next() {
+				if (index == xs.length) {
+					return 0;
+				}
+				SimplePoint3DCNC point = new SimplePoint3DCNC(xs[index], ys[index], 0);
+				sink += probe.getBLPoint(point).getZ() + probe.getTLPoint(point).getZ() + probe.getBRPoint(point).getZ()
+					+ probe.getTRPoint(point).getZ() + probe.getHeightMap().getZ(xs[index], ys[index]);
+				index++;
+				return 1;
+			}
+
+			@Override
+			void tearDown() {
+				if (sink == 42) {
+					System.out.print("");
+				}
+			}
+		});
+		benchmarks.put("bicubic", new Benchmark("bicubic", "BicubicSplineInterpolator.getZ") {
+			private double[] xs = new double[1 << 16];
+			private double[] ys = new double[1 << 16];
+			private SurfaceInterpolator interpolator;
+			private int index;
+			private double sink;
+
+			@Override
+			void setUp() {
+				Random random = new Random(7);
+				for (int i = 0; i < xs.length; i++) {
+					xs[i] = random.nextDouble() * job.getWidth();
+					ys[i] = random.nextDouble() * job.getHeight();
+				}
+				interpolator = Probe.createInterpolator(SurfaceInterpolator.BICUBIC, probe.getHeightMap());
+				index = 0;
+			}
+
+			@Override
+			long next() {
+				if (index == xs.length) {
+					return 0;
+				}
+				sink += interpolator.getZ(xs[index], ys[index]);
+				index++;
+				return 1;
+			}
+
+			@Override
+			void tearDown() {
+				if (sink == 42) {
+					System.out.print("");
+				}
+			}
+		});
+		benchmarks.put("zcache", new Benchmark("zcache", "ZCache.getZ over a 6 pass toolpath") {
+			private static final int PASSES = 6;
+			private double[] xs = new double[1 << 14];
+			private double[] ys = new double[1 << 14];
+			private ZCache cache;
+			private int index;
+			private double sink;
+
+			@Override
+			void setUp() {
+				Random random = new Random(11);
+				for (int i = 0; i < xs.length; i++) {
+					// positions as read back from segment ends
+					xs[i] = Math.rint(random.nextDouble() * job.getWidth() * 1e5) / 1e5;
+					ys[i] = Math.rint(random.nextDouble() * job.getHeight() * 1e5) / 1e5;
+				}
+				cache = new ZCache(probe.getInterpolator());
+				index = 0;
+			}
+
+			@Override
+			long next() {
+				if (index == xs.length * PASSES) {
+					return 0;
+				}
+				int point = index++ % xs.length;
+				sink += cache.getZ(xs[point], ys[point]);
+				return 1;
+			}
+
+			@Override
+			void tearDown() {
+				if (sink == 42) {
+					System.out.print("");
+				}
+			}
+
+			@Override
+			String report() {
+				return cache.toString();
+			}
+		});
+		benchmarks.put("level", new Benchmark("level", "Surface.writeLeveledFile end to end") {
+			private boolean done;
+
+			@Override
+			void setUp() {
+				done = false;
+			}
+
+			@Override
+			long next() throws IOException {
+				if (done) {
+					return 0;
+				}
+				done = true;
+				GCodeBreaker breaker = new GCodeBreaker(jobFile, 5, probe.getArea());
+				new Surface(probe, breaker).writeLeveledFile(new NoExponentWriter(new NullWriter()));
+				return jobLines;
+			}
+		});
+		benchmarks.put("format", new Benchmark("format", "FixedPointFormat.append") {
+			private StringBuilder line = new StringBuilder(128);
+			private int index;
+			private int sink;
+
+			@Override
+			void setUp() {
+				index = 0;
+			}
+
+			@Override
+			long next() {
+				if (index == lines.size()) {
+					return 0;
+				}
+				line.setLength(0);
+				FixedPointFormat.append(line.append(lines.get(index++)).append(" Z"), -0.1 - index * 1e-7);
+				sink += line.length();
+				return 1;
+			}
+
+			@Override
+			void tearDown() {
+				if (sink == 42) {
+					System.out.print("");
+				}
+			}
+		});
+		return benchmarks;
+	}
+
+	String run(Benchmark benchmark, int warmup, int iterations) throws IOException {
+		for (int i = 0; i < warmup; i++) {
+			iterate(benchmark, null);
+		}
+		long lines = 0;
+		long nanos = 0;
+		long allocated = 0;
+		long gcCount = 0;
+		long gcMillis = 0;
+		List<Double> latencies = new ArrayList<Double>();
+		for (int i = 0; i < iterations; i++) {
+			long gcCountBefore = gcCount();
+			long gcMillisBefore = gcMillis();
+			long allocatedBefore = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			long start = System.nanoTime();
+			lines += iterate(benchmark, latencies);
+			nanos += System.nanoTime() - start;
+			allocated += threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore;
+			gcCount += gcCount() - gcCountBefore;
+			gcMillis += gcMillis() - gcMillisBefore;
+		}
+		double[] sorted = new double[latencies.size()];
+		for (int i = 0; i < sorted.length; i++) {
+			sorted[i] = latencies.get(i);
+		}
+		Arrays.sort(sorted);
+		return String.format(Locale.US, "%-10s %14.0f %10.1f %10.1f %10.1f %12.1f %8.1f %8d  (%s)", benchmark.name, lines * 1e9 / nanos,
+			(double) nanos / lines, percentile(sorted, 0.5), percentile(sorted, 0.99), (double) allocated / lines,
+			(double) gcCount / iterations, gcMillis, benchmark.description);
+	}
+
+	/**
+	 * @return the number of lines processed
+	 */
+	private long iterate(Benchmark benchmark, List<Double> latencies) throws IOException {
+		benchmark.setUp();
+		long lines = 0;
+		long batchLines = 0;
+		long batchStart = System.nanoTime();
+		long processed;
+		while ((processed = benchmark.next()) > 0) {
+			lines += processed;
+			batchLines += processed;
+			if (batchLines >= LATENCY_BATCH) {
+				long now = System.nanoTime();
+				if (latencies != null) {
+					latencies.add((double) (now - batchStart) / batchLines);
+				}
+				batchLines = 0;
+				batchStart = now;
+			}
+		}
+		if (latencies != null && batchLines > 0) {
+			latencies.add((double) (System.nanoTime() - batchStart) / batchLines);
+		}
+		benchmark.tearDown();
+		return lines;
+	}
+
+	private static double percentile(double[] sorted, double fraction) {
+		if (sorted.length == 0) {
+			return Double.NaN;
+		}
+		return sorted[Math.min(sorted.length - 1, (int) (fraction * sorted.length))];
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return millis;
+	}
+
+	static long parseSize(String size) {
+		String upper = size.trim().toUpperCase();
+		long multiplier = 1;
+		char last = upper.charAt(upper.length() - 1);
+		if (last == 'K' || last == 'M' || last == 'G') {
+			multiplier = last == 'K' ? 1L << 10 : (last == 'M' ? 1L << 20 : 1L << 30);
+			upper = upper.substring(0, upper.length() - 1);
+		}
+		return (long) (Double.parseDouble(upper) * multiplier);
+	}
+
+	private static void helpMessage(Options options) {
+		HelpFormatter help = new HelpFormatter();
+		help.printHelp(140, "Benchmarks [-b <name,..>] [-h] [-i <n>] [-w <n>] [-size <n>] [-memsize <n>] [-spacing <n>]", "", options, "",
+			false);
+	}
+
+	/**
+	 * Discards everything, so the benchmarks measure levelling and not disk
+	 * writes.
+	 */
+	static class NullWriter extends Writer {
+		@Override
+		public void write(char[] buffer, int offset, int length) {
+		}
+
+		@Override
+		public void write(String text, int offset, int length) {
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,202 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates repeatable g-code jobs and GRBL probe logs of any size for the
+ * benchmarks. The jobs mix isolation style paths of short and long G1 moves,
+ * arcs, feed changes, comments and lower case words, all cutting inside a
+ * board of the given size.
+ */
+public class SyntheticJob {
+	private final long seed;
+	private final double width;
+	private final double height;
+
+	public SyntheticJob(long seed, double width, double height) {
+		this.seed = seed;
+		this.width = width;
+		this.height = height;
+	}
+
+	public double getWidth() {
+		return width;
+	}
+
+	public double getHeight() {
+		return height;
+	}
+
+	/**
+	 * Writes a job of at least targetBytes characters.
+	 *
+	 * @return the number of lines written
+	 */
+	public long writeGCode(File file, long targetBytes) throws IOException {
+		Writer out = new BufferedWriter(new FileWriter(file));
+		try {
+			return writeGCode(out, targetBytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	public long writeGCode(Writer out, long targetBytes) throws IOException {
+		Random random = new Random(seed);
+		long bytes = 0;
+		long lines = 0;
+		String[] header = { "%", "(synthetic job)", "G21", "G90", "G17", "G0 Z5.000", "M3 S10000" };
+		for (String line : header) {
+			bytes += writeLine(out, line);
+			lines++;
+		}
+		while (bytes < targetBytes) {
+			double x = random.nextDouble() * width;
+			double y = random.nextDouble() * height;
+			bytes += writeLine(out, String.format(Locale.US, "G0 X%.3f Y%.3f", x, y));
+			bytes += writeLine(out, String.format(Locale.US, "G1 Z-0.%03d F150", 50 + random.nextInt(200)));
+			lines += 2;
+			int moves = 5 + random.nextInt(40);
+			for (int i = 0; i < moves; i++) {
+				int kind = random.nextInt(20);
+				String line;
+				if (kind < 12) {
+					// short raster style move
+					x = clamp(x + random.nextGaussian() * 1.5, width);
+					y = clamp(y + random.nextGaussian() * 1.5, height);
+					line = String.format(Locale.US, "X%.4f Y%.4f", x, y);
+				} else if (kind < 16) {
+					// long trace
+					x = random.nextDouble() * width;
+					y = random.nextDouble() * height;
+					line = String.format(Locale.US, "G1 X%.3f Y%.3f F%d", x, y, 200 + random.nextInt(4) * 50);
+				} else if (kind < 18) {
+					double radius = 0.5 + random.nextDouble() * 3;
+					double endX = clamp(x + 2 * radius, width);
+					line = String.format(Locale.US, "G2 X%.3f Y%.3f I%.3f J0.000", endX, y, (endX - x) / 2);
+					x = endX;
+				} else if (kind < 19) {
+					x = clamp(x + random.nextGaussian(), width);
+					line = String.format(Locale.US, "g1 x%.3f (trace %d)", x, random.nextInt(1000));
+				} else {
+					y = clamp(y + random.nextGaussian(), height);
+					line = String.format(Locale.US, "G01Y%.3f", y);
+				}
+				bytes += writeLine(out, line);
+				lines++;
+			}
+			bytes += writeLine(out, "G0 Z2.000");
+			lines++;
+		}
+		bytes += writeLine(out, "M5");
+		bytes += writeLine(out, "M2");
+		return lines + 2;
+	}
+
+	/**
+	 * @return the lines of a job of at least targetBytes characters
+	 */
+	public List<String> createLines(long targetBytes) {
+		final List<String> lines = new ArrayList<String>();
+		Writer collector = new Writer() {
+			private StringBuilder line = new StringBuilder();
+
+			@Override
+			public void write(char[] buffer, int offset, int length) {
+				for (int i = offset; i < offset + length; i++) {
+					if (buffer[i] == '\n') {
+						lines.add(line.toString());
+						line.setLength(0);
+					} else {
+						line.append(buffer[i]);
+					}
+				}
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		try {
+			writeGCode(collector, targetBytes);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return lines;
+	}
+
+	/**
+	 * Writes a GRBL probe log of a gently warped board, covering the board with
+	 * the given spacing and a little jitter on every position.
+	 */
+	public void writeProbeLog(File file, double spacing) throws IOException {
+		Random random = new Random(seed + 1);
+		Writer out = new BufferedWriter(new FileWriter(file));
+		try {
+			int columns = (int) Math.ceil(width / spacing) + 1;
+			int rows = (int) Math.ceil(height / spacing) + 1;
+			for (int row = 0; row < rows; row++) {
+				for (int i = 0; i < columns; i++) {
+					int column = (row % 2 == 0) ? i : columns - 1 - i;
+					double x = column * spacing + (random.nextDouble() - 0.5) * 0.004;
+					double y = row * spacing + (random.nextDouble() - 0.5) * 0.004;
+					double z = surface(x, y);
+					writeLine(out, "ok");
+					writeLine(out, String.format(Locale.US, "<Probe,MPos:%.3f,%.3f,%.3f,WPos:%.3f,%.3f,%.3f>", x + 10, y + 10, z - 20, x,
+						y, z));
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the height of the synthetic board surface
+	 */
+	public double surface(double x, double y) {
+		return 0.08 * Math.sin(x / width * Math.PI) * Math.cos(y / height * 2) + 0.0005 * x;
+	}
+
+	private static double clamp(double value, double max) {
+		return Math.max(0, Math.min(max, value));
+	}
+
+	private static int writeLine(Writer out, String line) throws IOException {
+		out.write(line);
+		out.write('\n');
+		return line.length() + 1;
+	}
+}
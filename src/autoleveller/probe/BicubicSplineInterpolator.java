@@ -0,0 +1,72 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller.probe;
+
+/**
+ * Bicubic spline surface, the slopes at the probe points are those of the
+ * natural cubic spline through each row and column, so the curvature is
+ * continuous across the grid lines as well. The smoothest of the
+ * interpolations, but every point has some influence on the whole row and
+ * column it is in.
+ */
+public class BicubicSplineInterpolator extends CubicInterpolator {
+
+	public BicubicSplineInterpolator(HeightMap heightMap) {
+		super(heightMap);
+	}
+
+	/**
+	 * Solves the tridiagonal system of the spline slopes, with zero curvature
+	 * at both ends.
+	 */
+	@Override
+	protected void slopes(double[] positions, double[] values, int count, double[] slopes) {
+		if (count < 2) {
+			slopes[0] = 0;
+			return;
+		}
+		int last = count - 1;
+		// forward elimination, upper holds the eliminated super diagonal
+		double[] upper = new double[count];
+		double h = positions[1] - positions[0];
+		double delta = (values[1] - values[0]) / h;
+		upper[0] = 0.5;
+		slopes[0] = 1.5 * delta;
+		for (int i = 1; i < last; i++) {
+			double next = positions[i + 1] - positions[i];
+			double nextDelta = (values[i + 1] - values[i]) / next;
+			double diagonal = 2 * (h + next) - next * upper[i - 1];
+			upper[i] = h / diagonal;
+			slopes[i] = (3 * (next * delta + h * nextDelta) - next * slopes[i - 1]) / diagonal;
+			h = next;
+			delta = nextDelta;
+		}
+		slopes[last] = (3 * delta - slopes[last - 1]) / (2 - upper[last - 1]);
+		for (int i = last - 1; i >= 0; i--) {
+			slopes[i] -= upper[i] * slopes[i + 1];
+		}
+	}
+
+	@Override
+	public String getName() {
+		return BICUBIC;
+	}
+}
@@ -0,0 +1,56 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller.probe;
+
+/**
+ * Bilinear interpolation straight from the {@link HeightMap}, the surface is
+ * continuous but its slope jumps at every grid line.
+ */
+public class BilinearInterpolator implements SurfaceInterpolator {
+	private final HeightMap heightMap;
+
+	public BilinearInterpolator(HeightMap heightMap) {
+		this.heightMap = heightMap;
+	}
+
+	@Override
+	public double getZ(double x, double y) {
+		return heightMap.getZ(x, y);
+	}
+
+	@Override
+	public HeightMap getHeightMap() {
+		return heightMap;
+	}
+
+	/**
+	 * @return 2, a straight line across a cell meets the xy term
+	 */
+	@Override
+	public int getDegree() {
+		return 2;
+	}
+
+	@Override
+	public String getName() {
+		return BILINEAR;
+	}
+}
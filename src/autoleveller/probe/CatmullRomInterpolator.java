@@ -0,0 +1,52 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller.probe;
+
+/**
+ * Catmull-Rom surface, the slope at each probe point is that of the line
+ * through its two neighbours, one sided at the edge of the grid. Each cell
+ * only depends on the points around it.
+ */
+public class CatmullRomInterpolator extends CubicInterpolator {
+
+	public CatmullRomInterpolator(HeightMap heightMap) {
+		super(heightMap);
+	}
+
+	@Override
+	protected void slopes(double[] positions, double[] values, int count, double[] slopes) {
+		if (count < 2) {
+			slopes[0] = 0;
+			return;
+		}
+		int last = count - 1;
+		slopes[0] = (values[1] - values[0]) / (positions[1] - positions[0]);
+		for (int i = 1; i < last; i++) {
+			slopes[i] = (values[i + 1] - values[i - 1]) / (positions[i + 1] - positions[i - 1]);
+		}
+		slopes[last] = (values[last] - values[last - 1]) / (positions[last] - positions[last - 1]);
+	}
+
+	@Override
+	public String getName() {
+		return CATMULL_ROM;
+	}
+}
@@ -0,0 +1,197 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller.probe;
+
+/**
+ * Piecewise bicubic surface through the probe points. The height, both slopes
+ * and the twist are estimated at every point by {@link #slopes}, and from them
+ * the 16 coefficients of the Hermite patch of every cell are worked out once
+ * when the interpolator is created. A query then finds the cell like
+ * {@link HeightMap} does and evaluates its polynomial, 15 multiply-adds. The
+ * surface passes through every probe point and its slope is continuous across
+ * the grid lines. Points outside the grid are clamped to its edge.
+ */
+public abstract class CubicInterpolator implements SurfaceInterpolator {
+	private final HeightMap heightMap;
+	private final double[] xs;
+	private final double[] ys;
+	// 1 / size of each cell column and row, 0 on a grid one point wide
+	private final double[] xScales;
+	private final double[] yScales;
+	private final int cellColumns;
+	// 16 per cell, coefficients[cell * 16 + i * 4 + j] multiplies t^i u^j
+	private final double[] coefficients;
+
+	protected CubicInterpolator(HeightMap heightMap) {
+		this.heightMap = heightMap;
+		int columns = heightMap.getColumns();
+		int rows = heightMap.getRows();
+		xs = new double[columns];
+		ys = new double[rows];
+		for (int column = 0; column < columns; column++) {
+			xs[column] = heightMap.getX(column);
+		}
+		for (int row = 0; row < rows; row++) {
+			ys[row] = heightMap.getY(row);
+		}
+		xScales = scales(xs);
+		yScales = scales(ys);
+
+		// derivatives at every point, in the layout of the height map
+		double[] z = new double[columns * rows];
+		double[] zx = new double[z.length];
+		double[] zy = new double[z.length];
+		double[] zxy = new double[z.length];
+		double[] values = new double[Math.max(columns, rows)];
+		double[] derivatives = new double[values.length];
+		for (int row = 0; row < rows; row++) {
+			for (int column = 0; column < columns; column++) {
+				z[row * columns + column] = heightMap.getZ(column, row);
+			}
+			System.arraycopy(z, row * columns, values, 0, columns);
+			slopes(xs, values, columns, derivatives);
+			System.arraycopy(derivatives, 0, zx, row * columns, columns);
+		}
+		for (int column = 0; column < columns; column++) {
+			columnSlopes(z, column, columns, zy, values, derivatives);
+			columnSlopes(zx, column, columns, zxy, values, derivatives);
+		}
+
+		cellColumns = Math.max(1, columns - 1);
+		int cellRows = Math.max(1, rows - 1);
+		coefficients = new double[cellColumns * cellRows * 16];
+		double[] patch = new double[16];
+		for (int row = 0; row < cellRows; row++) {
+			int top = Math.min(row + 1, rows - 1);
+			double height = ys[top] - ys[row];
+			for (int column = 0; column < cellColumns; column++) {
+				int right = Math.min(column + 1, columns - 1);
+				double width = xs[right] - xs[column];
+				int[] corners = { row * columns + column, top * columns + column, row * columns + right, top * columns + right };
+				// patch[p * 4 + q], p and q are value, value, slope, slope at the
+				// two ends along X and along Y, slopes scaled to the unit cell
+				for (int corner = 0; corner < 4; corner++) {
+					int index = corners[corner];
+					int a = corner >> 1;
+					int b = corner & 1;
+					patch[a * 4 + b] = z[index];
+					patch[a * 4 + 2 + b] = zy[index] * height;
+					patch[(2 + a) * 4 + b] = zx[index] * width;
+					patch[(2 + a) * 4 + 2 + b] = zxy[index] * width * height;
+				}
+				hermite(patch, coefficients, (row * cellColumns + column) * 16);
+			}
+		}
+	}
+
+	/**
+	 * Estimates the first derivative at every point of a curve.
+	 *
+	 * @param positions
+	 *            ascending positions of the points
+	 * @param values
+	 *            value at each point
+	 * @param count
+	 *            number of points, at least 1
+	 * @param slopes
+	 *            receives the derivative at each point
+	 */
+	protected abstract void slopes(double[] positions, double[] values, int count, double[] slopes);
+
+	@Override
+	public double getZ(double x, double y) {
+		int column = heightMap.getColumn(x);
+		int row = heightMap.getRow(y);
+		double t = unit((x - xs[column]) * xScales[column]);
+		double u = unit((y - ys[row]) * yScales[row]);
+		int a = (row * cellColumns + column) * 16;
+		double[] c = coefficients;
+		double z3 = ((c[a + 15] * u + c[a + 14]) * u + c[a + 13]) * u + c[a + 12];
+		double z2 = ((c[a + 11] * u + c[a + 10]) * u + c[a + 9]) * u + c[a + 8];
+		double z1 = ((c[a + 7] * u + c[a + 6]) * u + c[a + 5]) * u + c[a + 4];
+		double z0 = ((c[a + 3] * u + c[a + 2]) * u + c[a + 1]) * u + c[a];
+		return ((z3 * t + z2) * t + z1) * t + z0;
+	}
+
+	@Override
+	public HeightMap getHeightMap() {
+		return heightMap;
+	}
+
+	/**
+	 * @return 6, a diagonal line across a patch meets its t^3 u^3 term
+	 */
+	@Override
+	public int getDegree() {
+		return 6;
+	}
+
+	private void columnSlopes(double[] grid, int column, int columns, double[] result, double[] values, double[] derivatives) {
+		int rows = ys.length;
+		for (int row = 0; row < rows; row++) {
+			values[row] = grid[row * columns + column];
+		}
+		slopes(ys, values, rows, derivatives);
+		for (int row = 0; row < rows; row++) {
+			result[row * columns + column] = derivatives[row];
+		}
+	}
+
+	/**
+	 * Coefficients of the bicubic patch A F A', where A turns the values and
+	 * slopes at the ends of a unit interval into cubic coefficients.
+	 */
+	private static void hermite(double[] patch, double[] coefficients, int offset) {
+		double[] left = new double[16];
+		for (int q = 0; q < 4; q++) {
+			double p0 = patch[q];
+			double p1 = patch[4 + q];
+			double d0 = patch[8 + q];
+			double d1 = patch[12 + q];
+			left[q] = p0;
+			left[4 + q] = d0;
+			left[8 + q] = -3 * p0 + 3 * p1 - 2 * d0 - d1;
+			left[12 + q] = 2 * p0 - 2 * p1 + d0 + d1;
+		}
+		for (int i = 0; i < 4; i++) {
+			double p0 = left[i * 4];
+			double p1 = left[i * 4 + 1];
+			double d0 = left[i * 4 + 2];
+			double d1 = left[i * 4 + 3];
+			coefficients[offset + i * 4] = p0;
+			coefficients[offset + i * 4 + 1] = d0;
+			coefficients[offset + i * 4 + 2] = -3 * p0 + 3 * p1 - 2 * d0 - d1;
+			coefficients[offset + i * 4 + 3] = 2 * p0 - 2 * p1 + d0 + d1;
+		}
+	}
+
+	private static double[] scales(double[] axis) {
+		double[] scales = new double[Math.max(1, axis.length - 1)];
+		for (int i = 0; i + 1 < axis.length; i++) {
+			scales[i] = 1 / (axis[i + 1] - axis[i]);
+		}
+		return scales;
+	}
+
+	private static double unit(double t) {
+		return t < 0 ? 0 : (t > 1 ? 1 : t);
+	}
+}
@@ -0,0 +1,256 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller.probe;
+
+import autoleveller.SimplePoint3DCNC;
+
+/**
+ * Rectilinear grid of probed heights kept in a flat row major array. The
+ * column X positions and row Y positions are sorted but need not be evenly
+ * spaced. On an evenly spaced grid the cell enclosing a point is found in
+ * constant time from the origin and the spacing, otherwise by a binary search
+ * of the axis positions. Points outside the grid are clamped to its edge.
+ */
+public class HeightMap {
+	// relative deviation from even spacing still treated as evenly spaced
+	private static final double EVEN_TOLERANCE = 1e-9;
+
+	private final int columns;
+	private final int rows;
+	private final double[] xs;
+	private final double[] ys;
+	private final boolean xEven;
+	private final boolean yEven;
+	// 1 / spacing of an evenly spaced axis
+	private final double xScale;
+	private final double yScale;
+	// z[row * columns + column], rows along Y and columns along X, both ascending
+	private final double[] z;
+
+	public HeightMap(double xOrigin, double yOrigin, double xSpacing, double ySpacing, int columns, int rows, double[] z) {
+		this(evenAxis(xOrigin, xSpacing, columns), evenAxis(yOrigin, ySpacing, rows), z);
+	}
+
+	/**
+	 * @param xs
+	 *            X position of each column, ascending
+	 * @param ys
+	 *            Y position of each row, ascending
+	 * @param z
+	 *            heights, z[row * xs.length + column]
+	 */
+	public HeightMap(double[] xs, double[] ys, double[] z) {
+		columns = xs.length;
+		rows = ys.length;
+		if (columns < 1 || rows < 1 || z.length != columns * rows) {
+			throw new IllegalArgumentException("z must hold " + columns + " x " + rows + " points");
+		}
+		checkAscending(xs, "column X");
+		checkAscending(ys, "row Y");
+		this.xs = xs;
+		this.ys = ys;
+		this.z = z;
+		xEven = isEven(xs);
+		yEven = isEven(ys);
+		xScale = scale(xs);
+		yScale = scale(ys);
+	}
+
+	/**
+	 * Creates a height map from a grid of probe points, points[row][column]. The
+	 * column positions are taken from the first row and the row positions from
+	 * the first column, both may be in either ascending or descending order.
+	 */
+	public static HeightMap create(SimplePoint3DCNC[][] points) {
+		int rows = points.length;
+		int columns = points[0].length;
+		boolean xDescending = points[0][columns - 1].getX() < points[0][0].getX();
+		boolean yDescending = points[rows - 1][0].getY() < points[0][0].getY();
+
+		double[] xs = new double[columns];
+		double[] ys = new double[rows];
+		double[] z = new double[rows * columns];
+		for (int row = 0; row < rows; row++) {
+			int fromRow = yDescending ? rows - 1 - row : row;
+			ys[row] = points[fromRow][0].getY();
+			for (int column = 0; column < columns; column++) {
+				int fromColumn = xDescending ? columns - 1 - column : column;
+				z[row * columns + column] = points[fromRow][fromColumn].getZ();
+			}
+		}
+		for (int column = 0; column < columns; column++) {
+			xs[column] = points[0][xDescending ? columns - 1 - column : column].getX();
+		}
+		return new HeightMap(xs, ys, z);
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public double getX(int column) {
+		return xs[column];
+	}
+
+	public double getY(int row) {
+		return ys[row];
+	}
+
+	public double getZ(int column, int row) {
+		return z[row * columns + column];
+	}
+
+	public boolean isEvenlySpaced() {
+		return xEven && yEven;
+	}
+
+	/**
+	 * @return the column of the left edge of the cell holding x, clamped so
+	 *         that column + 1 is still inside the grid
+	 */
+	public int getColumn(double x) {
+		return cell(x, xs, xEven, xScale);
+	}
+
+	/**
+	 * @return the row of the bottom edge of the cell holding y, clamped so that
+	 *         row + 1 is still inside the grid
+	 */
+	public int getRow(double y) {
+		return cell(y, ys, yEven, yScale);
+	}
+
+	public int getNearestColumn(double x) {
+		return nearest(cell(x, xs, xEven, xScale), x, xs);
+	}
+
+	public int getNearestRow(double y) {
+		return nearest(cell(y, ys, yEven, yScale), y, ys);
+	}
+
+	public boolean isInside(double x, double y) {
+		return x >= xs[0] && x <= xs[columns - 1] && y >= ys[0] && y <= ys[rows - 1];
+	}
+
+	/**
+	 * Bilinear interpolated height at x, y. Points outside the grid get the
+	 * height of the nearest point on the grid edge.
+	 */
+	public double getZ(double x, double y) {
+		int column = getColumn(x);
+		int row = getRow(y);
+		int right = column + 1 < columns ? 1 : 0;
+		int top = row + 1 < rows ? 1 : 0;
+		double tx = fraction(x, xs[column], xs[column + right]);
+		double ty = fraction(y, ys[row], ys[row + top]);
+
+		int index = row * columns + column;
+		int above = top * columns;
+		double bottomZ = z[index] + tx * (z[index + right] - z[index]);
+		double topZ = z[index + above] + tx * (z[index + above + right] - z[index + above]);
+		return bottomZ + ty * (topZ - bottomZ);
+	}
+
+	private static int cell(double value, double[] axis, boolean even, double scale) {
+		int last = axis.length - 1;
+		if (last < 1 || value <= axis[0]) {
+			return 0;
+		}
+		if (value >= axis[last]) {
+			return last - 1;
+		}
+		if (even) {
+			int cell = Math.min((int) ((value - axis[0]) * scale), last - 1);
+			// correct for rounding right at a grid line
+			if (value < axis[cell]) {
+				return cell - 1;
+			}
+			return (value >= axis[cell + 1] && cell + 1 < last) ? cell + 1 : cell;
+		}
+		// largest index with axis[index] <= value
+		int low = 0;
+		int high = last;
+		while (high - low > 1) {
+			int middle = (low + high) >>> 1;
+			if (axis[middle] <= value) {
+				low = middle;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	private static int nearest(int cell, double value, double[] axis) {
+		if (cell + 1 < axis.length && (axis[cell + 1] - value) < (value - axis[cell])) {
+			return cell + 1;
+		}
+		return cell;
+	}
+
+	private static double fraction(double value, double from, double to) {
+		if (to <= from) {
+			return 0;
+		}
+		double t = (value - from) / (to - from);
+		return t < 0 ? 0 : (t > 1 ? 1 : t);
+	}
+
+	private static double[] evenAxis(double origin, double spacing, int count) {
+		double[] axis = new double[count];
+		for (int i = 0; i < count; i++) {
+			axis[i] = origin + i * spacing;
+		}
+		return axis;
+	}
+
+	private static double scale(double[] axis) {
+		int last = axis.length - 1;
+		return last < 1 ? 0 : last / (axis[last] - axis[0]);
+	}
+
+	private static boolean isEven(double[] axis) {
+		int last = axis.length - 1;
+		if (last < 2) {
+			return true;
+		}
+		double spacing = (axis[last] - axis[0]) / last;
+		double tolerance = spacing * EVEN_TOLERANCE;
+		for (int i = 1; i < last; i++) {
+			if (Math.abs(axis[i] - (axis[0] + i * spacing)) > tolerance) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void checkAscending(double[] axis, String name) {
+		for (int i = 1; i < axis.length; i++) {
+			if (!(axis[i] > axis[i - 1])) {
+				throw new IllegalArgumentException(name + " positions must be ascending");
+			}
+		}
+	}
+}
@@ -0,0 +1,310 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller.probe;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Binary height map file, written once from a probe log and then memory mapped
+ * by every job levelled against it. All values are little endian:
+ *
+ * <pre>
+ * "ALHM"   magic
+ * int      version, 1
+ * int      units, 0 unknown, 1 millimeters, 2 inches
+ * int      flags, 1 evenly spaced axes, 2 float heights, 4 masked
+ * int      columns
+ * int      rows
+ * evenly spaced:  double xOrigin, yOrigin, xSpacing, ySpacing
+ * otherwise:      double xs[columns], ys[rows]
+ * double or float z[rows * columns], row major
+ * masked:         byte probed[(rows * columns + 7) / 8], bit i of byte i / 8
+ *                 set if point i was probed
+ * </pre>
+ *
+ * The heights are copied out of the mapped file in bulk, nothing is parsed.
+ * A masked map comes from a sparse probing program that only probes where
+ * the job cuts, the heights of the points left out are filled in. Before it
+ * has been probed such a map is a layout, all its heights are NaN.
+ */
+public class HeightMapFile {
+	public static final String SUFFIX = ".alhm";
+
+	private static final byte[] MAGIC = { 'A', 'L', 'H', 'M' };
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 24;
+	private static final int EVEN = 1;
+	private static final int FLOATS = 2;
+	private static final int MASKED = 4;
+	private static final int UNKNOWN_UNITS = 0;
+	private static final int MILLIMETER_UNITS = 1;
+	private static final int INCH_UNITS = 2;
+
+	private final HeightMap heightMap;
+	private final String units;
+	private final boolean[] probed;
+
+	private HeightMapFile(HeightMap heightMap, String units, boolean[] probed) {
+		this.heightMap = heightMap;
+		this.units = units;
+		this.probed = probed;
+	}
+
+	public HeightMap getHeightMap() {
+		return heightMap;
+	}
+
+	/**
+	 * @return {@link Probe#MILLIMETERS}, {@link Probe#INCHES} or an empty string
+	 *         if the units are not known
+	 */
+	public String getUnits() {
+		return units;
+	}
+
+	/**
+	 * @return for every point, row major, true if it was probed, null if the
+	 *         map is not masked and every point was probed
+	 */
+	public boolean[] getProbedPoints() {
+		return probed;
+	}
+
+	/**
+	 * @return true if the heights have not been probed yet
+	 */
+	public boolean isLayout() {
+		for (int row = 0; row < heightMap.getRows(); row++) {
+			for (int column = 0; column < heightMap.getColumns(); column++) {
+				if (!Double.isNaN(heightMap.getZ(column, row))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the file starts like a height map file
+	 */
+	public static boolean isHeightMapFile(File file) throws IOException {
+		byte[] magic = new byte[MAGIC.length];
+		return readStart(file, magic) && Arrays.equals(magic, MAGIC);
+	}
+
+	/**
+	 * Reads only the header, see {@link #getUnits()}.
+	 */
+	public static String readUnits(File file) throws IOException {
+		byte[] header = new byte[12];
+		ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+		if (!readStart(file, header) || buffer.getInt(4) != VERSION) {
+			throw new IOException(file.getName() + " is not a height map file");
+		}
+		return units(buffer.getInt(8));
+	}
+
+	/**
+	 * @return false if the file is shorter than start
+	 */
+	private static boolean readStart(File file, byte[] start) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			int read = 0;
+			while (read < start.length) {
+				int count = in.read(start, read, start.length - read);
+				if (count < 0) {
+					return false;
+				}
+				read += count;
+			}
+		} finally {
+			in.close();
+		}
+		return true;
+	}
+
+	private static String units(int units) {
+		return units == MILLIMETER_UNITS ? Probe.MILLIMETERS : units == INCH_UNITS ? Probe.INCHES : "";
+	}
+
+	public static HeightMapFile read(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			return read(buffer, file.getName());
+		} finally {
+			in.close();
+		}
+	}
+
+	private static HeightMapFile read(ByteBuffer buffer, String name) throws IOException {
+		if (buffer.remaining() < HEADER_SIZE) {
+			throw new IOException(name + " is not a height map file");
+		}
+		byte[] magic = new byte[MAGIC.length];
+		buffer.get(magic);
+		if (!Arrays.equals(magic, MAGIC)) {
+			throw new IOException(name + " is not a height map file");
+		}
+		int version = buffer.getInt();
+		if (version != VERSION) {
+			throw new IOException(name + " has unsupported height map version " + version);
+		}
+		int units = buffer.getInt();
+		int flags = buffer.getInt();
+		int columns = buffer.getInt();
+		int rows = buffer.getInt();
+		boolean even = (flags & EVEN) != 0;
+		boolean floats = (flags & FLOATS) != 0;
+		boolean masked = (flags & MASKED) != 0;
+		long points = (long) columns * rows;
+		long axisBytes = even ? 4 * 8 : 8L * (columns + rows);
+		long maskBytes = masked ? (points + 7) / 8 : 0;
+		if (columns < 1 || rows < 1 || buffer.remaining() != axisBytes + points * (floats ? 4 : 8) + maskBytes) {
+			throw new IOException(name + " is truncated or corrupt");
+		}
+
+		double[] z = new double[(int) points];
+		HeightMap heightMap;
+		if (even) {
+			double xOrigin = buffer.getDouble();
+			double yOrigin = buffer.getDouble();
+			double xSpacing = buffer.getDouble();
+			double ySpacing = buffer.getDouble();
+			readHeights(buffer, floats, z);
+			heightMap = new HeightMap(xOrigin, yOrigin, xSpacing, ySpacing, columns, rows, z);
+		} else {
+			double[] xs = new double[columns];
+			double[] ys = new double[rows];
+			buffer.asDoubleBuffer().get(xs);
+			buffer.position(buffer.position() + 8 * columns);
+			buffer.asDoubleBuffer().get(ys);
+			buffer.position(buffer.position() + 8 * rows);
+			readHeights(buffer, floats, z);
+			heightMap = new HeightMap(xs, ys, z);
+		}
+		boolean[] probed = null;
+		if (masked) {
+			probed = new boolean[z.length];
+			for (int i = 0; i < probed.length; i += 8) {
+				int bits = buffer.get();
+				for (int bit = 0; bit < 8 && i + bit < probed.length; bit++) {
+					probed[i + bit] = (bits & (1 << bit)) != 0;
+				}
+			}
+		}
+		return new HeightMapFile(heightMap, units(units), probed);
+	}
+
+	private static void readHeights(ByteBuffer buffer, boolean floats, double[] z) {
+		if (floats) {
+			float[] heights = new float[z.length];
+			buffer.asFloatBuffer().get(heights);
+			for (int i = 0; i < z.length; i++) {
+				z[i] = heights[i];
+			}
+			buffer.position(buffer.position() + 4 * z.length);
+		} else {
+			buffer.asDoubleBuffer().get(z);
+			buffer.position(buffer.position() + 8 * z.length);
+		}
+	}
+
+	/**
+	 * Writes the height map, the heights as floats if floats is set, which
+	 * halves the file and keeps them to within a few nanometers on a board.
+	 */
+	public static void write(File file, HeightMap heightMap, String units, boolean floats) throws IOException {
+		write(file, heightMap, units, floats, null);
+	}
+
+	/**
+	 * Writes a masked height map, probed holds for every point, row major,
+	 * true if it was probed. With a null probed the map is not masked.
+	 */
+	public static void write(File file, HeightMap heightMap, String units, boolean floats, boolean[] probed) throws IOException {
+		int columns = heightMap.getColumns();
+		int rows = heightMap.getRows();
+		boolean even = heightMap.isEvenlySpaced();
+		int maskBytes = probed != null ? (columns * rows + 7) / 8 : 0;
+		int size = HEADER_SIZE + (even ? 4 * 8 : 8 * (columns + rows)) + columns * rows * (floats ? 4 : 8) + maskBytes;
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(Probe.MILLIMETERS.equals(units) ? MILLIMETER_UNITS : Probe.INCHES.equals(units) ? INCH_UNITS : UNKNOWN_UNITS);
+		buffer.putInt((even ? EVEN : 0) | (floats ? FLOATS : 0) | (probed != null ? MASKED : 0));
+		buffer.putInt(columns);
+		buffer.putInt(rows);
+		if (even) {
+			buffer.putDouble(heightMap.getX(0));
+			buffer.putDouble(heightMap.getY(0));
+			buffer.putDouble(columns > 1 ? (heightMap.getX(columns - 1) - heightMap.getX(0)) / (columns - 1) : 0);
+			buffer.putDouble(rows > 1 ? (heightMap.getY(rows - 1) - heightMap.getY(0)) / (rows - 1) : 0);
+		} else {
+			for (int column = 0; column < columns; column++) {
+				buffer.putDouble(heightMap.getX(column));
+			}
+			for (int row = 0; row < rows; row++) {
+				buffer.putDouble(heightMap.getY(row));
+			}
+		}
+		for (int row = 0; row < rows; row++) {
+			for (int column = 0; column < columns; column++) {
+				if (floats) {
+					buffer.putFloat((float) heightMap.getZ(column, row));
+				} else {
+					buffer.putDouble(heightMap.getZ(column, row));
+				}
+			}
+		}
+		for (int i = 0; i < maskBytes * 8; i += 8) {
+			int bits = 0;
+			for (int bit = 0; bit < 8 && i + bit < probed.length; bit++) {
+				if (probed[i + bit]) {
+					bits |= 1 << bit;
+				}
+			}
+			buffer.put((byte) bits);
+		}
+		buffer.flip();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			FileChannel channel = out.getChannel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
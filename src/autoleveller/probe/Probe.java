@@ -22,34 +22,44 @@
 package autoleveller.probe;
 
 import autoleveller.AutoLeveller;
+import autoleveller.FixedPointFormat;
+import autoleveller.OccupancyMask;
 import autoleveller.SimplePoint3DCNC;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 
 public abstract class Probe {
 	public static final String MILLIMETERS = "millimeters";
 	public static final String INCHES = "inches";
+	/**
+	 * Rapid rate assumed for the probing time estimate, GRBL's default maximum
+	 * rate, in mm/min.
+	 */
+	public static final double DEFAULT_RAPID_RATE = 500;
 
-	private static final String LINE_START = "<Probe,MPos:";
-	private static final String LINE_WPOS = "WPos:";
+	static final String LINE_START = "<Probe,MPos:";
+	static final String LINE_WPOS = "WPos:";
 
 	private SimplePoint3DCNC[][] probePoints;
+	private HeightMap heightMap;
+	private SurfaceInterpolator interpolator;
 
 	// probing values
 	private String units;
+	private String mapUnits = "";
 	private Rectangle2D.Double probeArea;
 	private double probeFeed;
 	private double probeDepth;
 	private double finishHeight;
 	private double probeClearance;
+	private double rapidRate = Double.NaN;
 
 	protected Probe(String units, double xStart, double yStart, double millWidth, double millHeight, double probeFeed, double probeDepth, double probeSpacing,
 		double finishHeight, double probeClearance) {
@@ -61,9 +71,18 @@ public abstract class Probe {
 		double finishHeight, double probeClearance, SimplePoint3DCNC[][] probePoints) {
 		setProbeVars(units, xStart, yStart, millWidth, millHeight, probeFeed, probeDepth, finishHeight, probeClearance);
 		this.probePoints = probePoints;
+		heightMap = HeightMap.create(probePoints);
+		interpolator = new BilinearInterpolator(heightMap);
+		probeArea = getArea(probePoints);
+	}
+
+	/**
+	 * The area covered by a grid of probe points, as used for the probe area.
+	 */
+	public static Rectangle2D.Double getArea(SimplePoint3DCNC[][] probePoints) {
 		double width = Math.abs(probePoints[probePoints.length - 1][probePoints[0].length - 1].getX() - probePoints[0][0].getX());
 		double height = Math.abs(probePoints[probePoints.length - 1][probePoints[0].length - 1].getY() - probePoints[0][0].getY());
-		probeArea = new Rectangle2D.Double(probePoints[0][0].getX(), probePoints[0][0].getY(), width, height);
+		return new Rectangle2D.Double(probePoints[0][0].getX(), probePoints[0][0].getY(), width, height);
 	}
 
 	public void setProbeVars(String units, double xStart, double yStart, double millWidth, double millHeight, double probeFeed, double probeDepth,
@@ -85,10 +104,35 @@ public abstract class Probe {
 		return new LinuxCNCProbe(units, xStart, yStart, millWidth, millHeight, probeFeed, probeDepth, probeSpacing, finishHeight, probeClearance, points);
 	}
 
+	/**
+	 * Creates a probe for a rectilinear grid with arbitrary, sorted column and row
+	 * positions.
+	 */
+	public static Probe createProbe(String units, double[] xPositions, double[] yPositions, double probeFeed, double probeDepth,
+		double finishHeight, double probeClearance) {
+		SimplePoint3DCNC[][] points = createProbePoints(xPositions, yPositions);
+		Rectangle2D area = getArea(points);
+		return createProbe(units, area.getX(), area.getY(), area.getWidth(), area.getHeight(), probeFeed, probeDepth, 0, finishHeight,
+			probeClearance, points);
+	}
+
 	public String getUnits() {
 		return units;
 	}
 
+	/**
+	 * @return the units the heights were probed in, as a height map file
+	 *         records them, or an empty string if they are not known. The map
+	 *         is then taken to be in the units the job starts in.
+	 */
+	public String getMapUnits() {
+		return mapUnits;
+	}
+
+	public void setMapUnits(String mapUnits) {
+		this.mapUnits = mapUnits;
+	}
+
 	public SimplePoint3DCNC[][] getProbePoints() {
 		return probePoints;
 	}
@@ -97,6 +141,44 @@ public abstract class Probe {
 		return probeArea;
 	}
 
+	public HeightMap getHeightMap() {
+		return heightMap;
+	}
+
+	/**
+	 * @return the interpolation of the probed heights, bilinear unless set
+	 */
+	public SurfaceInterpolator getInterpolator() {
+		return interpolator;
+	}
+
+	/**
+	 * Selects the interpolation of the probed heights, see
+	 * {@link #createInterpolator(String, HeightMap)}.
+	 */
+	public void setInterpolation(String name) {
+		interpolator = createInterpolator(name, heightMap);
+	}
+
+	/**
+	 * @param name
+	 *            {@link SurfaceInterpolator#BILINEAR},
+	 *            {@link SurfaceInterpolator#BICUBIC} or
+	 *            {@link SurfaceInterpolator#CATMULL_ROM}
+	 */
+	public static SurfaceInterpolator createInterpolator(String name, HeightMap heightMap) {
+		if (SurfaceInterpolator.BILINEAR.equalsIgnoreCase(name)) {
+			return new BilinearInterpolator(heightMap);
+		}
+		if (SurfaceInterpolator.BICUBIC.equalsIgnoreCase(name)) {
+			return new BicubicSplineInterpolator(heightMap);
+		}
+		if (SurfaceInterpolator.CATMULL_ROM.equalsIgnoreCase(name)) {
+			return new CatmullRomInterpolator(heightMap);
+		}
+		throw new IllegalArgumentException("unknown interpolation '" + name + "'");
+	}
+
 	public static SimplePoint3DCNC[][] createProbePoints(double xStart, double yStart, double width, double height, double desiredSpacing) {
 		double xSpaces = Math.abs(width / desiredSpacing);
 		double ySpaces = Math.abs(height / desiredSpacing);
@@ -123,47 +205,89 @@ public abstract class Probe {
 		return points;
 	}
 
-	public static SimplePoint3DCNC[][] createProbePoints(File probeFile) throws IOException {
-		BufferedReader reader = new BufferedReader(new FileReader(probeFile));
-		Map<Double, Map<Double, SimplePoint3DCNC>> pointsMap = new HashMap<Double, Map<Double, SimplePoint3DCNC>>();
-		String line;
-		while ((line = reader.readLine()) != null) {
-			if (line.indexOf(LINE_START) >= 0) {
-				line = line.substring(line.indexOf(LINE_WPOS) + LINE_WPOS.length(), line.indexOf('>', LINE_WPOS.length()));
-
-				String[] strings = line.split(",");
-				double x = Double.parseDouble(strings[0]);
-				double y = Double.parseDouble(strings[1]);
-				double z = Double.parseDouble(strings[2]);
-				SimplePoint3DCNC point = new SimplePoint3DCNC(x, y, z);
-				Map<Double, SimplePoint3DCNC> pointMap = pointsMap.get(y);
-				if (pointMap == null) {
-					pointMap = new HashMap<Double, SimplePoint3DCNC>();
-					pointsMap.put(y, pointMap);
-				}
-				pointMap.put(x, point);
+	/**
+	 * Creates a rectilinear grid of probe points, the positions don't need to be
+	 * evenly spaced, e.g. they can be denser near the board edges.
+	 *
+	 * @param xPositions
+	 *            X position of each column, ascending
+	 * @param yPositions
+	 *            Y position of each row, ascending
+	 */
+	public static SimplePoint3DCNC[][] createProbePoints(double[] xPositions, double[] yPositions) {
+		SimplePoint3DCNC[][] points = new SimplePoint3DCNC[yPositions.length][xPositions.length];
+
+		int zVariable = 500;
+
+		for (int j = 0; j < yPositions.length; j++) {
+			for (int i = 0; i < xPositions.length; i++) {
+				points[j][i] = new SimplePoint3DCNC(xPositions[i], yPositions[j], zVariable++);
 			}
 		}
-		reader.close();
-		int xSize = -1;
-		for (Map<Double, SimplePoint3DCNC> pointMap : pointsMap.values()) {
-			if (xSize == -1) {
-				xSize = pointMap.size();
-			} else if (xSize != pointMap.size()) {
-				System.out.println("Scrued map sizes");
-				return null;
+		return points;
+	}
+
+	/**
+	 * Reads the probe points of a GRBL probing log or a height map file, sorted
+	 * in rows along Y and columns along X.
+	 *
+	 * @see ProbeLog
+	 * @see HeightMapFile
+	 */
+	public static SimplePoint3DCNC[][] createProbePoints(File probeFile) throws IOException {
+		return createProbePoints(readHeightMap(probeFile));
+	}
+
+	/**
+	 * Reads a height map file, or a GRBL probing log if the file is not a height
+	 * map file.
+	 */
+	public static HeightMap readHeightMap(File probeFile) throws IOException {
+		return readHeightMap(probeFile, Collections.<File> emptyList());
+	}
+
+	/**
+	 * Reads a height map file or GRBL probing log refined by the probing logs
+	 * of later stages, e.g. of a refinement probing program.
+	 *
+	 * @see ProbeLog#refine(HeightMap, List, double)
+	 */
+	public static HeightMap readHeightMap(File probeFile, List<File> refinements) throws IOException {
+		HeightMap heightMap = readMap(probeFile);
+		if (refinements.isEmpty()) {
+			return heightMap;
+		}
+		return ProbeLog.refine(heightMap, refinements, ProbeLog.DEFAULT_TOLERANCE);
+	}
+
+	/**
+	 * @return the units of a height map file, an empty string for a probing
+	 *         log or a height map file that does not record them
+	 */
+	public static String readUnits(File probeFile) throws IOException {
+		if (HeightMapFile.isHeightMapFile(probeFile)) {
+			return HeightMapFile.readUnits(probeFile);
+		}
+		return "";
+	}
+
+	private static HeightMap readMap(File probeFile) throws IOException {
+		if (HeightMapFile.isHeightMapFile(probeFile)) {
+			HeightMapFile heightMapFile = HeightMapFile.read(probeFile);
+			if (heightMapFile.isLayout()) {
+				throw new IOException(probeFile.getName() + " is a probe layout without heights, convert the probe log with it first");
 			}
+			return heightMapFile.getHeightMap();
 		}
-		SimplePoint3DCNC[][] points = new SimplePoint3DCNC[pointsMap.size()][xSize];
-
-		int y = 0;
-		for (Map<Double, SimplePoint3DCNC> pointMap : pointsMap.values()) {
-			int x = 0;
-			for (SimplePoint3DCNC point : pointMap.values()) {
-				points[y][x] = point;
-				x++;
+		return ProbeLog.read(probeFile);
+	}
+
+	public static SimplePoint3DCNC[][] createProbePoints(HeightMap heightMap) {
+		SimplePoint3DCNC[][] points = new SimplePoint3DCNC[heightMap.getRows()][heightMap.getColumns()];
+		for (int row = 0; row < points.length; row++) {
+			for (int column = 0; column < points[row].length; column++) {
+				points[row][column] = new SimplePoint3DCNC(heightMap.getX(column), heightMap.getY(row), heightMap.getZ(column, row));
 			}
-			y++;
 		}
 		return points;
 	}
@@ -210,23 +334,21 @@ public abstract class Probe {
 		file.println();
 		openLog(file);
 		file.println("(begin initial probe and set Z to 0)");
-		file.println("G0 X" + probeArea.getX() + " Y" + probeArea.getY() + " Z0");
+		file.println("G0 X" + FixedPointFormat.format(probeArea.getX()) + " Y" + FixedPointFormat.format(probeArea.getY()) + " Z0");
 		if (units.equals(MILLIMETERS)) {
 			probeInit(file, "-10");
 		} else {
 			probeInit(file, "-0.375");
 		}
-		for (int i = 0; i < probePoints.length; i++) {
-			if ((i % 2) == 0) {
-				for (int j = 0; j < probePoints[0].length; j++)
-					moveNProbe(file, i, j);
-			} else {
-				for (int j = probePoints[0].length - 1; j >= 0; j--)
-					moveNProbe(file, i, j);
-			}
+		SimplePoint3DCNC[] points = getPointsToProbe();
+		ProbeRoute route = planRoute(points);
+		file.println(String.format(Locale.US, "(probe route: %d points, %.1f of rapid travel, about %.1f minutes)", route.size(), route.getLength(),
+			estimateMinutes(route)));
+		for (int point : route.getOrder()) {
+			moveNProbe(file, points[point]);
 		}
-		file.println("G0 Z" + probeClearance);
-		file.println("G0 X" + probeArea.getX() + " Y" + probeArea.getY() + " Z" + finishHeight);
+		file.println("G0 Z" + FixedPointFormat.format(probeClearance));
+		file.println("G0 X" + FixedPointFormat.format(probeArea.getX()) + " Y" + FixedPointFormat.format(probeArea.getY()) + " Z" + FixedPointFormat.format(finishHeight));
 		// file.println("(Set S value to ensure Speed has a value otherwise the spindle will not start on an M3 command)");
 		// file.println("S20000");
 		// closeLog(file);
@@ -237,19 +359,184 @@ public abstract class Probe {
 	}
 
 	private void probeInit(PrintWriter writer, String depth) {
-		writer.println(probeCommand(depth, String.valueOf(probeFeed)));
+		writer.println(probeCommand(depth, FixedPointFormat.format(probeFeed)));
 		writer.println(zeroZ());
-		writer.println("G0 Z" + probeClearance);
-		writer.println(probeCommand(String.valueOf(probeDepth), String.valueOf((probeFeed / 2))));
+		writer.println("G0 Z" + FixedPointFormat.format(probeClearance));
+		writer.println(probeCommand(FixedPointFormat.format(probeDepth), FixedPointFormat.format(probeFeed / 2)));
 		writer.println(zeroZ());
 	}
 
-	private void moveNProbe(PrintWriter writer, int row, int col) {
-		writer.println("G0 Z" + probeClearance);
-		writer.println("G0 X" + probePoints[row][col].getX() + " Y" + probePoints[row][col].getY());
-		writer.println(probeCommand(String.valueOf(probeDepth), String.valueOf(probeFeed)));
-		// writer.println(_probePoints[row][col].getZ() + "=" + currentZ());
-		logProbePoint(writer, probePoints[row][col]);
+	/**
+	 * @return the points of the grid to probe, row by row
+	 */
+	public SimplePoint3DCNC[] getPointsToProbe() {
+		List<SimplePoint3DCNC> points = new ArrayList<SimplePoint3DCNC>();
+		for (SimplePoint3DCNC[] row : probePoints) {
+			for (SimplePoint3DCNC point : row) {
+				if (point != null) {
+					points.add(point);
+				}
+			}
+		}
+		return points.toArray(new SimplePoint3DCNC[points.size()]);
+	}
+
+	/**
+	 * Plans the order to probe the points in, starting and ending at the
+	 * origin of the probe area. The planned route is compared with the
+	 * serpentine over the grid rows and the shorter one is used.
+	 */
+	public ProbeRoute planRoute(SimplePoint3DCNC[] points) {
+		double[] xs = new double[points.length];
+		double[] ys = new double[points.length];
+		for (int i = 0; i < points.length; i++) {
+			xs[i] = points[i].getX();
+			ys[i] = points[i].getY();
+		}
+		double startX = probeArea.getX();
+		double startY = probeArea.getY();
+		ProbeRoute planned = ProbeRoute.plan(startX, startY, xs, ys);
+		ProbeRoute serpentine = ProbeRoute.of(startX, startY, xs, ys, serpentine(points));
+		return serpentine.getLength() <= planned.getLength() ? serpentine : planned;
+	}
+
+	/**
+	 * @return the minutes probing along the route takes: the rapids between
+	 *         the points and up to the clearance height, and probing down from
+	 *         the clearance height to the board at the probe feed
+	 */
+	public double estimateMinutes(ProbeRoute route) {
+		return (route.getLength() + route.size() * probeClearance) / getRapidRate() + route.size() * probeClearance / probeFeed;
+	}
+
+	/**
+	 * @return the rapid rate in units per minute for the time estimate
+	 */
+	public double getRapidRate() {
+		if (Double.isNaN(rapidRate)) {
+			return units.equals(INCHES) ? DEFAULT_RAPID_RATE / 25.4 : DEFAULT_RAPID_RATE;
+		}
+		return rapidRate;
+	}
+
+	public void setRapidRate(double rapidRate) {
+		this.rapidRate = rapidRate;
+	}
+
+	/**
+	 * Leaves out the grid points the job does not need. A cell of the grid is
+	 * needed if the job cuts in it, or if it is within ring cells of one that
+	 * is, and only the corners of the needed cells are probed. Bilinear
+	 * interpolation needs no ring, the cubic interpolations take their slopes
+	 * from one cell further out.
+	 *
+	 * @return the number of points left out
+	 */
+	public int maskPoints(OccupancyMask occupancy, int ring) {
+		int columns = heightMap.getColumns();
+		int rows = heightMap.getRows();
+		int cellColumns = Math.max(1, columns - 1);
+		int cellRows = Math.max(1, rows - 1);
+		boolean[] cut = new boolean[cellColumns * cellRows];
+		// the outer cells reach beyond the grid so cuts on and outside its
+		// edges count
+		for (int row = 0; row < cellRows; row++) {
+			double minY = row == 0 ? Double.NEGATIVE_INFINITY : heightMap.getY(row);
+			double maxY = row == cellRows - 1 ? Double.POSITIVE_INFINITY : heightMap.getY(row + 1);
+			for (int column = 0; column < cellColumns; column++) {
+				double minX = column == 0 ? Double.NEGATIVE_INFINITY : heightMap.getX(column);
+				double maxX = column == cellColumns - 1 ? Double.POSITIVE_INFINITY : heightMap.getX(column + 1);
+				cut[row * cellColumns + column] = occupancy.isOccupied(minX, minY, maxX, maxY);
+			}
+		}
+		boolean[] needed = new boolean[columns * rows];
+		for (int row = 0; row < cellRows; row++) {
+			for (int column = 0; column < cellColumns; column++) {
+				if (!cut[row * cellColumns + column]) {
+					continue;
+				}
+				// corners of the cell and of the ring around it
+				int fromColumn = Math.max(0, column - ring);
+				int toColumn = Math.min(columns - 1, column + 1 + ring);
+				int fromRow = Math.max(0, row - ring);
+				int toRow = Math.min(rows - 1, row + 1 + ring);
+				for (int r = fromRow; r <= toRow; r++) {
+					for (int c = fromColumn; c <= toColumn; c++) {
+						needed[r * columns + c] = true;
+					}
+				}
+			}
+		}
+		return retainPoints(needed);
+	}
+
+	/**
+	 * Leaves out the grid points that are not kept.
+	 *
+	 * @param keep
+	 *            for every point of the height map, row major, true to probe
+	 *            it
+	 * @return the number of points left out
+	 */
+	public int retainPoints(boolean[] keep) {
+		int columns = heightMap.getColumns();
+		int left = 0;
+		for (SimplePoint3DCNC[] pointRow : probePoints) {
+			for (int i = 0; i < pointRow.length; i++) {
+				SimplePoint3DCNC point = pointRow[i];
+				if (point != null && !keep[heightMap.getNearestRow(point.getY()) * columns + heightMap.getNearestColumn(point.getX())]) {
+					pointRow[i] = null;
+					left++;
+				}
+			}
+		}
+		return left;
+	}
+
+	/**
+	 * @return for every point of the height map, row major, true if it is
+	 *         probed, see {@link #maskPoints(OccupancyMask, int)}
+	 */
+	public boolean[] getProbedPoints() {
+		int columns = heightMap.getColumns();
+		boolean[] probed = new boolean[columns * heightMap.getRows()];
+		for (SimplePoint3DCNC[] row : probePoints) {
+			for (SimplePoint3DCNC point : row) {
+				if (point != null) {
+					probed[heightMap.getNearestRow(point.getY()) * columns + heightMap.getNearestColumn(point.getX())] = true;
+				}
+			}
+		}
+		return probed;
+	}
+
+	/**
+	 * @return the points in rows, every other row backwards
+	 */
+	private int[] serpentine(SimplePoint3DCNC[] points) {
+		int[] order = new int[points.length];
+		int index = 0;
+		int rowStart = 0;
+		for (int i = 0; i < probePoints.length; i++) {
+			int inRow = 0;
+			for (SimplePoint3DCNC point : probePoints[i]) {
+				if (point != null) {
+					inRow++;
+				}
+			}
+			for (int j = 0; j < inRow; j++) {
+				order[index++] = rowStart + ((i % 2) == 0 ? j : inRow - 1 - j);
+			}
+			rowStart += inRow;
+		}
+		return order;
+	}
+
+	private void moveNProbe(PrintWriter writer, SimplePoint3DCNC point) {
+		writer.println("G0 Z" + FixedPointFormat.format(probeClearance));
+		writer.println("G0 X" + FixedPointFormat.format(point.getX()) + " Y" + FixedPointFormat.format(point.getY()));
+		writer.println(probeCommand(FixedPointFormat.format(probeDepth), FixedPointFormat.format(probeFeed)));
+		logProbePoint(writer, point);
 	}
 
 	protected abstract String probeCommand(String depth, String feed);
@@ -283,34 +570,23 @@ public abstract class Probe {
 	}
 
 	private SimplePoint3DCNC getPoint(SimplePoint3DCNC pointToFind, boolean isLeft, boolean isTop) {
-		SimplePoint3DCNC nearestPoint = getNearestPoint(getProbePoints(), pointToFind.toPoint2D());
-
-		try {
-			if (!isPointInside(pointToFind.toPoint2D()))
-				return nearestPoint;
-
-			int col = getNearestColumn(getProbePoints(), pointToFind.toPoint2D());
-			int row = getNearestRow(getProbePoints(), pointToFind.toPoint2D());
-
-			boolean leftOf = isLeft(nearestPoint, pointToFind.toPoint2D());
-			boolean topOf = isTop(nearestPoint, pointToFind.toPoint2D());
-
-			if (leftOf && !isLeft)
+		double x = pointToFind.getX();
+		double y = pointToFind.getY();
+		int col;
+		int row;
+		if (heightMap.isInside(x, y)) {
+			// corner of the enclosing cell
+			col = heightMap.getColumn(x);
+			row = heightMap.getRow(y);
+			if (!isLeft && col + 1 < heightMap.getColumns())
 				col++;
-			else if (!leftOf && isLeft)
-				col--;
-
-			if (topOf && !isTop)
-				row--;
-			else if (!topOf && isTop)
+			if (isTop && row + 1 < heightMap.getRows())
 				row++;
-
-			SimplePoint3DCNC returnPoint = getProbePoints()[row][col];
-			return returnPoint;
-		} catch (ArrayIndexOutOfBoundsException ae) {
-			return nearestPoint;
+		} else {
+			col = heightMap.getNearestColumn(x);
+			row = heightMap.getNearestRow(y);
 		}
-
+		return new SimplePoint3DCNC(heightMap.getX(col), heightMap.getY(row), heightMap.getZ(col, row));
 	}
 
 	public static int getNearestColumn(SimplePoint3DCNC[][] points, Point2D point) {
@@ -359,45 +635,4 @@ public abstract class Probe {
 		// original point
 		return distance < 0;
 	}
-
-	private double divZeroTest(double secondCoord, double firstCoord) {
-		double addition = 0;
-		if (secondCoord - firstCoord == 0) {
-			addition += 0.001;
-		}
-		return addition;
-	}
-
-	public SimplePoint3DCNC interpolateY(SimplePoint3DCNC firstPoint, SimplePoint3DCNC secondPoint, SimplePoint3DCNC intPoint) {
-		SimplePoint3DCNC returnPoint = new SimplePoint3DCNC(firstPoint.getX(), intPoint.getY(), Double.NaN);
-
-		if (firstPoint.equals(secondPoint))
-			returnPoint.setZ(firstPoint.getZ());
-		else {
-			double addition = divZeroTest(secondPoint.getY(), firstPoint.getY()); // ensures
-																					// no
-																					// division
-																					// by
-																					// zero
-																					// errors
-			double inner = (intPoint.getY() - firstPoint.getY()) / ((secondPoint.getY() + addition) - firstPoint.getY());
-			returnPoint.setZ(firstPoint.getZ() + inner * secondPoint.getZ() - inner * firstPoint.getZ());
-		}
-
-		return returnPoint;
-	}
-
-	public SimplePoint3DCNC interpolateX(SimplePoint3DCNC firstPoint, SimplePoint3DCNC secondPoint, SimplePoint3DCNC intPoint) {
-		SimplePoint3DCNC returnPoint = new SimplePoint3DCNC(intPoint.getX(), firstPoint.getY(), Double.NaN);
-
-		if (firstPoint.equals(secondPoint))
-			returnPoint.setZ(firstPoint.getZ());
-		else {
-			double addition = divZeroTest(secondPoint.getX(), firstPoint.getX());
-			double inner = (intPoint.getX() - firstPoint.getX()) / ((secondPoint.getX() + addition) - firstPoint.getX());
-			returnPoint.setZ(firstPoint.getZ() + inner * secondPoint.getZ() - inner * firstPoint.getZ());
-		}
-
-		return returnPoint;
-	}
 }
\ No newline at end of file
@@ -0,0 +1,352 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller.probe;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import autoleveller.GCodeTokenizer;
+
+/**
+ * Reads the <code>&lt;Probe,MPos:...,WPos:x,y,z&gt;</code> reports of a GRBL
+ * probing log into a {@link HeightMap}. The points are kept in primitive
+ * arrays, their X and Y positions are clustered within a tolerance into sorted
+ * columns and rows, repeated probes of a point are averaged and missing points
+ * are filled in by linear interpolation along their row or column.
+ */
+public class ProbeLog {
+	/**
+	 * Positions closer than this (in the log units) are taken to be the same
+	 * column or row.
+	 */
+	public static final double DEFAULT_TOLERANCE = 0.05;
+
+	private double[] xs = new double[1024];
+	private double[] ys = new double[1024];
+	private double[] zs = new double[1024];
+	private int size;
+	private int skippedLines;
+	private int filledPoints;
+
+	public static HeightMap read(File probeFile) throws IOException {
+		return read(probeFile, DEFAULT_TOLERANCE);
+	}
+
+	public static HeightMap read(File probeFile, double tolerance) throws IOException {
+		ProbeLog log = load(probeFile);
+		HeightMap heightMap = log.createHeightMap(tolerance);
+		if (log.skippedLines > 0 || log.filledPoints > 0) {
+			System.err.println("Probe log " + probeFile.getName() + ": " + log.size() + " points, " + heightMap.getColumns() + " x "
+				+ heightMap.getRows() + " grid, " + log.filledPoints + " missing points filled, " + log.skippedLines
+				+ " malformed lines skipped");
+		}
+		return heightMap;
+	}
+
+	/**
+	 * Reads the log of a sparse probing program onto the grid of its layout,
+	 * see {@link #createHeightMap(HeightMap)}.
+	 */
+	public static HeightMap read(File probeFile, HeightMap layout) throws IOException {
+		ProbeLog log = load(probeFile);
+		HeightMap heightMap = log.createHeightMap(layout);
+		if (log.skippedLines > 0) {
+			System.err.println("Probe log " + probeFile.getName() + ": " + log.skippedLines + " malformed lines skipped");
+		}
+		return heightMap;
+	}
+
+	/**
+	 * Refines a height map with the points of further probe logs, e.g. of a
+	 * refinement probing program that probed the middles of the cells where
+	 * the map was not accurate enough. The grid gets the columns and rows of
+	 * the map and of all logged points. Grid points that no log probed take
+	 * the height of the map there, so the surface only changes in the cells
+	 * that were probed again.
+	 */
+	public static HeightMap refine(HeightMap heightMap, List<File> probeFiles, double tolerance) throws IOException {
+		ProbeLog log = new ProbeLog();
+		for (int row = 0; row < heightMap.getRows(); row++) {
+			for (int column = 0; column < heightMap.getColumns(); column++) {
+				log.add(heightMap.getX(column), heightMap.getY(row), heightMap.getZ(column, row));
+			}
+		}
+		for (File probeFile : probeFiles) {
+			int size = log.size();
+			load(probeFile, log);
+			if (log.size() == size) {
+				throw new IOException("No probe points found in " + probeFile);
+			}
+		}
+		return log.createHeightMap(cluster(log.xs, log.size, tolerance), cluster(log.ys, log.size, tolerance), heightMap);
+	}
+
+	private static ProbeLog load(File probeFile) throws IOException {
+		ProbeLog log = load(probeFile, new ProbeLog());
+		if (log.size() == 0) {
+			throw new IOException("No probe points found in " + probeFile);
+		}
+		return log;
+	}
+
+	private static ProbeLog load(File probeFile, ProbeLog log) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(probeFile));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				log.addLine(line);
+			}
+		} finally {
+			reader.close();
+		}
+		return log;
+	}
+
+	/**
+	 * Adds the point of a probe report line, other lines are ignored.
+	 */
+	public void addLine(CharSequence line) {
+		int start = indexOf(line, Probe.LINE_START, 0);
+		if (start < 0) {
+			return;
+		}
+		int wpos = indexOf(line, Probe.LINE_WPOS, start + Probe.LINE_START.length());
+		if (wpos < 0) {
+			skippedLines++;
+			return;
+		}
+		int from = wpos + Probe.LINE_WPOS.length();
+		int xEnd = endOfNumber(line, from);
+		int yEnd = endOfNumber(line, xEnd + 1);
+		int zEnd = endOfNumber(line, yEnd + 1);
+		if (!isNumber(line, from, xEnd) || !isNumber(line, xEnd + 1, yEnd) || !isNumber(line, yEnd + 1, zEnd)) {
+			skippedLines++;
+			return;
+		}
+		add(GCodeTokenizer.parseDouble(line, from, xEnd), GCodeTokenizer.parseDouble(line, xEnd + 1, yEnd),
+			GCodeTokenizer.parseDouble(line, yEnd + 1, zEnd));
+	}
+
+	public void add(double x, double y, double z) {
+		if (size == xs.length) {
+			int newLength = size * 2;
+			xs = Arrays.copyOf(xs, newLength);
+			ys = Arrays.copyOf(ys, newLength);
+			zs = Arrays.copyOf(zs, newLength);
+		}
+		xs[size] = x;
+		ys[size] = y;
+		zs[size] = z;
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of points missing from the grid that were filled in by
+	 *         the last call to createHeightMap
+	 */
+	public int getFilledPoints() {
+		return filledPoints;
+	}
+
+	public HeightMap createHeightMap(double tolerance) {
+		return createHeightMap(cluster(xs, size, tolerance), cluster(ys, size, tolerance), null);
+	}
+
+	/**
+	 * Creates a height map on the grid of a layout, e.g. of a sparse probing
+	 * program, every logged point going to its nearest grid point. Grid points
+	 * that were not probed are filled in.
+	 */
+	public HeightMap createHeightMap(HeightMap layout) {
+		double[] columns = new double[layout.getColumns()];
+		double[] rows = new double[layout.getRows()];
+		for (int column = 0; column < columns.length; column++) {
+			columns[column] = layout.getX(column);
+		}
+		for (int row = 0; row < rows.length; row++) {
+			rows[row] = layout.getY(row);
+		}
+		return createHeightMap(columns, rows, null);
+	}
+
+	/**
+	 * Grid points that were not probed take the height of base there, or are
+	 * filled in from their neighbours without a base.
+	 */
+	private HeightMap createHeightMap(double[] columns, double[] rows, HeightMap base) {
+		int columnCount = columns.length;
+
+		double[] z = new double[columnCount * rows.length];
+		int[] counts = new int[z.length];
+		for (int i = 0; i < size; i++) {
+			int index = nearest(rows, ys[i]) * columnCount + nearest(columns, xs[i]);
+			z[index] += zs[i];
+			counts[index]++;
+		}
+		filledPoints = 0;
+		for (int i = 0; i < z.length; i++) {
+			if (counts[i] == 0) {
+				z[i] = base != null ? base.getZ(columns[i % columnCount], rows[i / columnCount]) : Double.NaN;
+				filledPoints++;
+			} else {
+				z[i] /= counts[i];
+			}
+		}
+		if (filledPoints > 0 && base == null) {
+			fillGaps(z, columns, rows);
+		}
+		return new HeightMap(columns, rows, z);
+	}
+
+	/**
+	 * @return the sorted centres of the groups of values where neighbours are
+	 *         no further apart than tolerance
+	 */
+	static double[] cluster(double[] values, int count, double tolerance) {
+		double[] sorted = Arrays.copyOf(values, count);
+		Arrays.sort(sorted);
+		double[] centres = new double[count];
+		int clusters = 0;
+		int first = 0;
+		for (int i = 1; i <= count; i++) {
+			if (i == count || sorted[i] - sorted[i - 1] > tolerance) {
+				double sum = 0;
+				for (int j = first; j < i; j++) {
+					sum += sorted[j];
+				}
+				centres[clusters++] = sum / (i - first);
+				first = i;
+			}
+		}
+		return Arrays.copyOf(centres, clusters);
+	}
+
+	/**
+	 * @return the index of the value in the sorted array closest to value
+	 */
+	static int nearest(double[] sorted, double value) {
+		int index = Arrays.binarySearch(sorted, value);
+		if (index >= 0) {
+			return index;
+		}
+		int above = -index - 1;
+		if (above == 0) {
+			return 0;
+		}
+		if (above == sorted.length) {
+			return sorted.length - 1;
+		}
+		return (sorted[above] - value) < (value - sorted[above - 1]) ? above : above - 1;
+	}
+
+	/**
+	 * Fills the NaN heights by linear interpolation along their row, rows
+	 * without any probed point are then filled along the columns.
+	 */
+	private static void fillGaps(double[] z, double[] columns, double[] rows) {
+		int columnCount = columns.length;
+		for (int row = 0; row < rows.length; row++) {
+			fillLine(z, row * columnCount, 1, columns);
+		}
+		for (int column = 0; column < columnCount; column++) {
+			fillLine(z, column, columnCount, rows);
+		}
+	}
+
+	private static void fillLine(double[] z, int offset, int stride, double[] positions) {
+		int previous = -1;
+		for (int i = 0; i < positions.length; i++) {
+			if (Double.isNaN(z[offset + i * stride])) {
+				continue;
+			}
+			if (previous == -1) {
+				// before the first known point, keep its height
+				for (int j = 0; j < i; j++) {
+					z[offset + j * stride] = z[offset + i * stride];
+				}
+			} else {
+				double fromZ = z[offset + previous * stride];
+				double toZ = z[offset + i * stride];
+				for (int j = previous + 1; j < i; j++) {
+					double t = (positions[j] - positions[previous]) / (positions[i] - positions[previous]);
+					z[offset + j * stride] = fromZ + t * (toZ - fromZ);
+				}
+			}
+			previous = i;
+		}
+		if (previous != -1) {
+			// after the last known point, keep its height
+			for (int j = previous + 1; j < positions.length; j++) {
+				z[offset + j * stride] = z[offset + previous * stride];
+			}
+		}
+	}
+
+	private static int endOfNumber(CharSequence line, int from) {
+		int i = from;
+		while (i < line.length()) {
+			char c = line.charAt(i);
+			if (c == ',' || c == '>' || c == '|') {
+				break;
+			}
+			i++;
+		}
+		return i;
+	}
+
+	private static boolean isNumber(CharSequence line, int start, int end) {
+		if (start >= end || end > line.length()) {
+			return false;
+		}
+		boolean digits = false;
+		for (int i = start; i < end; i++) {
+			char c = line.charAt(i);
+			if (c >= '0' && c <= '9') {
+				digits = true;
+			} else if (!(c == '.' || ((c == '-' || c == '+') && i == start))) {
+				return false;
+			}
+		}
+		return digits;
+	}
+
+	private static int indexOf(CharSequence line, String text, int from) {
+		int last = line.length() - text.length();
+		for (int i = from; i <= last; i++) {
+			int j = 0;
+			while (j < text.length() && line.charAt(i + j) == text.charAt(j)) {
+				j++;
+			}
+			if (j == text.length()) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
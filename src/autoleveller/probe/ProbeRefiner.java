@@ -0,0 +1,196 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller.probe;
+
+import java.util.Arrays;
+
+import autoleveller.OccupancyMask;
+
+/**
+ * Second stage of adaptive probing. The interpolation error of every cell of
+ * a coarse probing is estimated as the distance between the bilinear surface,
+ * which ignores curvature, and the bicubic spline through the same points,
+ * which follows it. The estimate is taken at the middle of the cell and its
+ * edges, where the bilinear error of a curved board is largest. Cells over
+ * the tolerance are split in four, which adds a column and a row through
+ * their middle to the grid; only the new points of the split cells need
+ * probing, see {@link ProbeLog#refine}.
+ */
+public class ProbeRefiner {
+	private final HeightMap coarse;
+	private final double[] errors;
+	private final int cellColumns;
+	private final int cellRows;
+	private boolean[] refined;
+	private double[] xs;
+	private double[] ys;
+	private boolean[] newPoints;
+
+	public ProbeRefiner(HeightMap coarse) {
+		this.coarse = coarse;
+		cellColumns = Math.max(1, coarse.getColumns() - 1);
+		cellRows = Math.max(1, coarse.getRows() - 1);
+		errors = new double[cellColumns * cellRows];
+		if (coarse.getColumns() < 2 || coarse.getRows() < 2) {
+			return;
+		}
+		SurfaceInterpolator cubic = new BicubicSplineInterpolator(coarse);
+		for (int row = 0; row < cellRows; row++) {
+			double bottom = coarse.getY(row);
+			double top = coarse.getY(row + 1);
+			double middleY = (bottom + top) / 2;
+			for (int column = 0; column < cellColumns; column++) {
+				double left = coarse.getX(column);
+				double right = coarse.getX(column + 1);
+				double middleX = (left + right) / 2;
+				double error = error(cubic, middleX, middleY);
+				error = Math.max(error, error(cubic, middleX, bottom));
+				error = Math.max(error, error(cubic, middleX, top));
+				error = Math.max(error, error(cubic, left, middleY));
+				error = Math.max(error, error(cubic, right, middleY));
+				errors[row * cellColumns + column] = error;
+			}
+		}
+	}
+
+	private double error(SurfaceInterpolator cubic, double x, double y) {
+		return Math.abs(cubic.getZ(x, y) - coarse.getZ(x, y));
+	}
+
+	/**
+	 * @return the estimated interpolation error of the coarse cell
+	 */
+	public double getError(int column, int row) {
+		return errors[row * cellColumns + column];
+	}
+
+	public double getMaxError() {
+		double max = 0;
+		for (double error : errors) {
+			max = Math.max(max, error);
+		}
+		return max;
+	}
+
+	/**
+	 * Selects the cells to split, those with an estimated error over the
+	 * tolerance and, if occupancy is not null, that the job cuts in.
+	 *
+	 * @return the number of cells to split
+	 */
+	public int refine(double tolerance, OccupancyMask occupancy) {
+		refined = new boolean[errors.length];
+		boolean[] splitColumns = new boolean[cellColumns];
+		boolean[] splitRows = new boolean[cellRows];
+		int count = 0;
+		for (int row = 0; row < cellRows && coarse.getRows() > 1; row++) {
+			for (int column = 0; column < cellColumns && coarse.getColumns() > 1; column++) {
+				if (!(errors[row * cellColumns + column] > tolerance)) {
+					continue;
+				}
+				// like Probe.maskPoints the outer cells reach beyond the grid
+				if (occupancy != null
+					&& !occupancy.isOccupied(column == 0 ? Double.NEGATIVE_INFINITY : coarse.getX(column), row == 0 ? Double.NEGATIVE_INFINITY
+						: coarse.getY(row), column == cellColumns - 1 ? Double.POSITIVE_INFINITY : coarse.getX(column + 1),
+						row == cellRows - 1 ? Double.POSITIVE_INFINITY : coarse.getY(row + 1))) {
+					continue;
+				}
+				refined[row * cellColumns + column] = true;
+				splitColumns[column] = true;
+				splitRows[row] = true;
+				count++;
+			}
+		}
+		xs = splitAxis(coarse.getColumns(), splitColumns, true);
+		ys = splitAxis(coarse.getRows(), splitRows, false);
+
+		newPoints = new boolean[xs.length * ys.length];
+		for (int row = 0; row < cellRows; row++) {
+			for (int column = 0; column < cellColumns; column++) {
+				if (!refined[row * cellColumns + column]) {
+					continue;
+				}
+				int left = Arrays.binarySearch(xs, coarse.getX(column));
+				int bottom = Arrays.binarySearch(ys, coarse.getY(row));
+				// middles of the edges and of the cell
+				newPoints[bottom * xs.length + left + 1] = true;
+				newPoints[(bottom + 1) * xs.length + left] = true;
+				newPoints[(bottom + 1) * xs.length + left + 1] = true;
+				newPoints[(bottom + 1) * xs.length + left + 2] = true;
+				newPoints[(bottom + 2) * xs.length + left + 1] = true;
+			}
+		}
+		return count;
+	}
+
+	private double[] splitAxis(int count, boolean[] split, boolean x) {
+		double[] axis = new double[count * 2];
+		int size = 0;
+		for (int i = 0; i < count; i++) {
+			double position = x ? coarse.getX(i) : coarse.getY(i);
+			axis[size++] = position;
+			if (i < split.length && split[i]) {
+				double next = x ? coarse.getX(i + 1) : coarse.getY(i + 1);
+				axis[size++] = (position + next) / 2;
+			}
+		}
+		return Arrays.copyOf(axis, size);
+	}
+
+	/**
+	 * @return true for the coarse cells to split, row major
+	 */
+	public boolean[] getRefinedCells() {
+		return refined;
+	}
+
+	/**
+	 * @return the X of every column of the refined grid
+	 */
+	public double[] getColumnPositions() {
+		return xs;
+	}
+
+	/**
+	 * @return the Y of every row of the refined grid
+	 */
+	public double[] getRowPositions() {
+		return ys;
+	}
+
+	/**
+	 * @return for every point of the refined grid, row major, true if it is
+	 *         new and has to be probed
+	 */
+	public boolean[] getNewPoints() {
+		return newPoints;
+	}
+
+	public int getNewPointCount() {
+		int count = 0;
+		for (boolean point : newPoints) {
+			if (point) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,434 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller.probe;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Order to visit a set of probe points in, planned as a round trip from a
+ * start position back to it with as little rapid travel as possible. The
+ * tour is built by always going to the nearest point not yet visited and then
+ * improved with 2-opt moves, each move swapping two edges of the tour for two
+ * shorter ones, until no move helps. Both steps only look at the nearest
+ * neighbours of each point, found through a grid of buckets, so any set of
+ * points works: full, masked, uneven or refined grids.
+ */
+public class ProbeRoute {
+	// neighbours tried by 2-opt for each point
+	private static final int NEIGHBOURS = 10;
+	private static final double EPSILON = 1e-9;
+
+	private final double startX;
+	private final double startY;
+	private final double[] xs;
+	private final double[] ys;
+	private final int[] order;
+	private final double length;
+
+	private ProbeRoute(double startX, double startY, double[] xs, double[] ys, int[] order) {
+		this.startX = startX;
+		this.startY = startY;
+		this.xs = xs;
+		this.ys = ys;
+		this.order = order;
+		this.length = length(startX, startY, xs, ys, order);
+	}
+
+	/**
+	 * Plans the route over the points.
+	 */
+	public static ProbeRoute plan(double startX, double startY, double[] xs, double[] ys) {
+		int count = xs.length;
+		if (count < 3) {
+			int[] order = new int[count];
+			for (int i = 0; i < count; i++) {
+				order[i] = i;
+			}
+			return new ProbeRoute(startX, startY, xs, ys, order);
+		}
+		// the start is one more node of the tour, the last
+		double[] nodeXs = Arrays.copyOf(xs, count + 1);
+		double[] nodeYs = Arrays.copyOf(ys, count + 1);
+		nodeXs[count] = startX;
+		nodeYs[count] = startY;
+		Tour tour = new Tour(nodeXs, nodeYs);
+		tour.nearestNeighbour(count);
+		tour.twoOpt();
+		return new ProbeRoute(startX, startY, xs, ys, tour.orderFrom(count));
+	}
+
+	/**
+	 * Takes an order as it is, e.g. the serpentine over a grid.
+	 */
+	public static ProbeRoute of(double startX, double startY, double[] xs, double[] ys, int[] order) {
+		return new ProbeRoute(startX, startY, xs, ys, order.clone());
+	}
+
+	/**
+	 * @return indices of the points in the order to visit them
+	 */
+	public int[] getOrder() {
+		return order.clone();
+	}
+
+	/**
+	 * @return XY travel from the start through every point back to the start
+	 */
+	public double getLength() {
+		return length;
+	}
+
+	public int size() {
+		return order.length;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "%d points from %.3f, %.3f, %.1f of travel", order.length, startX, startY, length);
+	}
+
+	private static double length(double startX, double startY, double[] xs, double[] ys, int[] order) {
+		double length = 0;
+		double x = startX;
+		double y = startY;
+		for (int point : order) {
+			length += Math.hypot(xs[point] - x, ys[point] - y);
+			x = xs[point];
+			y = ys[point];
+		}
+		return length + Math.hypot(startX - x, startY - y);
+	}
+
+	/**
+	 * A closed tour over the nodes with the bucket grid used to find near
+	 * nodes.
+	 */
+	private static class Tour {
+		private final double[] xs;
+		private final double[] ys;
+		private final int size;
+		private final int[] tour;
+		private final int[] positions;
+
+		// bucket grid, the nodes of cell c are cellNodes[cellStarts[c] ..
+		// cellStarts[c] + cellCounts[c]], nodes still to visit first
+		private final double minX;
+		private final double minY;
+		private final double cellSize;
+		private final int columns;
+		private final int rows;
+		private final int[] cellStarts;
+		private final int[] cellCounts;
+		private final int[] cellNodes;
+		private final int[] slots;
+
+		Tour(double[] xs, double[] ys) {
+			this.xs = xs;
+			this.ys = ys;
+			size = xs.length;
+			tour = new int[size];
+			positions = new int[size];
+
+			double maxX = xs[0];
+			double maxY = ys[0];
+			double lowX = xs[0];
+			double lowY = ys[0];
+			for (int i = 1; i < size; i++) {
+				lowX = Math.min(lowX, xs[i]);
+				lowY = Math.min(lowY, ys[i]);
+				maxX = Math.max(maxX, xs[i]);
+				maxY = Math.max(maxY, ys[i]);
+			}
+			minX = lowX;
+			minY = lowY;
+			double extent = Math.max(Math.max(maxX - minX, maxY - minY), EPSILON);
+			// about one node per cell on a square area
+			double area = Math.max((maxX - minX) * (maxY - minY), extent * extent / size);
+			cellSize = Math.max(Math.sqrt(area / size), extent / 4096);
+			columns = (int) ((maxX - minX) / cellSize) + 1;
+			rows = (int) ((maxY - minY) / cellSize) + 1;
+			cellStarts = new int[columns * rows + 1];
+			cellCounts = new int[columns * rows];
+			cellNodes = new int[size];
+			slots = new int[size];
+			for (int i = 0; i < size; i++) {
+				cellCounts[cell(i)]++;
+			}
+			for (int c = 0; c < cellCounts.length; c++) {
+				cellStarts[c + 1] = cellStarts[c] + cellCounts[c];
+			}
+			int[] filled = new int[cellCounts.length];
+			for (int i = 0; i < size; i++) {
+				int c = cell(i);
+				slots[i] = cellStarts[c] + filled[c]++;
+				cellNodes[slots[i]] = i;
+			}
+		}
+
+		/**
+		 * Builds the tour from the first node, always going to the nearest
+		 * node not yet in it.
+		 */
+		void nearestNeighbour(int first) {
+			int current = first;
+			remove(current);
+			tour[0] = current;
+			positions[current] = 0;
+			for (int i = 1; i < size; i++) {
+				current = nearestRemaining(xs[current], ys[current]);
+				remove(current);
+				tour[i] = current;
+				positions[current] = i;
+			}
+		}
+
+		/**
+		 * Applies improving 2-opt moves between each node and its nearest
+		 * neighbours until there are none, nodes next to a change are looked
+		 * at again.
+		 */
+		void twoOpt() {
+			int[][] neighbours = neighbours();
+			int[] queue = new int[size];
+			boolean[] queued = new boolean[size];
+			int head = 0;
+			int queueSize = size;
+			for (int i = 0; i < size; i++) {
+				queue[i] = tour[i];
+				queued[tour[i]] = true;
+			}
+			while (queueSize > 0) {
+				int a = queue[head];
+				head = (head + 1) % size;
+				queueSize--;
+				queued[a] = false;
+				int[] changed = improve(a, neighbours[a]);
+				if (changed != null) {
+					for (int node : changed) {
+						if (!queued[node]) {
+							queue[(head + queueSize++) % size] = node;
+							queued[node] = true;
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * @return the nodes after the first node in tour order
+		 */
+		int[] orderFrom(int first) {
+			int[] order = new int[size - 1];
+			int start = positions[first];
+			for (int i = 1; i < size; i++) {
+				order[i - 1] = tour[(start + i) % size];
+			}
+			return order;
+		}
+
+		/**
+		 * Tries the 2-opt moves that give a a nearer neighbour in either
+		 * direction of the tour, applies the first that shortens it.
+		 *
+		 * @return the four nodes of the changed edges, null if nothing helped
+		 */
+		private int[] improve(int a, int[] near) {
+			for (int direction = 0; direction < 2; direction++) {
+				boolean forward = direction == 0;
+				int b = forward ? next(a) : previous(a);
+				double ab = distance(a, b);
+				for (int c : near) {
+					double ac = distance(a, c);
+					if (ac >= ab - EPSILON) {
+						break;
+					}
+					int d = forward ? next(c) : previous(c);
+					if (c == b || d == a) {
+						continue;
+					}
+					double gain = ab + distance(c, d) - ac - distance(b, d);
+					if (gain > EPSILON) {
+						if (forward) {
+							reverse(b, c);
+						} else {
+							reverse(c, b);
+						}
+						return new int[] { a, b, c, d };
+					}
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Reverses the part of the tour from node from to node to, or the
+		 * rest of the tour if that is shorter, which is the same tour.
+		 */
+		private void reverse(int from, int to) {
+			int i = positions[from];
+			int j = positions[to];
+			int length = ((j - i + size) % size) + 1;
+			if (length * 2 > size) {
+				int start = (j + 1) % size;
+				j = (i - 1 + size) % size;
+				i = start;
+				length = size - length;
+			}
+			for (int k = 0; k < length / 2; k++) {
+				int first = tour[i];
+				tour[i] = tour[j];
+				tour[j] = first;
+				positions[tour[i]] = i;
+				positions[tour[j]] = j;
+				i = (i + 1) % size;
+				j = (j - 1 + size) % size;
+			}
+		}
+
+		private int next(int node) {
+			return tour[(positions[node] + 1) % size];
+		}
+
+		private int previous(int node) {
+			return tour[(positions[node] - 1 + size) % size];
+		}
+
+		private double distance(int a, int b) {
+			return Math.hypot(xs[a] - xs[b], ys[a] - ys[b]);
+		}
+
+		/**
+		 * @return the nearest neighbours of every node, nearest first
+		 */
+		private int[][] neighbours() {
+			// every node is back in the grid
+			for (int c = 0; c < cellCounts.length; c++) {
+				cellCounts[c] = cellStarts[c + 1] - cellStarts[c];
+			}
+			int wanted = Math.min(NEIGHBOURS, size - 1);
+			int[][] neighbours = new int[size][];
+			int[] found = new int[wanted];
+			double[] distances = new double[wanted];
+			for (int node = 0; node < size; node++) {
+				int count = 0;
+				int column = column(xs[node]);
+				int row = row(ys[node]);
+				for (int ring = 0; ring < Math.max(columns, rows); ring++) {
+					for (int r = row - ring; r <= row + ring; r++) {
+						for (int c = column - ring; c <= column + ring; c++) {
+							if (r < 0 || r >= rows || c < 0 || c >= columns
+								|| (Math.abs(r - row) != ring && Math.abs(c - column) != ring)) {
+								continue;
+							}
+							int cell = r * columns + c;
+							for (int s = cellStarts[cell]; s < cellStarts[cell] + cellCounts[cell]; s++) {
+								int other = cellNodes[s];
+								if (other == node) {
+									continue;
+								}
+								double distance = distance(node, other);
+								if (count < wanted || distance < distances[count - 1]) {
+									// insertion into the sorted list
+									int at = count < wanted ? count++ : count - 1;
+									while (at > 0 && distances[at - 1] > distance) {
+										distances[at] = distances[at - 1];
+										found[at] = found[at - 1];
+										at--;
+									}
+									distances[at] = distance;
+									found[at] = other;
+								}
+							}
+						}
+					}
+					// nodes in further rings are at least ring cells away
+					if (count == wanted && distances[count - 1] <= ring * cellSize) {
+						break;
+					}
+				}
+				neighbours[node] = Arrays.copyOf(found, count);
+			}
+			return neighbours;
+		}
+
+		private int nearestRemaining(double x, double y) {
+			int column = column(x);
+			int row = row(y);
+			int best = -1;
+			double bestDistance = Double.MAX_VALUE;
+			for (int ring = 0; ring < Math.max(columns, rows); ring++) {
+				for (int r = row - ring; r <= row + ring; r++) {
+					if (r < 0 || r >= rows) {
+						continue;
+					}
+					// only the edge of the ring
+					int step = (r == row - ring || r == row + ring) ? 1 : Math.max(1, 2 * ring);
+					for (int c = column - ring; c <= column + ring; c += step) {
+						if (c < 0 || c >= columns) {
+							continue;
+						}
+						int cell = r * columns + c;
+						for (int s = cellStarts[cell]; s < cellStarts[cell] + cellCounts[cell]; s++) {
+							int node = cellNodes[s];
+							double distance = Math.hypot(xs[node] - x, ys[node] - y);
+							if (distance < bestDistance) {
+								bestDistance = distance;
+								best = node;
+							}
+						}
+					}
+				}
+				if (best >= 0 && bestDistance <= ring * cellSize) {
+					break;
+				}
+			}
+			return best;
+		}
+
+		/**
+		 * Takes the node out of its cell, swapping it with the last node
+		 * still in the cell.
+		 */
+		private void remove(int node) {
+			int c = cell(node);
+			int last = cellStarts[c] + --cellCounts[c];
+			int other = cellNodes[last];
+			int slot = slots[node];
+			cellNodes[slot] = other;
+			slots[other] = slot;
+			cellNodes[last] = node;
+			slots[node] = last;
+		}
+
+		private int cell(int node) {
+			return row(ys[node]) * columns + column(xs[node]);
+		}
+
+		private int column(double x) {
+			return Math.min(columns - 1, Math.max(0, (int) ((x - minX) / cellSize)));
+		}
+
+		private int row(double y) {
+			return Math.min(rows - 1, Math.max(0, (int) ((y - minY) / cellSize)));
+		}
+	}
+}
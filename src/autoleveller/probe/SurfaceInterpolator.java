@@ -0,0 +1,52 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller.probe;
+
+/**
+ * Height of the probed surface between the probe points. Implementations
+ * prepare everything they need from the {@link HeightMap} when they are
+ * created and are immutable afterwards, so one instance can be shared by
+ * all threads.
+ */
+public interface SurfaceInterpolator {
+	String BILINEAR = "bilinear";
+	String BICUBIC = "bicubic";
+	String CATMULL_ROM = "catmull-rom";
+
+	/**
+	 * @return the interpolated height at x, y, points outside the grid get the
+	 *         height of the nearest point on the grid edge
+	 */
+	double getZ(double x, double y);
+
+	HeightMap getHeightMap();
+
+	/**
+	 * @return the highest degree the height can have along a straight line
+	 *         inside one grid cell, as a polynomial in the distance along it
+	 */
+	int getDegree();
+
+	/**
+	 * @return the name of the interpolation, e.g. {@link #BILINEAR}
+	 */
+	String getName();
+}
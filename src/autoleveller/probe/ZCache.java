@@ -0,0 +1,158 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller.probe;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Bounded cache of interpolated heights for toolpaths that visit the same XY
+ * positions many times, e.g. multi pass or multi depth isolation jobs. XY is
+ * quantised and packed into a long key, the cache is 4 way set associative
+ * with clock eviction within each set. The height is always interpolated at
+ * the quantised position, so the result does not depend on what was cached
+ * before. A cache is not thread safe, use one per thread.
+ */
+public class ZCache {
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+	/**
+	 * Below the precision segment ends are written with.
+	 */
+	public static final double DEFAULT_QUANTUM = 1e-5;
+
+	private static final int WAYS = 4;
+	// can't be a key, a quantised X of Integer.MIN_VALUE is out of range
+	private static final long EMPTY = Long.MIN_VALUE;
+
+	private final SurfaceInterpolator interpolator;
+	private final double quantum;
+	private final double scale;
+	private final int setMask;
+	private final long[] keys;
+	private final double[] heights;
+	private final boolean[] referenced;
+	private final byte[] hands;
+	private long hits;
+	private long misses;
+
+	public ZCache(SurfaceInterpolator interpolator) {
+		this(interpolator, DEFAULT_CAPACITY, DEFAULT_QUANTUM);
+	}
+
+	/**
+	 * @param capacity
+	 *            number of heights kept, rounded up to a power of two of at
+	 *            least 4
+	 * @param quantum
+	 *            positions are rounded to a multiple of this
+	 */
+	public ZCache(SurfaceInterpolator interpolator, int capacity, double quantum) {
+		int wanted = Math.max(1, (capacity + WAYS - 1) / WAYS);
+		int sets = wanted == 1 ? 1 : Integer.highestOneBit(wanted - 1) << 1;
+		this.interpolator = interpolator;
+		this.quantum = quantum;
+		this.scale = 1 / quantum;
+		setMask = sets - 1;
+		keys = new long[sets * WAYS];
+		heights = new double[sets * WAYS];
+		referenced = new boolean[sets * WAYS];
+		hands = new byte[sets];
+		Arrays.fill(keys, EMPTY);
+	}
+
+	/**
+	 * @return the interpolated height at x, y rounded to the quantum
+	 */
+	public double getZ(double x, double y) {
+		double qx = Math.rint(x * scale);
+		double qy = Math.rint(y * scale);
+		if (Math.abs(qx) >= Integer.MAX_VALUE || Math.abs(qy) >= Integer.MAX_VALUE) {
+			misses++;
+			return interpolator.getZ(x, y);
+		}
+		long key = ((long) qx << 32) | ((long) qy & 0xffffffffL);
+		int set = hash(key) & setMask;
+		int base = set * WAYS;
+		for (int i = base; i < base + WAYS; i++) {
+			if (keys[i] == key) {
+				referenced[i] = true;
+				hits++;
+				return heights[i];
+			}
+		}
+		misses++;
+		double z = interpolator.getZ(qx * quantum, qy * quantum);
+		int victim = victim(set);
+		keys[victim] = key;
+		heights[victim] = z;
+		referenced[victim] = true;
+		return z;
+	}
+
+	public SurfaceInterpolator getInterpolator() {
+		return interpolator;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return the share of lookups answered from the cache, 0 before any lookup
+	 */
+	public double getHitRate() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "Z cache: %d lookups, %d hits (%.1f%%), %d entries", hits + misses, hits, 100 * getHitRate(),
+			keys.length);
+	}
+
+	/**
+	 * @return the slot to replace in the set, sweeping the clock hand past the
+	 *         recently used slots
+	 */
+	private int victim(int set) {
+		int base = set * WAYS;
+		int hand = hands[set];
+		while (true) {
+			int slot = base + hand;
+			hand = (hand + 1) & (WAYS - 1);
+			if (keys[slot] == EMPTY || !referenced[slot]) {
+				hands[set] = (byte) hand;
+				return slot;
+			}
+			referenced[slot] = false;
+		}
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
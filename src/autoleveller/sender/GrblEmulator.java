@@ -0,0 +1,391 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller.sender;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stand in for a GRBL 0.9 controller at the other end of a pipe, for trying
+ * out and measuring senders without a machine. Like GRBL it has a bounded
+ * serial receive buffer, bytes that arrive when it is full are lost and
+ * counted as overflows. Blocks are parsed from the buffer into a planner of
+ * {@link #PLANNER_BLOCKS} moves, each taking a fixed time to run, and answered
+ * with ok or error as soon as they are in the planner. A ? is answered with a
+ * status report at once. Every answer can be delayed by a fixed latency, like
+ * that of a USB serial adapter. Starting it can be made to lose what is sent
+ * for a while, like a board reset by opening its serial port, and a ctrl-x
+ * resets it.
+ */
+public class GrblEmulator implements Closeable {
+	public static final String WELCOME = "Grbl 0.9j ['$' for help]";
+	public static final int PLANNER_BLOCKS = 18;
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private final int rxBufferSize;
+	private final long blockNanos;
+	private final long latencyNanos;
+	private long bootNanos;
+	private boolean welcome = true;
+
+	// guarded by rx
+	private final StringBuilder rx = new StringBuilder();
+	private int completeLines;
+	private boolean closed;
+	private long overflows;
+	private int maxRxFill;
+	private long bootedAt;
+	private long bootLosses;
+
+	// guarded by this, the finish times of the planned moves
+	private final long[] plannerEnds = new long[PLANNER_BLOCKS];
+	private int plannerHead;
+	private int plannerSize;
+	private long lastEnd;
+	private final double[] position = new double[3];
+	private long blocks;
+
+	private OutputStream out;
+	private ScheduledExecutorService responses;
+	private Transport transport;
+
+	public GrblEmulator() {
+		this(GrblStreamer.RX_BUFFER_SIZE, 0, 0);
+	}
+
+	/**
+	 * @param rxBufferSize
+	 *            bytes the receive buffer holds
+	 * @param blockMicros
+	 *            time each block takes to run
+	 * @param latencyMicros
+	 *            delay of every answer
+	 */
+	public GrblEmulator(int rxBufferSize, long blockMicros, long latencyMicros) {
+		this.rxBufferSize = rxBufferSize;
+		this.blockNanos = blockMicros * 1000;
+		this.latencyNanos = latencyMicros * 1000;
+	}
+
+	/**
+	 * Makes the emulator lose every byte it receives for bootMillis after it
+	 * starts, like GRBL while the bootloader runs after a reset, and only then
+	 * send the welcome message. 0 (the default) starts at once.
+	 */
+	public void setBootMillis(long bootMillis) {
+		this.bootNanos = TimeUnit.MILLISECONDS.toNanos(bootMillis);
+	}
+
+	/**
+	 * @param welcome
+	 *            false for a board that was already running, it sends no
+	 *            welcome message until it is reset with ctrl-x
+	 */
+	public void setWelcome(boolean welcome) {
+		this.welcome = welcome;
+	}
+
+	/**
+	 * Starts the emulator and sends the welcome message, see
+	 * {@link #setBootMillis(long)}.
+	 *
+	 * @return the sender's end of the pipes
+	 */
+	public synchronized Transport start() throws IOException {
+		if (transport != null) {
+			throw new IllegalStateException("already started");
+		}
+		Pipe toGrbl = Pipe.open();
+		Pipe fromGrbl = Pipe.open();
+		final InputStream in = Channels.newInputStream(toGrbl.source());
+		out = Channels.newOutputStream(fromGrbl.sink());
+		transport = new StreamTransport(Channels.newInputStream(fromGrbl.source()), Channels.newOutputStream(toGrbl.sink()));
+		responses = Executors.newSingleThreadScheduledExecutor(daemon("GRBL emulator output"));
+		synchronized (rx) {
+			bootedAt = System.nanoTime() + bootNanos;
+		}
+		if (welcome) {
+			respond("", bootNanos);
+			respond(WELCOME, bootNanos);
+		}
+		daemon("GRBL emulator serial").newThread(new Runnable() {
+			@Override
+			public void run() {
+				receive(in);
+			}
+		}).start();
+		daemon("GRBL emulator planner").newThread(new Runnable() {
+			@Override
+			public void run() {
+				parse();
+			}
+		}).start();
+		return transport;
+	}
+
+	/**
+	 * @return blocks taken into the planner so far
+	 */
+	public synchronized long getBlocks() {
+		return blocks;
+	}
+
+	/**
+	 * @return bytes lost because the receive buffer was full, a sender keeping
+	 *         to the protocol never causes any
+	 */
+	public long getOverflows() {
+		synchronized (rx) {
+			return overflows;
+		}
+	}
+
+	/**
+	 * @return bytes lost because they came before the emulator had started
+	 */
+	public long getBootLosses() {
+		synchronized (rx) {
+			return bootLosses;
+		}
+	}
+
+	/**
+	 * @return the most bytes the receive buffer held at once
+	 */
+	public int getMaxRxFill() {
+		synchronized (rx) {
+			return maxRxFill;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (rx) {
+			closed = true;
+			rx.notifyAll();
+		}
+		synchronized (this) {
+			if (responses != null && !responses.isShutdown()) {
+				// after the answers still on their way
+				responses.schedule(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							out.close();
+						} catch (IOException e) {
+							// already gone
+						}
+					}
+				}, latencyNanos, TimeUnit.NANOSECONDS);
+				responses.shutdown();
+			}
+		}
+	}
+
+	private void receive(InputStream in) {
+		byte[] buffer = new byte[256];
+		try {
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				for (int i = 0; i < read; i++) {
+					char c = (char) buffer[i];
+					synchronized (rx) {
+						if (System.nanoTime() < bootedAt) {
+							bootLosses++;
+							continue;
+						}
+					}
+					if (c == 0x18) {
+						// soft reset, the receive buffer is cleared
+						synchronized (rx) {
+							rx.setLength(0);
+							completeLines = 0;
+						}
+						respond("");
+						respond(WELCOME);
+						continue;
+					}
+					if (c == '?') {
+						// real time, never enters the buffer
+						respond(status());
+						continue;
+					}
+					synchronized (rx) {
+						if (rx.length() == rxBufferSize) {
+							overflows++;
+							continue;
+						}
+						rx.append(c);
+						maxRxFill = Math.max(maxRxFill, rx.length());
+						if (c == '\n') {
+							completeLines++;
+							rx.notifyAll();
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			// the sender went away
+		}
+		try {
+			close();
+		} catch (IOException e) {
+			// nothing left to close
+		}
+	}
+
+	private void parse() {
+		while (true) {
+			String line;
+			synchronized (rx) {
+				while (completeLines == 0 && !closed) {
+					try {
+						rx.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (completeLines == 0) {
+					return;
+				}
+				int end = rx.indexOf("\n");
+				line = rx.substring(0, end).trim();
+				rx.delete(0, end + 1);
+				completeLines--;
+			}
+			if (line.length() > 0) {
+				respond(execute(line));
+			}
+		}
+	}
+
+	/**
+	 * Checks the block and plans it, waiting for the planner to have room.
+	 *
+	 * @return ok or the error of the block
+	 */
+	private String execute(String line) {
+		if (line.charAt(0) == '$') {
+			return "ok";
+		}
+		// only this thread moves the position
+		double[] target = position.clone();
+		int i = 0;
+		while (i < line.length()) {
+			char letter = Character.toUpperCase(line.charAt(i++));
+			if (letter < 'A' || letter > 'Z') {
+				return "error: Expected command letter";
+			}
+			int start = i;
+			while (i < line.length() && "0123456789.+-".indexOf(line.charAt(i)) >= 0) {
+				i++;
+			}
+			double value;
+			try {
+				value = Double.parseDouble(line.substring(start, i));
+			} catch (NumberFormatException e) {
+				return "error: Bad number format";
+			}
+			if (letter >= 'X' && letter <= 'Z') {
+				target[letter - 'X'] = value;
+			}
+		}
+		while (true) {
+			long wait;
+			synchronized (this) {
+				long now = System.nanoTime();
+				while (plannerSize > 0 && plannerEnds[plannerHead] <= now) {
+					removeFirst();
+				}
+				if (plannerSize < PLANNER_BLOCKS) {
+					lastEnd = Math.max(now, lastEnd) + blockNanos;
+					plannerEnds[(plannerHead + plannerSize++) % PLANNER_BLOCKS] = lastEnd;
+					System.arraycopy(target, 0, position, 0, 3);
+					blocks++;
+					return "ok";
+				}
+				wait = plannerEnds[plannerHead] - now;
+			}
+			// the planner is full until its first move is done
+			LockSupport.parkNanos(wait);
+		}
+	}
+
+	private void removeFirst() {
+		plannerHead = (plannerHead + 1) % PLANNER_BLOCKS;
+		plannerSize--;
+	}
+
+	private synchronized String status() {
+		String state = lastEnd > System.nanoTime() ? "Run" : "Idle";
+		String at = String.format(Locale.US, "%.3f,%.3f,%.3f", position[0], position[1], position[2]);
+		return "<" + state + ",MPos:" + at + ",WPos:" + at + ">";
+	}
+
+	private void respond(String line) {
+		respond(line, 0);
+	}
+
+	/**
+	 * Sends the line after the latency and delayNanos.
+	 */
+	private void respond(final String line, long delayNanos) {
+		final byte[] bytes = (line + "\r\n").getBytes(ASCII);
+		try {
+			responses.schedule(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						out.write(bytes);
+						out.flush();
+					} catch (IOException e) {
+						// the sender went away
+					}
+				}
+			}, latencyNanos + delayNanos, TimeUnit.NANOSECONDS);
+		} catch (RuntimeException e) {
+			// closed while answering
+		}
+	}
+
+	private static ThreadFactory daemon(final String name) {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
@@ -0,0 +1,490 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller.sender;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams g-code to GRBL with the character counting protocol. GRBL answers
+ * every block with ok or error once it has taken the block out of its serial
+ * receive buffer, so the streamer keeps the bytes of every unanswered block
+ * and sends the next block as soon as it fits in what is left of the buffer.
+ * The buffer never runs dry while GRBL is planning, which matters most on
+ * files of many short moves, e.g. levelled ones. Responses are read on a
+ * thread of their own and the status is polled with the real time ? command,
+ * which GRBL answers without it taking room in the buffer. Nothing is sent
+ * before GRBL has printed its welcome message, since opening the serial port
+ * resets most boards.
+ */
+public class GrblStreamer {
+	/**
+	 * Serial receive buffer of GRBL 0.9 on an Arduino Uno, less one byte.
+	 */
+	public static final int RX_BUFFER_SIZE = 127;
+	public static final long DEFAULT_STATUS_INTERVAL = 200;
+	public static final long DEFAULT_WELCOME_TIMEOUT = 5000;
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final byte[] STATUS_QUERY = { '?' };
+	private static final byte[] SOFT_RESET = { 0x18 };
+	private static final String WELCOME = "Grbl ";
+
+	/**
+	 * Gets the lines from GRBL that are not answers to blocks, on the thread
+	 * reading the responses.
+	 */
+	public interface Listener {
+		/**
+		 * @param report
+		 *            e.g. &lt;Run,MPos:1.000,2.000,-0.100,WPos:1.000,2.000,-0.100&gt;
+		 */
+		void status(String report);
+
+		/**
+		 * @param line
+		 *            the welcome message, an alarm or a [feedback] message
+		 */
+		void message(String line);
+	}
+
+	private static class Block {
+		final String text;
+		final long lineNumber;
+		final int length;
+
+		Block(String text, long lineNumber, int length) {
+			this.text = text;
+			this.lineNumber = lineNumber;
+			this.length = length;
+		}
+	}
+
+	private final Transport transport;
+	private int rxBufferSize = RX_BUFFER_SIZE;
+	private long statusInterval = DEFAULT_STATUS_INTERVAL;
+	private long welcomeTimeout = DEFAULT_WELCOME_TIMEOUT;
+	private boolean characterCounting = true;
+	private volatile Listener listener;
+	private Thread reader;
+
+	// guarded by this
+	private boolean welcomed;
+	private final Deque<Block> outstanding = new ArrayDeque<Block>();
+	private int outstandingBytes;
+	private IOException failure;
+	private final List<String> errors = new ArrayList<String>();
+	private long linesSent;
+	private long bytesSent;
+	private long linesAcknowledged;
+	private int maxBufferFill;
+	private String lastStatus;
+	private long startNanos;
+	private long endNanos;
+
+	public GrblStreamer(Transport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * @param rxBufferSize
+	 *            bytes GRBL can receive ahead, {@link #RX_BUFFER_SIZE} unless
+	 *            the firmware is built with another buffer
+	 */
+	public void setRxBufferSize(int rxBufferSize) {
+		this.rxBufferSize = rxBufferSize;
+	}
+
+	/**
+	 * @param statusInterval
+	 *            milliseconds between status queries while streaming, 0 for
+	 *            none
+	 */
+	public void setStatusInterval(long statusInterval) {
+		this.statusInterval = statusInterval;
+	}
+
+	/**
+	 * @param welcomeTimeout
+	 *            milliseconds to wait for the welcome message GRBL prints when it
+	 *            starts, 0 to stream at once to a GRBL that is known to be
+	 *            running
+	 */
+	public void setWelcomeTimeout(long welcomeTimeout) {
+		this.welcomeTimeout = welcomeTimeout;
+	}
+
+	/**
+	 * Turns character counting off to wait for the answer to each block before
+	 * sending the next, the simple send-response protocol.
+	 */
+	public void setCharacterCounting(boolean characterCounting) {
+		this.characterCounting = characterCounting;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Sends every block of the g-code and waits for all of them to be answered.
+	 * Comments and white space are left out to save room in the receive buffer.
+	 * Blocks GRBL answers with an error are recorded, see {@link #getErrors()},
+	 * and streaming goes on. An alarm, a reset or losing the connection stops
+	 * it.
+	 */
+	public void stream(BufferedReader gCode) throws IOException {
+		startReader();
+		try {
+			waitForWelcome();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("interrupted waiting for GRBL");
+		}
+		ScheduledExecutorService poller = statusInterval > 0 ? startPolling() : null;
+		synchronized (this) {
+			startNanos = System.nanoTime();
+			endNanos = 0;
+		}
+		try {
+			String line;
+			long lineNumber = 0;
+			while ((line = gCode.readLine()) != null) {
+				lineNumber++;
+				String block = clean(line);
+				if (block.length() > 0) {
+					send(block, lineNumber);
+				}
+			}
+			synchronized (this) {
+				waitForRoom(0);
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("streaming interrupted");
+		} finally {
+			if (poller != null) {
+				poller.shutdownNow();
+			}
+			synchronized (this) {
+				endNanos = System.nanoTime();
+			}
+		}
+	}
+
+	/**
+	 * Closes the transport, which also ends the thread reading the responses.
+	 */
+	public void close() throws IOException {
+		transport.close();
+	}
+
+	public synchronized long getLinesSent() {
+		return linesSent;
+	}
+
+	public synchronized long getBytesSent() {
+		return bytesSent;
+	}
+
+	public synchronized long getLinesAcknowledged() {
+		return linesAcknowledged;
+	}
+
+	/**
+	 * @return the blocks GRBL answered with an error, as line number, block
+	 *         and error
+	 */
+	public synchronized List<String> getErrors() {
+		return new ArrayList<String>(errors);
+	}
+
+	/**
+	 * @return the most bytes that were unanswered at once
+	 */
+	public synchronized int getMaxBufferFill() {
+		return maxBufferFill;
+	}
+
+	/**
+	 * @return the latest status report, null before the first
+	 */
+	public synchronized String getLastStatus() {
+		return lastStatus;
+	}
+
+	/**
+	 * @return nanoseconds from the start of the stream to the last answer, or
+	 *         until now while streaming
+	 */
+	public synchronized long getElapsedNanos() {
+		if (startNanos == 0) {
+			return 0;
+		}
+		return (endNanos == 0 ? System.nanoTime() : endNanos) - startNanos;
+	}
+
+	public double getLinesPerSecond() {
+		long elapsed = getElapsedNanos();
+		return elapsed == 0 ? 0 : getLinesAcknowledged() * 1e9 / elapsed;
+	}
+
+	public double getBytesPerSecond() {
+		long elapsed = getElapsedNanos();
+		return elapsed == 0 ? 0 : getBytesSent() * 1e9 / elapsed;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(Locale.US, "Streamed %d lines, %d bytes in %.2f s (%.0f lines/s, %.0f bytes/s), %d errors, buffer up to %d of %d bytes",
+			linesAcknowledged, bytesSent, getElapsedNanos() / 1e9, getLinesPerSecond(), getBytesPerSecond(), errors.size(), maxBufferFill,
+			rxBufferSize);
+	}
+
+	/**
+	 * @return the block without comments and white space, empty for a line
+	 *         with nothing to send
+	 */
+	static String clean(String line) {
+		StringBuilder block = new StringBuilder(line.length());
+		boolean comment = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (comment) {
+				comment = c != ')';
+			} else if (c == '(') {
+				comment = true;
+			} else if (c == ';') {
+				break;
+			} else if (c > ' ') {
+				block.append(c);
+			}
+		}
+		if (block.length() == 1 && block.charAt(0) == '%') {
+			return "";
+		}
+		return block.toString();
+	}
+
+	private void send(String block, long lineNumber) throws IOException, InterruptedException {
+		byte[] bytes = (block + '\n').getBytes(ASCII);
+		if (bytes.length > rxBufferSize) {
+			throw new IOException("line " + lineNumber + " does not fit in the GRBL receive buffer: " + block);
+		}
+		synchronized (this) {
+			waitForRoom(characterCounting ? rxBufferSize - bytes.length : 0);
+			// queued before it is written, the answer may come at once
+			outstanding.add(new Block(block, lineNumber, bytes.length));
+			outstandingBytes += bytes.length;
+			maxBufferFill = Math.max(maxBufferFill, outstandingBytes);
+			linesSent++;
+			bytesSent += bytes.length;
+		}
+		write(bytes);
+	}
+
+	/**
+	 * Waits for GRBL to start. Opening a serial port resets most boards, and
+	 * whatever is sent while the bootloader runs is lost, which would leave the
+	 * count of unanswered bytes wrong from the first block. Everything GRBL
+	 * sent before its welcome message is dropped. If no message comes in time
+	 * the board did not reset, so it is reset with ctrl-x and waited for once
+	 * more.
+	 */
+	private synchronized void waitForWelcome() throws IOException, InterruptedException {
+		if (welcomeTimeout <= 0) {
+			welcomed = true;
+			return;
+		}
+		if (!awaitWelcome()) {
+			write(SOFT_RESET);
+			if (!awaitWelcome()) {
+				throw new IOException("GRBL did not send its welcome message within " + welcomeTimeout + " ms");
+			}
+		}
+	}
+
+	/**
+	 * @return true if the welcome message came within the timeout, holding
+	 *         the lock
+	 */
+	private boolean awaitWelcome() throws IOException, InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(welcomeTimeout);
+		long left;
+		while (!welcomed && failure == null && (left = deadline - System.nanoTime()) > 0) {
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+		if (failure != null) {
+			throw new IOException(failure.getMessage(), failure);
+		}
+		return welcomed;
+	}
+
+	/**
+	 * Waits until at most limit bytes are unanswered, holding the lock.
+	 */
+	private void waitForRoom(int limit) throws IOException, InterruptedException {
+		while (failure == null && outstandingBytes > limit) {
+			wait();
+		}
+		if (failure != null) {
+			throw new IOException(failure.getMessage(), failure);
+		}
+	}
+
+	private void write(byte[] bytes) throws IOException {
+		OutputStream out = transport.getOutputStream();
+		// the status poller writes too
+		synchronized (out) {
+			out.write(bytes);
+			out.flush();
+		}
+	}
+
+	private synchronized void startReader() {
+		if (reader != null) {
+			return;
+		}
+		reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readResponses();
+			}
+		}, "GRBL responses");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private ScheduledExecutorService startPolling() {
+		ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "GRBL status");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		poller.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write(STATUS_QUERY);
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		}, 0, statusInterval, TimeUnit.MILLISECONDS);
+		return poller;
+	}
+
+	private void readResponses() {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(transport.getInputStream(), ASCII));
+			String line;
+			while ((line = in.readLine()) != null) {
+				response(line.trim());
+			}
+			fail(new IOException("GRBL closed the connection"));
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private void response(String line) {
+		if (line.length() == 0) {
+			return;
+		}
+		int welcome = line.indexOf(WELCOME);
+		if (welcome >= 0) {
+			// after any noise from the bootloader
+			line = line.substring(welcome);
+			welcome();
+		} else if (!isWelcomed()) {
+			// from the bootloader or from before the reset
+			return;
+		}
+		Listener listener = this.listener;
+		if (line.equals("ok")) {
+			acknowledge(null);
+		} else if (line.startsWith("error")) {
+			acknowledge(line);
+		} else if (line.startsWith("<")) {
+			synchronized (this) {
+				lastStatus = line;
+			}
+			if (listener != null) {
+				listener.status(line);
+			}
+		} else {
+			if (line.startsWith("ALARM")) {
+				fail(new IOException("GRBL alarm: " + line));
+			}
+			if (listener != null) {
+				listener.message(line);
+			}
+		}
+	}
+
+	private synchronized boolean isWelcomed() {
+		return welcomed;
+	}
+
+	private synchronized void welcome() {
+		if (welcomed && startNanos != 0 && endNanos == 0) {
+			// the blocks in its buffer and planner are gone
+			fail(new IOException("GRBL reset while streaming"));
+		}
+		welcomed = true;
+		notifyAll();
+	}
+
+	private synchronized void acknowledge(String error) {
+		Block block = outstanding.poll();
+		if (block == null) {
+			// the answer to something sent before streaming
+			return;
+		}
+		outstandingBytes -= block.length;
+		linesAcknowledged++;
+		if (error != null) {
+			errors.add("line " + block.lineNumber + ": " + block.text + ": " + error);
+		}
+		notifyAll();
+	}
+
+	private synchronized void fail(IOException e) {
+		if (failure == null) {
+			failure = e;
+		}
+		notifyAll();
+	}
+}
@@ -0,0 +1,83 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller.sender;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * Serial port opened as a device file, e.g. /dev/ttyUSB0 or
+ * /dev/tty.usbmodem1411. Java has no serial port API of its own, so the port
+ * is first set to raw mode at the baud rate with stty, which limits this to
+ * Linux and Mac OS X.
+ */
+public class SerialPortTransport extends StreamTransport {
+	public static final int DEFAULT_BAUD_RATE = 115200;
+
+	public SerialPortTransport(String device) throws IOException {
+		this(device, DEFAULT_BAUD_RATE);
+	}
+
+	public SerialPortTransport(String device, int baudRate) throws IOException {
+		this(configure(device, baudRate));
+	}
+
+	private SerialPortTransport(File device) throws IOException {
+		super(new FileInputStream(device), new FileOutputStream(device));
+	}
+
+	private static File configure(String device, int baudRate) throws IOException {
+		File file = new File(device);
+		if (!file.exists()) {
+			throw new IOException("serial port '" + device + "' does not exist");
+		}
+		String os = System.getProperty("os.name", "").toLowerCase(Locale.US);
+		if (os.startsWith("windows")) {
+			throw new IOException("serial ports are only supported on Linux and Mac OS X");
+		}
+		String deviceFlag = os.startsWith("mac") ? "-f" : "-F";
+		Process stty = new ProcessBuilder("stty", deviceFlag, device, String.valueOf(baudRate), "raw", "-echo", "-hupcl", "cs8", "-cstopb",
+			"-parenb", "min", "1", "time", "0").redirectErrorStream(true).start();
+		String output = readAll(stty.getInputStream());
+		try {
+			if (stty.waitFor() != 0) {
+				throw new IOException("could not configure '" + device + "': " + output.trim());
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted while configuring '" + device + "'", e);
+		}
+		return file;
+	}
+
+	private static String readAll(InputStream in) throws IOException {
+		StringBuilder text = new StringBuilder();
+		byte[] buffer = new byte[256];
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			text.append(new String(buffer, 0, read, "US-ASCII"));
+		}
+		return text.toString();
+	}
+}
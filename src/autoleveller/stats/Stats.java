@@ -0,0 +1,317 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller.stats;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Counters and timers of the phases of a levelling run, always on. Every
+ * thread records into its own {@link Recorder}, plain longs with no locking
+ * or atomics, and the recorders are only added up for a report. Counts are
+ * exact. Timing every call would cost more than some of the calls, so after
+ * the first 64 calls of a phase, which are all timed, one call in 64 is timed
+ * and the time of the others is estimated from those.
+ *
+ * The totals can be printed, and are committed as a JFR event when the JVM
+ * has flight recording, see {@link #finish}.
+ */
+public final class Stats {
+	/** Pre-scan passes that find the job area or chunk states, their parsing included */
+	public static final int SCAN = 0;
+	/** Parsing a line into the reader state */
+	public static final int PARSE = 1;
+	/** Splitting the moves of a line into segments */
+	public static final int SEGMENT = 2;
+	/** Interpolating the surface height of a point */
+	public static final int INTERPOLATE = 3;
+	/** Rewriting the levelled lines, their numbers formatted, and writing them out */
+	public static final int FORMAT = 4;
+	static final String[] PHASE_NAMES = { "scan", "parse", "segment", "interpolate", "format" };
+
+	/** Lines read by the levelling reader */
+	public static final int LINES_IN = 0;
+	/** Lines written */
+	public static final int LINES_OUT = 1;
+	/** Moves written for moves that were split */
+	public static final int SEGMENTS = 2;
+	/** Heights interpolated */
+	public static final int INTERPOLATIONS = 3;
+	/** Bytes written to the output */
+	public static final int BYTES_OUT = 4;
+	/** Lines read by pre-scan passes */
+	public static final int SCANNED_LINES = 5;
+	public static final int ZCACHE_HITS = 6;
+	public static final int ZCACHE_MISSES = 7;
+	static final String[] COUNTER_NAMES = { "lines in", "lines out", "segments", "interpolations", "bytes out", "scanned lines",
+		"z cache hits", "z cache misses" };
+
+	// calls of a phase that are all timed, then one in SAMPLE_MASK + 1 is
+	private static final int TIMED_CALLS = 64;
+	private static final int SAMPLE_MASK = 63;
+
+	private static final List<Recorder> recorders = new ArrayList<Recorder>();
+	private static final ThreadLocal<Recorder> recorder = new ThreadLocal<Recorder>() {
+		@Override
+		protected Recorder initialValue() {
+			Recorder created = new Recorder();
+			synchronized (recorders) {
+				recorders.add(created);
+			}
+			return created;
+		}
+	};
+	private static volatile long startNanos = System.nanoTime();
+	private static Method commitEvent;
+	private static boolean eventChecked;
+
+	private Stats() {
+	}
+
+	/**
+	 * @return the recorder of the calling thread, to be kept by an object used
+	 *         on one thread rather than looked up for every call
+	 */
+	public static Recorder recorder() {
+		return recorder.get();
+	}
+
+	/**
+	 * Clears all recorders and restarts the wall clock.
+	 */
+	public static void reset() {
+		synchronized (recorders) {
+			for (Recorder each : recorders) {
+				each.clear();
+			}
+		}
+		startNanos = System.nanoTime();
+	}
+
+	/**
+	 * @return the totals of all threads. Recorders of threads still running
+	 *         are read as they are, a report is meant for after the run.
+	 */
+	public static Snapshot snapshot() {
+		Snapshot snapshot = new Snapshot(System.nanoTime() - startNanos);
+		synchronized (recorders) {
+			for (Recorder each : recorders) {
+				snapshot.add(each);
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Ends a run: commits the totals as a JFR event and prints them to standard
+	 * error if print is set.
+	 *
+	 * @param tool
+	 *            the program that ran, e.g. GCodeLeveller
+	 * @param file
+	 *            the file or files it ran on
+	 */
+	public static Snapshot finish(String tool, String file, boolean print) {
+		Snapshot snapshot = snapshot();
+		commitEvent(tool, file, snapshot);
+		if (print) {
+			System.err.print(snapshot.report(tool + " " + file));
+		}
+		return snapshot;
+	}
+
+	/**
+	 * The event class needs jdk.jfr, Java 11 or later, so it is only loaded if
+	 * it can be.
+	 */
+	private static synchronized void commitEvent(String tool, String file, Snapshot snapshot) {
+		if (!eventChecked) {
+			eventChecked = true;
+			try {
+				commitEvent = Class.forName("autoleveller.stats.StatsEvent").getMethod("commit", String.class, String.class, Snapshot.class);
+			} catch (Exception e) {
+				// no flight recorder
+			} catch (LinkageError e) {
+				// no flight recorder
+			}
+		}
+		if (commitEvent != null) {
+			try {
+				commitEvent.invoke(null, tool, file, snapshot);
+			} catch (Exception e) {
+				commitEvent = null;
+			}
+		}
+	}
+
+	/**
+	 * Counters and timers of one thread, only to be used on that thread.
+	 */
+	public static final class Recorder {
+		private final long[] counts = new long[COUNTER_NAMES.length];
+		private final long[] calls = new long[PHASE_NAMES.length];
+		// time of the first TIMED_CALLS calls
+		private final long[] nanos = new long[PHASE_NAMES.length];
+		// time and number of the sampled calls after them
+		private final long[] sampledNanos = new long[PHASE_NAMES.length];
+		private final long[] sampledCalls = new long[PHASE_NAMES.length];
+
+		Recorder() {
+		}
+
+		public void add(int counter, long amount) {
+			counts[counter] += amount;
+		}
+
+		/**
+		 * Starts a call of the phase.
+		 *
+		 * @return the time to pass to {@link #stop}, 0 if the call is not timed
+		 */
+		public long start(int phase) {
+			long call = calls[phase]++;
+			if (call >= TIMED_CALLS && (call & SAMPLE_MASK) != 0) {
+				return 0;
+			}
+			return System.nanoTime();
+		}
+
+		public void stop(int phase, long start) {
+			if (start == 0) {
+				return;
+			}
+			long elapsed = System.nanoTime() - start;
+			if (calls[phase] <= TIMED_CALLS) {
+				nanos[phase] += elapsed;
+			} else {
+				sampledNanos[phase] += elapsed;
+				sampledCalls[phase]++;
+			}
+		}
+
+		/**
+		 * @return the time spent in the phase, estimated for the calls that
+		 *         were not timed
+		 */
+		double estimateNanos(int phase) {
+			long untimed = calls[phase] - TIMED_CALLS;
+			if (untimed <= 0 || sampledCalls[phase] == 0) {
+				return nanos[phase];
+			}
+			return nanos[phase] + (double) sampledNanos[phase] * untimed / sampledCalls[phase];
+		}
+
+		/**
+		 * Records a call of the phase that was timed as a whole, e.g. a pass
+		 * over a file.
+		 */
+		public void time(int phase, long callNanos) {
+			if (calls[phase]++ < TIMED_CALLS) {
+				nanos[phase] += callNanos;
+			} else {
+				sampledNanos[phase] += callNanos;
+				sampledCalls[phase]++;
+			}
+		}
+
+		void clear() {
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = 0;
+			}
+			for (int i = 0; i < calls.length; i++) {
+				calls[i] = 0;
+				nanos[i] = 0;
+				sampledNanos[i] = 0;
+				sampledCalls[i] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Totals of all recorders at one moment.
+	 */
+	public static final class Snapshot {
+		private final long wallNanos;
+		private final long[] counts = new long[COUNTER_NAMES.length];
+		private final long[] calls = new long[PHASE_NAMES.length];
+		private final double[] nanos = new double[PHASE_NAMES.length];
+
+		Snapshot(long wallNanos) {
+			this.wallNanos = wallNanos;
+		}
+
+		void add(Recorder recorder) {
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] += recorder.counts[i];
+			}
+			for (int i = 0; i < calls.length; i++) {
+				calls[i] += recorder.calls[i];
+				nanos[i] += recorder.estimateNanos(i);
+			}
+		}
+
+		public long getCount(int counter) {
+			return counts[counter];
+		}
+
+		public long getCalls(int phase) {
+			return calls[phase];
+		}
+
+		/**
+		 * @return the estimated time spent in the phase, summed over threads
+		 */
+		public long getNanos(int phase) {
+			return (long) nanos[phase];
+		}
+
+		public long getWallNanos() {
+			return wallNanos;
+		}
+
+		/**
+		 * @return the totals as a table of phases followed by the counters
+		 */
+		public String report(String title) {
+			StringBuilder out = new StringBuilder();
+			out.append(String.format(Locale.US, "Stats for %s, %.3f s%n", title, wallNanos / 1e9));
+			out.append(String.format(Locale.US, "  %-12s %12s %12s %10s%n", "phase", "calls", "time ms", "ns/call"));
+			for (int i = 0; i < calls.length; i++) {
+				out.append(String.format(Locale.US, "  %-12s %12d %12.1f %10.0f%n", PHASE_NAMES[i], calls[i], nanos[i] / 1e6,
+					calls[i] > 0 ? nanos[i] / calls[i] : 0.0));
+			}
+			for (int i = 0; i < counts.length; i++) {
+				out.append(String.format(Locale.US, "  %-16s %14d%n", COUNTER_NAMES[i], counts[i]));
+			}
+			long lookups = counts[ZCACHE_HITS] + counts[ZCACHE_MISSES];
+			out.append(String.format(Locale.US, "  z cache hit rate %.1f%%, %.1f MB/s out%n", lookups > 0 ? 100.0 * counts[ZCACHE_HITS] / lookups
+				: 0.0, wallNanos > 0 ? counts[BYTES_OUT] * 1e3 / wallNanos : 0.0));
+			return out.toString();
+		}
+
+		@Override
+		public String toString() {
+			return report("run");
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller.stats;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event with the totals of a run, committed by {@link Stats#finish}. Only
+ * loaded when the JVM has jdk.jfr.
+ */
+@Name("autoleveller.Stats")
+@Label("Levelling Stats")
+@Category("AutoLeveller")
+@Description("Phase times and counters of a levelling or probing run")
+public class StatsEvent extends Event {
+	@Label("Tool")
+	String tool;
+	@Label("File")
+	String file;
+	@Label("Wall Time")
+	@Timespan
+	long wallTime;
+	@Label("Scan Time")
+	@Timespan
+	long scanTime;
+	@Label("Parse Time")
+	@Timespan
+	long parseTime;
+	@Label("Segment Time")
+	@Timespan
+	long segmentTime;
+	@Label("Interpolate Time")
+	@Timespan
+	long interpolateTime;
+	@Label("Format Time")
+	@Timespan
+	long formatTime;
+	@Label("Lines In")
+	long linesIn;
+	@Label("Lines Out")
+	long linesOut;
+	@Label("Segments")
+	long segments;
+	@Label("Interpolations")
+	long interpolations;
+	@Label("Bytes Out")
+	@DataAmount
+	long bytesOut;
+	@Label("Scanned Lines")
+	long scannedLines;
+	@Label("Z Cache Hits")
+	long zCacheHits;
+	@Label("Z Cache Misses")
+	long zCacheMisses;
+
+	public static void commit(String tool, String file, Stats.Snapshot snapshot) {
+		StatsEvent event = new StatsEvent();
+		if (!event.isEnabled()) {
+			return;
+		}
+		event.tool = tool;
+		event.file = file;
+		event.wallTime = snapshot.getWallNanos();
+		event.scanTime = snapshot.getNanos(Stats.SCAN);
+		event.parseTime = snapshot.getNanos(Stats.PARSE);
+		event.segmentTime = snapshot.getNanos(Stats.SEGMENT);
+		event.interpolateTime = snapshot.getNanos(Stats.INTERPOLATE);
+		event.formatTime = snapshot.getNanos(Stats.FORMAT);
+		event.linesIn = snapshot.getCount(Stats.LINES_IN);
+		event.linesOut = snapshot.getCount(Stats.LINES_OUT);
+		event.segments = snapshot.getCount(Stats.SEGMENTS);
+		event.interpolations = snapshot.getCount(Stats.INTERPOLATIONS);
+		event.bytesOut = snapshot.getCount(Stats.BYTES_OUT);
+		event.scannedLines = snapshot.getCount(Stats.SCANNED_LINES);
+		event.zCacheHits = snapshot.getCount(Stats.ZCACHE_HITS);
+		event.zCacheMisses = snapshot.getCount(Stats.ZCACHE_MISSES);
+		event.commit();
+	}
+}
@@ -0,0 +1,158 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller;
+
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import autoleveller.probe.HeightMap;
+import autoleveller.probe.Probe;
+
+/**
+ * Levels files that move in G91 and the same files written in G90, adds up
+ * the moves of both outputs and checks the tool goes through the same levelled
+ * positions. Run it with the classes and libraries on the class path, it exits
+ * with 1 on the first difference.
+ */
+public class IncrementalLevellingTest {
+	private static final double TOLERANCE = 0.0002;
+
+	private static final String INCREMENTAL = "G21\nG90\nG0 Z2\nG0 X1 Y1\nG91\nG1 Z-2.1 F100\nG1 X38 Y4\nG1 X-19 Y33\n"
+		+ "G1 X10 Y-10 Z-0.05\nG90\nG1 X5 Y5\nG91\nG1 Y20\nG0 Z2.15\nG90\nM2\n";
+
+	private static final String INCREMENTAL_AS_ABSOLUTE = "G21\nG90\nG0 Z2\nG0 X1 Y1\nG1 Z-0.1 F100\nG1 X39 Y5\n"
+		+ "G1 X20 Y38\nG1 X30 Y28 Z-0.15\nG1 X5 Y5\nG1 Y25\nG0 Z2\nM2\n";
+
+	// plunges in G90 and carries on cutting in G91
+	private static final String SWITCH = "G21\nG90\nG0 Z2\nG0 X30 Y30\nG1 Z-0.1 F100\nG91\nG1 X1 Z0\nG1 X-20 Y-10\n"
+		+ "G1 Y5 Z-0.05\nG0 Z2.15\nG90\nM2\n";
+
+	private static final String SWITCH_AS_ABSOLUTE = "G21\nG90\nG0 Z2\nG0 X30 Y30\nG1 Z-0.1 F100\nG1 X31\nG1 X11 Y20\n"
+		+ "G1 Y25 Z-0.15\nG0 Z2\nM2\n";
+
+	private static final String[][] FILES = { { "incremental", INCREMENTAL, INCREMENTAL_AS_ABSOLUTE },
+		{ "switch to G91", SWITCH, SWITCH_AS_ABSOLUTE } };
+
+	public static void main(String[] args) throws IOException {
+		Probe probe = createProbe();
+		Segmenter segmenter = new UniformSegmenter(5);
+		int failures = 0;
+		for (String[] file : FILES) {
+			List<double[]> expected = positions(level(probe, segmenter, file[2]));
+			List<double[]> actual = positions(level(probe, segmenter, file[1]));
+			String difference = firstDifference(expected, actual);
+			if (difference != null) {
+				System.out.println("FAIL " + file[0] + ": " + difference);
+				failures++;
+			}
+		}
+		System.out.println(failures == 0 ? "OK" : failures + " failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * @return a tilted and warped 40mm square map
+	 */
+	private static Probe createProbe() {
+		int size = 9;
+		double[] z = new double[size * size];
+		for (int row = 0; row < size; row++) {
+			for (int column = 0; column < size; column++) {
+				z[row * size + column] = 0.04 + 0.01 * column - 0.005 * row + 0.02 * Math.sin(column * row);
+			}
+		}
+		SimplePoint3DCNC[][] points = Probe.createProbePoints(new HeightMap(0, 0, 5, 5, size, size, z));
+		Rectangle2D area = Probe.getArea(points);
+		return Probe.createProbe(Probe.MILLIMETERS, area.getX(), area.getY(), area.getWidth(), area.getHeight(), 100, -1, 5, 20, 2,
+			points);
+	}
+
+	private static String level(Probe probe, Segmenter segmenter, String gCode) throws IOException {
+		File gCodeFile = File.createTempFile("incremental", ".ngc");
+		try {
+			Writer in = new FileWriter(gCodeFile);
+			try {
+				in.write(gCode);
+			} finally {
+				in.close();
+			}
+			StringWriter out = new StringWriter();
+			Surface surface = new Surface(probe, new GCodeBreaker(gCodeFile, segmenter, probe.getArea()));
+			surface.level(new NoExponentWriter(out));
+			return out.toString();
+		} finally {
+			gCodeFile.delete();
+		}
+	}
+
+	/**
+	 * @return the position of the tool after each line that moves it
+	 */
+	private static List<double[]> positions(String gCode) {
+		List<double[]> positions = new ArrayList<double[]>();
+		GCodeTokenizer words = new GCodeTokenizer();
+		ModalState modal = new ModalState();
+		double[] position = new double[3];
+		for (String line : gCode.split("\n")) {
+			words.tokenize(line.trim());
+			modal.update(words);
+			boolean moves = false;
+			for (int axis = 0; axis < 3; axis++) {
+				double value = words.getValue((char) ('X' + axis));
+				if (!Double.isNaN(value)) {
+					position[axis] = modal.isIncremental() ? position[axis] + value : value;
+					moves = true;
+				}
+			}
+			if (moves) {
+				positions.add(position.clone());
+			}
+		}
+		return positions;
+	}
+
+	/**
+	 * @return the first position that differs, null if the tool goes through
+	 *         the same positions
+	 */
+	private static String firstDifference(List<double[]> expected, List<double[]> actual) {
+		if (expected.size() != actual.size()) {
+			return expected.size() + " moves expected but there were " + actual.size();
+		}
+		for (int i = 0; i < expected.size(); i++) {
+			double[] expectedPosition = expected.get(i);
+			double[] actualPosition = actual.get(i);
+			for (int axis = 0; axis < 3; axis++) {
+				if (Math.abs(expectedPosition[axis] - actualPosition[axis]) > TOLERANCE) {
+					return "move " + (i + 1) + " expected " + (char) ('X' + axis) + expectedPosition[axis] + " but was "
+						+ actualPosition[axis];
+				}
+			}
+		}
+		return null;
+	}
+}
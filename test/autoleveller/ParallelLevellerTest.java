@@ -0,0 +1,143 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller;
+
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import autoleveller.probe.HeightMap;
+import autoleveller.probe.Probe;
+import autoleveller.stats.Stats;
+
+/**
+ * Levels small files with {@link ParallelLeveller} at chunk sizes down to a
+ * single line and checks the output is the same as that of a sequential
+ * {@link Surface}. Run it with the classes and libraries on the class path, it
+ * exits with 1 on the first difference.
+ */
+public class ParallelLevellerTest {
+	private static final int[] CHUNK_SIZES = { 1, 7, 20, 64, 1 << 20 };
+	private static final int THREADS = 3;
+
+	private static final String ABSOLUTE = "G21\nG90\nG0 Z2\nG0 X1 Y1\nG1 Z-0.1 F100\nG1 X39 Y5\nG1 X20 Y38\n"
+		+ "G2 X30 Y28 I5 J-5\nG1 Y2\nG0 Z2\nM2\n";
+
+	private static final String INCREMENTAL = "G21\nG90\nG0 Z2\nG0 X1 Y1\nG91\nG1 Z-2.1 F100\nG1 X38 Y4\nG1 X-19 Y33\n"
+		+ "G1 X10 Y-10 Z-0.05\nG90\nG1 X5 Y5\nG91\nG1 Y20\nG0 Z2.15\nG90\nM2\n";
+
+	private static final String UNIT_SWITCH = "G21\nG90\nG0 Z2\nG0 X1 Y1\nG1 Z-0.2 F100\nG1 X25 Y6\nG20\nG1 X1.5 Y1.2\n"
+		+ "G1 Y0.4 Z-0.008\nG21\nG1 X10 Y30\nG20\nG1 X1.4\nG0 Z0.1\nM2\n";
+
+	private static final String HOMING = "G21\nG90\nG0 Z2\nG0 X1 Y1\nG1 Z-0.1 F100\nG1 X30 Y20\nG28\nG1 X35 Y30\n"
+		+ "G1 Z-0.1\nG1 X5 Y30\nG53 G0 Z0\nG1 X10 Y10\nG0 Z2\nG1 X20 Z-0.1\nG1 Y25\nG30\nM2\n";
+
+	private static final String[][] FILES = { { "absolute", ABSOLUTE }, { "incremental", INCREMENTAL },
+		{ "unit switch", UNIT_SWITCH }, { "homing", HOMING } };
+
+	public static void main(String[] args) throws IOException {
+		Probe probe = createProbe();
+		Segmenter segmenter = new UniformSegmenter(5);
+		int failures = 0;
+		for (String[] file : FILES) {
+			File gCodeFile = write(file[1]);
+			try {
+				String expected = levelSequentially(probe, segmenter, gCodeFile);
+				for (int chunkSize : CHUNK_SIZES) {
+					String actual = levelInParallel(probe, segmenter, gCodeFile, chunkSize);
+					String difference = firstDifference(expected, actual);
+					if (difference != null) {
+						System.out.println("FAIL " + file[0] + ", chunks of " + chunkSize + ": " + difference);
+						failures++;
+					}
+				}
+			} finally {
+				gCodeFile.delete();
+			}
+		}
+		System.out.println(failures == 0 ? "OK" : failures + " failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * @return a tilted and warped 40mm square map
+	 */
+	private static Probe createProbe() {
+		int size = 9;
+		double[] z = new double[size * size];
+		for (int row = 0; row < size; row++) {
+			for (int column = 0; column < size; column++) {
+				z[row * size + column] = 0.01 * column - 0.005 * row + 0.02 * Math.sin(column * row);
+			}
+		}
+		SimplePoint3DCNC[][] points = Probe.createProbePoints(new HeightMap(0, 0, 5, 5, size, size, z));
+		Rectangle2D area = Probe.getArea(points);
+		return Probe.createProbe(Probe.MILLIMETERS, area.getX(), area.getY(), area.getWidth(), area.getHeight(), 100, -1, 5, 20, 2,
+			points);
+	}
+
+	private static String levelSequentially(Probe probe, Segmenter segmenter, File gCodeFile) throws IOException {
+		StringWriter out = new StringWriter();
+		Surface surface = new Surface(probe, new GCodeBreaker(gCodeFile, segmenter, probe.getArea()));
+		surface.level(new NoExponentWriter(out));
+		return out.toString();
+	}
+
+	private static String levelInParallel(Probe probe, Segmenter segmenter, File gCodeFile, int chunkSize) throws IOException {
+		StringWriter out = new StringWriter();
+		ParallelLeveller leveller = new ParallelLeveller(probe, gCodeFile, segmenter, THREADS, chunkSize);
+		leveller.writeLeveledFile(new NoExponentWriter(out));
+		Stats.reset();
+		return out.toString();
+	}
+
+	private static File write(String gCode) throws IOException {
+		File file = File.createTempFile("parallel", ".ngc");
+		Writer out = new FileWriter(file);
+		try {
+			out.write(gCode);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	/**
+	 * @return the first line that differs, null if the outputs only differ in
+	 *         the creation date of the header
+	 */
+	private static String firstDifference(String expected, String actual) {
+		String[] expectedLines = expected.split("\n", -1);
+		String[] actualLines = actual.split("\n", -1);
+		for (int i = 0; i < Math.max(expectedLines.length, actualLines.length); i++) {
+			String expectedLine = i < expectedLines.length ? expectedLines[i] : "<end>";
+			String actualLine = i < actualLines.length ? actualLines[i] : "<end>";
+			if (!expectedLine.equals(actualLine) && !expectedLine.startsWith("(Creation date")) {
+				return "line " + (i + 1) + " expected '" + expectedLine + "' but was '" + actualLine + "'";
+			}
+		}
+		return null;
+	}
+}
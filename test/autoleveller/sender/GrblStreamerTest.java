@@ -0,0 +1,101 @@
+/*  	GRBL AutoLeveller (https://github.com/henols/GrblAutoLeveller) is a stand-alone PC application written in Java which is designed
+ *  	to measure precisely the height of the material to be milled / etched in several places,
+ *  	then use the information gathered to make adjustments to the Z height
+ *  	during the milling / etching process so that a more consistent and accurate result can be achieved.
+ *
+ *   	Copyright (C) 2013 Henrik Olsson, henols@gmail.com
+ *
+ *   	This program is free software; you can redistribute it and/or modify
+ *   	it under the terms of the GNU General Public License as published by
+ *   	the Free Software Foundation; either version 2 of the License, or
+ *   	(at your option) any later version.
+ *
+ *   	This program is distributed in the hope that it will be useful,
+ *   	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   	GNU General Public License for more details.
+ *
+ *   	You should have received a copy of the GNU General Public License along
+ *   	with this program; if not, see http://www.gnu.org/licenses/
+ */
+package autoleveller.sender;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams to a {@link GrblEmulator} that resets when the port is opened, and
+ * to one that was already running, and checks every block arrives and is
+ * answered. Run it with the classes on the class path, it exits with 1 on the
+ * first failure.
+ */
+public class GrblStreamerTest {
+	private static final int LINES = 2000;
+	private static final long TIMEOUT_SECONDS = 20;
+
+	public static void main(String[] args) throws Exception {
+		int failures = 0;
+		failures += check("reset on connect", 300, true);
+		failures += check("already running", 0, false);
+		System.out.println(failures == 0 ? "OK" : failures + " failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * @return 1 if the stream failed, hung or lost blocks, 0 otherwise
+	 */
+	private static int check(String name, long bootMillis, boolean welcome) throws Exception {
+		GrblEmulator emulator = new GrblEmulator(GrblStreamer.RX_BUFFER_SIZE, 10, 100);
+		emulator.setBootMillis(bootMillis);
+		emulator.setWelcome(welcome);
+		final GrblStreamer streamer = new GrblStreamer(emulator.start());
+		streamer.setStatusInterval(20);
+		streamer.setWelcomeTimeout(1000);
+		final BufferedReader gCode = new BufferedReader(new StringReader(createJob()));
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Void> streaming = executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					streamer.stream(gCode);
+					return null;
+				}
+			});
+			streaming.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		} catch (Exception e) {
+			System.out.println("FAIL " + name + ": " + e);
+			return 1;
+		} finally {
+			executor.shutdownNow();
+			streamer.close();
+			emulator.close();
+		}
+		String problem = null;
+		if (streamer.getLinesAcknowledged() != LINES || emulator.getBlocks() != LINES) {
+			problem = streamer.getLinesAcknowledged() + " answered and " + emulator.getBlocks() + " planned of " + LINES;
+		} else if (emulator.getBootLosses() > 0 || emulator.getOverflows() > 0) {
+			problem = emulator.getBootLosses() + " bytes lost while booting, " + emulator.getOverflows() + " overflowed";
+		} else if (!streamer.getErrors().isEmpty()) {
+			problem = streamer.getErrors().toString();
+		}
+		if (problem != null) {
+			System.out.println("FAIL " + name + ": " + problem);
+			return 1;
+		}
+		return 0;
+	}
+
+	private static String createJob() {
+		StringBuilder job = new StringBuilder();
+		for (int i = 0; i < LINES; i++) {
+			job.append("G1 X").append(i % 100).append(" Y").append(i / 100).append(" Z-0.1 (cut)\n");
+		}
+		return job.toString();
+	}
+}